@@ -0,0 +1,190 @@
+package com.esri.android.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the health of one host so that {@link NetUtils} stops sending it requests while it is failing.
+ *
+ * <p>After a number of consecutive failures (connection errors or 5xx responses, see {@link #configure}) the
+ * breaker opens and requests to the host fail immediately with a {@link CircuitOpenException}. Once the open period
+ * has passed a single probe request is let through: if it succeeds the breaker closes, if it fails the breaker opens
+ * again.
+ */
+public final class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+
+    /**
+     * The state of a host's breaker.
+     */
+    public enum State {
+        /**
+         * Requests are sent normally.
+         */
+        CLOSED,
+
+        /**
+         * The host is failing; requests fail fast.
+         */
+        OPEN,
+
+        /**
+         * The open period has passed and a probe request decides whether the breaker closes.
+         */
+        HALF_OPEN
+    }
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> sBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+    private static volatile int sFailureThreshold = 5;
+    private static volatile long sOpenMillis = 30000;
+
+    private final String mHost;
+    private State mState = State.CLOSED;
+    private int mFailures;
+    private long mOpenedAt;
+    private long mProbeStartedAt = -1;
+
+    private CircuitBreaker(String host) {
+        mHost = host;
+    }
+
+    /**
+     * Change when breakers open and how long they stay open. Applies to every host.
+     *
+     * @param failureThreshold consecutive failures that open a breaker, or 0 to never open; defaults to 5.
+     * @param openMillis how long an open breaker fails requests before letting a probe through; defaults to 30000.
+     */
+    public static void configure(int failureThreshold, long openMillis) {
+        if (failureThreshold < 0) {
+            throw new IllegalArgumentException("Failure threshold cannot be negative.");
+        }
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("Open duration cannot be negative.");
+        }
+        sFailureThreshold = failureThreshold;
+        sOpenMillis = openMillis;
+    }
+
+    /**
+     * @param host a host name, ie: "my.api-server.com".
+     * @return the breaker for that host.
+     */
+    public static CircuitBreaker forHost(String host) {
+        if (host == null) {
+            host = "";
+        }
+
+        CircuitBreaker breaker = sBreakers.get(host);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(host);
+            breaker = sBreakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return the state of every host that has been sent a request.
+     */
+    public static Map<String, State> getStates() {
+        Map<String, State> states = new HashMap<String, State>();
+        for (CircuitBreaker breaker : sBreakers.values()) {
+            states.put(breaker.mHost, breaker.getState());
+        }
+        return states;
+    }
+
+    /**
+     * Close every breaker, ie: after the device changes networks.
+     */
+    public static void resetAll() {
+        for (CircuitBreaker breaker : sBreakers.values()) {
+            breaker.reset();
+        }
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public synchronized State getState() {
+        if (mState == State.OPEN && getRemainingOpenMillis() == 0) {
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    /**
+     * @return the number of failures since the last success.
+     */
+    public synchronized int getConsecutiveFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return milliseconds until an open breaker lets a probe through, or 0 if it is not open.
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (mState != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, mOpenedAt + sOpenMillis - SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Close the breaker and forget past failures.
+     */
+    public synchronized void reset() {
+        mState = State.CLOSED;
+        mFailures = 0;
+        mProbeStartedAt = -1;
+    }
+
+    /**
+     * @return true if a request may be sent to the host now. In the half-open state only one probe is let through at a
+     *         time; a probe that has not reported back within the open period is assumed lost.
+     */
+    synchronized boolean allowRequest() {
+        if (mState == State.CLOSED || sFailureThreshold == 0) {
+            return true;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (mState == State.OPEN) {
+            if (now - mOpenedAt < sOpenMillis) {
+                return false;
+            }
+            mState = State.HALF_OPEN;
+        } else if (mProbeStartedAt >= 0 && now - mProbeStartedAt < sOpenMillis) {
+            return false;
+        }
+
+        mProbeStartedAt = now;
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        if (mState != State.CLOSED) {
+            Log.v(TAG, "Closing circuit for " + mHost + ".");
+        }
+        reset();
+    }
+
+    synchronized void recordFailure() {
+        mFailures++;
+        int threshold = sFailureThreshold;
+        if (mState == State.HALF_OPEN || (threshold > 0 && mFailures >= threshold && mState == State.CLOSED)) {
+            Log.v(TAG, "Opening circuit for " + mHost + " after " + mFailures + " failures.");
+            mState = State.OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime();
+            mProbeStartedAt = -1;
+        }
+    }
+}
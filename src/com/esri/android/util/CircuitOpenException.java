@@ -0,0 +1,30 @@
+package com.esri.android.util;
+
+import java.io.IOException;
+
+/**
+ * Passed to onFailure when a request was not sent because the {@link CircuitBreaker} for its host is open.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String mHost;
+    private final long mRetryAfterMillis;
+
+    CircuitOpenException(String host, long retryAfterMillis) {
+        super("Circuit open for " + host + "; retry in " + retryAfterMillis + "ms.");
+        mHost = host;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * @return milliseconds until the breaker lets a probe request through.
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
@@ -0,0 +1,118 @@
+package com.esri.android.util;
+
+import org.apache.http.StatusLine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Fans the outcome of a single in-flight request out to every listener that asked for the same thing while it was
+ * running. Listeners can only be added until the outcome is known; after that {@link #addListener} returns false and
+ * the caller must start its own request.
+ *
+ * <p>Each listener has its own {@link RequestHandle}. Cancelling one only detaches that listener; the shared network
+ * request is aborted once every listener has been cancelled.
+ *
+ * @param <T> the decoded response type.
+ */
+final class CoalescedRequest<T> implements NetUtils.ResponseListener<T> {
+    private final List<NetUtils.ResponseListener<T>> mListeners = new ArrayList<NetUtils.ResponseListener<T>>(2);
+    private final List<RequestHandle> mHandles = new ArrayList<RequestHandle>(2);
+    private final RequestHandle mNetworkHandle = new RequestHandle();
+    private final ConcurrentMap<String, CoalescedRequest<?>> mInFlight;
+    private final String mKey;
+    private boolean mComplete;
+
+    /**
+     * @param inFlight the map of in-flight requests this request is registered in; it unregisters itself once the
+     *                 outcome is known, before listeners are notified.
+     * @param key the key this request is registered under.
+     */
+    CoalescedRequest(ConcurrentMap<String, CoalescedRequest<?>> inFlight, String key) {
+        mInFlight = inFlight;
+        mKey = key;
+    }
+
+    /**
+     * @return the handle of the request that actually goes to the network.
+     */
+    RequestHandle getNetworkHandle() {
+        return mNetworkHandle;
+    }
+
+    /**
+     * @return true if the listener will be notified of this request's outcome, false if it already completed.
+     */
+    synchronized boolean addListener(NetUtils.ResponseListener<T> listener, final RequestHandle handle) {
+        if (mComplete) {
+            return false;
+        }
+
+        mListeners.add(listener);
+        mHandles.add(handle);
+        handle.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                detach(handle);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void onSuccess(T value) {
+        for (NetUtils.ResponseListener<T> listener : complete()) {
+            listener.onSuccess(value);
+        }
+    }
+
+    @Override
+    public void onError(T value, StatusLine status) {
+        for (NetUtils.ResponseListener<T> listener : complete()) {
+            listener.onError(value, status);
+        }
+    }
+
+    @Override
+    public void onFailure(Throwable error) {
+        for (NetUtils.ResponseListener<T> listener : complete()) {
+            listener.onFailure(error);
+        }
+    }
+
+    private void detach(RequestHandle handle) {
+        boolean abandoned;
+        synchronized (this) {
+            int index = mHandles.indexOf(handle);
+            if (index == -1 || mComplete) {
+                return;
+            }
+
+            mHandles.remove(index);
+            mListeners.remove(index);
+            abandoned = mListeners.isEmpty();
+            if (abandoned) {
+                mComplete = true;
+            }
+        }
+
+        if (abandoned) {
+            mInFlight.remove(mKey, this);
+            mNetworkHandle.cancel();
+        }
+    }
+
+    private List<NetUtils.ResponseListener<T>> complete() {
+        List<NetUtils.ResponseListener<T>> listeners;
+        synchronized (this) {
+            if (mComplete) {
+                return new ArrayList<NetUtils.ResponseListener<T>>(0);
+            }
+            mComplete = true;
+            listeners = new ArrayList<NetUtils.ResponseListener<T>>(mListeners);
+        }
+        mInFlight.remove(mKey, this);
+        return listeners;
+    }
+}
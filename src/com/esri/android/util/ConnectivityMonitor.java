@@ -0,0 +1,204 @@
+package com.esri.android.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps the device's current network state so it can be read from any thread without a call into the system
+ * {@link ConnectivityManager}. The state is refreshed by a single connectivity broadcast receiver, registered the
+ * first time {@link #get} is called.
+ *
+ * <p>Reads are a single volatile load of an immutable {@link NetworkState}. {@link Listener}s are told about changes on
+ * the main thread.
+ */
+public final class ConnectivityMonitor {
+    private static final String TAG = "ConnectivityMonitor";
+
+    // ConnectivityManager.TYPE_ETHERNET, which is not in the API level this library targets.
+    private static final int TYPE_ETHERNET = 9;
+
+    private static volatile ConnectivityMonitor sInstance;
+
+    private final ConnectivityManager mConnectivityManager;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private volatile NetworkState mState;
+
+    private ConnectivityMonitor(Context context) {
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mState = query();
+    }
+
+    /**
+     * @return the monitor for the application, which is created and starts listening on the first call.
+     */
+    public static ConnectivityMonitor get(Context context) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null.");
+        }
+
+        // Lock-free once created; the lock only guards registering the receiver once.
+        ConnectivityMonitor instance = sInstance;
+        if (instance != null) {
+            return instance;
+        }
+        return create(context);
+    }
+
+    private static synchronized ConnectivityMonitor create(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            final ConnectivityMonitor monitor = new ConnectivityMonitor(appContext);
+            appContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    monitor.refresh();
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            sInstance = monitor;
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the latest known network state.
+     */
+    public NetworkState getState() {
+        return mState;
+    }
+
+    /**
+     * @return true if the device had a connected network at the last connectivity change.
+     */
+    public boolean isConnected() {
+        return mState.isConnected();
+    }
+
+    /**
+     * Be told when the network state changes. Callbacks run on the main thread.
+     */
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Query the {@link ConnectivityManager} again and notify listeners if the state changed. Called for every
+     * connectivity broadcast; there is rarely a reason to call it directly.
+     */
+    public void refresh() {
+        NetworkState previous = mState;
+        NetworkState current = query();
+        mState = current;
+
+        if (!current.equals(previous)) {
+            Log.v(TAG, "Network state changed to " + current + ".");
+            for (Listener listener : mListeners) {
+                listener.onNetworkStateChanged(current);
+            }
+        }
+    }
+
+    private NetworkState query() {
+        NetworkInfo info = mConnectivityManager != null ? mConnectivityManager.getActiveNetworkInfo() : null;
+        if (info == null || !info.isConnected()) {
+            return new NetworkState(false, -1, false, false);
+        }
+
+        int type = info.getType();
+        // The metered hint arrived after this library's API level; treat anything but Wi-Fi and Ethernet as metered.
+        boolean metered = type != ConnectivityManager.TYPE_WIFI && type != TYPE_ETHERNET;
+        return new NetworkState(true, type, metered, info.isRoaming());
+    }
+
+    /**
+     * An immutable snapshot of the active network.
+     */
+    public static final class NetworkState {
+        private final boolean mConnected;
+        private final int mType;
+        private final boolean mMetered;
+        private final boolean mRoaming;
+        private final long mTimestamp = SystemClock.elapsedRealtime();
+
+        NetworkState(boolean connected, int type, boolean metered, boolean roaming) {
+            mConnected = connected;
+            mType = type;
+            mMetered = metered;
+            mRoaming = roaming;
+        }
+
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        /**
+         * @return the network type, ie: {@link ConnectivityManager#TYPE_WIFI}, or -1 if there is no connection.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return true if data on this network may cost the user money, ie: a mobile connection.
+         */
+        public boolean isMetered() {
+            return mMetered;
+        }
+
+        public boolean isRoaming() {
+            return mRoaming;
+        }
+
+        /**
+         * @return when the snapshot was taken, in {@link SystemClock#elapsedRealtime} milliseconds.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NetworkState)) {
+                return false;
+            }
+            NetworkState other = (NetworkState) o;
+            return mConnected == other.mConnected && mType == other.mType && mMetered == other.mMetered
+                    && mRoaming == other.mRoaming;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mConnected ? 1 : 0) + 31 * (mType + 31 * ((mMetered ? 1 : 0) + 31 * (mRoaming ? 1 : 0)));
+        }
+
+        @Override
+        public String toString() {
+            if (!mConnected) {
+                return "disconnected";
+            }
+            return "type " + mType + (mMetered ? ", metered" : "") + (mRoaming ? ", roaming" : "");
+        }
+    }
+
+    /**
+     * Notified on the main thread when the network state changes.
+     */
+    public interface Listener {
+        public void onNetworkStateChanged(NetworkState state);
+    }
+}
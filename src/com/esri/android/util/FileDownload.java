@@ -0,0 +1,736 @@
+package com.esri.android.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a response body straight to a file through a fixed-size buffer, on the {@link RequestScheduler}.
+ *
+ * <p>Data is written to "&lt;destination&gt;.part", with the server's validator and each segment's progress kept in
+ * "&lt;destination&gt;.part.meta", so a download that fails or is cancelled resumes where it stopped the next time
+ * it is started, using "Range" and "If-Range". If the file changed on the server in the meantime, it is downloaded
+ * again from the start. Once complete, the part file is renamed to the destination.
+ *
+ * <p>Large files on servers that accept ranges may be split into segments that are downloaded in parallel, each as
+ * its own scheduler task.
+ */
+final class FileDownload {
+    private static final String TAG = "FileDownload";
+    private static final int BUFFER_SIZE = 8192;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long CHECKPOINT_BYTES = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    private final String mRequestId;
+    private final URI mUri;
+    private final Header[] mHeaders;
+    private final File mDestination;
+    private final File mPartFile;
+    private final File mMetaFile;
+    private final RequestOptions mOptions;
+    private final RequestHandle mHandle;
+    private final NetUtils.ResponseListener<File> mListener;
+    private final NetUtils.ProgressListener mProgressListener;
+    private final String mHost;
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mLastProgress = new AtomicLong();
+
+    // Guarded by this.
+    private final List<HttpRequestBase> mActiveRequests = new ArrayList<HttpRequestBase>();
+    private final List<Runnable> mQueuedTasks = new ArrayList<Runnable>();
+    private String mValidator;
+    private long mLength = -1;
+    private Segment[] mSegments;
+    private int mRemaining;
+    private int mGeneration;
+    private boolean mRestarted;
+    private boolean mFinished;
+
+    /**
+     * @param listener receives the destination file once it is complete; already thread safe and gated by the handle.
+     * @param progressListener receives the number of bytes on disk, or null.
+     */
+    FileDownload(String requestId, URI uri, Header[] headers, File destination, RequestOptions options,
+                 RequestHandle handle, NetUtils.ResponseListener<File> listener,
+                 NetUtils.ProgressListener progressListener) {
+        mRequestId = requestId;
+        mUri = uri;
+        mHeaders = headers;
+        mDestination = destination;
+        mPartFile = new File(destination.getPath() + ".part");
+        mMetaFile = new File(destination.getPath() + ".part.meta");
+        mOptions = options;
+        mHandle = handle;
+        mListener = listener;
+        mProgressListener = progressListener;
+        mHost = uri.getHost();
+    }
+
+    /**
+     * Queue the download. It starts by restoring saved progress, or by asking the server for the file's size when
+     * segments were requested.
+     */
+    void start() {
+        Runnable plan = new Runnable() {
+            @Override
+            public void run() {
+                if (mHandle.markRunning()) {
+                    plan();
+                }
+            }
+        };
+        queue(plan);
+    }
+
+    /**
+     * Stop every segment, keeping what has been downloaded so far for the next attempt.
+     */
+    void cancel() {
+        List<HttpRequestBase> active;
+        synchronized (this) {
+            RequestScheduler scheduler = NetUtils.getRequestScheduler();
+            for (Runnable task : mQueuedTasks) {
+                scheduler.remove(task);
+            }
+            mQueuedTasks.clear();
+            active = new ArrayList<HttpRequestBase>(mActiveRequests);
+        }
+        for (HttpRequestBase request : active) {
+            request.abort();
+        }
+    }
+
+    private void plan() {
+        try {
+            if (!restoreState()) {
+                int segments = Math.max(1, mOptions.getDownloadSegments());
+                if (segments == 1 || !planSegments(segments)) {
+                    synchronized (this) {
+                        mSegments = new Segment[]{new Segment(0, -1, 0)};
+                    }
+                    mPartFile.delete();
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+            return;
+        }
+
+        List<Segment> pending = new ArrayList<Segment>();
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+            for (Segment segment : mSegments) {
+                if (!segment.isComplete()) {
+                    pending.add(segment);
+                }
+            }
+            mRemaining = pending.size();
+        }
+
+        NetUtils.getRequestTracer().trace(mRequestId, "Downloading '%s' in %s segment(s).", mUri, pending.size());
+        if (pending.isEmpty()) {
+            complete();
+            return;
+        }
+        for (Segment segment : pending) {
+            queueSegment(segment, generation);
+        }
+    }
+
+    /**
+     * Pick up a previous attempt from the metadata file.
+     *
+     * @return true if there was usable saved state.
+     */
+    private boolean restoreState() {
+        if (!mMetaFile.exists() || !mPartFile.exists()) {
+            return false;
+        }
+
+        Properties meta = new Properties();
+        try {
+            InputStream in = new FileInputStream(mMetaFile);
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+
+            String validator = meta.getProperty("validator");
+            if (!mUri.toString().equals(meta.getProperty("url")) || validator == null) {
+                return false;
+            }
+
+            int count = Integer.parseInt(meta.getProperty("segments"));
+            Segment[] segments = new Segment[count];
+            long received = 0;
+            for (int i = 0; i < count; i++) {
+                String[] fields = meta.getProperty("segment." + i).split(",");
+                segments[i] = new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]));
+                received += segments[i].position - segments[i].start;
+            }
+
+            synchronized (this) {
+                mValidator = validator;
+                mLength = Long.parseLong(meta.getProperty("length"));
+                mSegments = segments;
+            }
+            mReceived.set(received);
+            return true;
+        } catch (Exception e) {
+            Log.d(TAG, "Discarding unreadable download state: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Ask the server for the file's size and whether it accepts ranges, and split it if it is large enough.
+     *
+     * @return false if the file should be downloaded in one piece.
+     */
+    private boolean planSegments(int segments) throws IOException {
+        HttpHead head = new HttpHead(mUri);
+        prepare(head);
+        HttpResponse response = execute(head);
+        long length;
+        String validator;
+        try {
+            Header ranges = response.getFirstHeader("Accept-Ranges");
+            Header contentLength = response.getFirstHeader("Content-Length");
+            validator = getValidator(response);
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || ranges == null
+                    || !"bytes".equalsIgnoreCase(ranges.getValue().trim()) || contentLength == null
+                    || validator == null) {
+                return false;
+            }
+            length = Long.parseLong(contentLength.getValue().trim());
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            // A HEAD response has no body to release.
+            finishRequest(head, null);
+        }
+
+        int count = (int) Math.min(segments, length / MIN_SEGMENT_SIZE);
+        if (count < 2) {
+            return false;
+        }
+
+        // Allocate the whole file up front so every segment can write at its own offset.
+        RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+
+        Segment[] planned = new Segment[count];
+        long size = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? length - 1 : start + size - 1;
+            planned[i] = new Segment(start, end, start);
+        }
+
+        synchronized (this) {
+            mValidator = validator;
+            mLength = length;
+            mSegments = planned;
+            saveState();
+        }
+        return true;
+    }
+
+    private void queueSegment(final Segment segment, final int generation) {
+        queue(new Runnable() {
+            @Override
+            public void run() {
+                if (!mHandle.isDone()) {
+                    runSegment(segment, generation);
+                }
+            }
+        });
+    }
+
+    private void queue(Runnable work) {
+        QueuedTask task = new QueuedTask(work);
+        synchronized (this) {
+            mQueuedTasks.add(task);
+        }
+        task.requeue();
+    }
+
+    private void runSegment(Segment segment, int generation) {
+        try {
+            download(segment, generation);
+        } catch (RangeIgnoredException e) {
+            restart(generation);
+            return;
+        } catch (Exception e) {
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                saveStateQuietly();
+            }
+            fail(e);
+            return;
+        }
+
+        boolean last;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            saveStateQuietly();
+            last = --mRemaining == 0;
+        }
+        if (last) {
+            complete();
+        }
+    }
+
+    /**
+     * Download what is left of one segment, writing it at the segment's offset in the part file.
+     */
+    private void download(Segment segment, int generation) throws Exception {
+        HttpGet request = new HttpGet(mUri);
+        prepare(request);
+
+        String validator;
+        synchronized (this) {
+            validator = mValidator;
+        }
+        boolean ranged = segment.position > segment.start || segment.end >= 0;
+        if (ranged) {
+            request.setHeader("Range", "bytes=" + segment.position + "-" + (segment.end >= 0 ? segment.end : ""));
+            if (validator != null) {
+                request.setHeader("If-Range", validator);
+            }
+        }
+
+        HttpResponse response = execute(request);
+        boolean drained = false;
+        try {
+            StatusLine status = response.getStatusLine();
+            int code = status.getStatusCode();
+            long length;
+            synchronized (this) {
+                length = mLength;
+            }
+            if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && segment.isComplete(length)) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                drained = true;
+                return;
+            }
+
+            if (code == HttpStatus.SC_OK) {
+                synchronized (this) {
+                    if (mSegments.length > 1) {
+                        throw new RangeIgnoredException();
+                    }
+                    // The whole file is coming, because this is the first attempt or it changed on the server.
+                    segment.position = 0;
+                    mReceived.set(0);
+                    mValidator = getValidator(response);
+                    mLength = response.getEntity() != null ? response.getEntity().getContentLength() : -1;
+                    length = mLength;
+                    saveState();
+                }
+            } else if (code == HttpStatus.SC_PARTIAL_CONTENT) {
+                checkContentRange(response, segment.position);
+            } else {
+                throw new HttpStatusException(status);
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("Response did not contain an entity.");
+            }
+
+            RandomAccessFile file;
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                file = new RandomAccessFile(mPartFile, "rw");
+            }
+            InputStream content = entity.getContent();
+            try {
+                if (code == HttpStatus.SC_OK) {
+                    file.setLength(0);
+                }
+                file.seek(segment.position);
+                drained = copy(content, file, segment);
+            } finally {
+                file.close();
+                if (drained) {
+                    // Closing a fully read body releases the connection back to the pool.
+                    content.close();
+                }
+            }
+
+            if (segment.end >= 0 ? segment.position <= segment.end : length >= 0 && segment.position < length) {
+                throw new IOException("Connection closed after " + segment.position + " bytes.");
+            }
+        } finally {
+            finishRequest(request, drained ? null : response);
+        }
+    }
+
+    /**
+     * @return true if the response was read to its end, so the connection can be reused.
+     */
+    private boolean copy(InputStream content, RandomAccessFile file, Segment segment) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long sinceCheckpoint = 0;
+        while (true) {
+            int wanted = BUFFER_SIZE;
+            if (segment.end >= 0) {
+                long left = segment.end + 1 - segment.position;
+                if (left <= 0) {
+                    return content.read() == -1;
+                }
+                wanted = (int) Math.min(wanted, left);
+            }
+
+            int read = content.read(buffer, 0, wanted);
+            if (read == -1) {
+                return true;
+            }
+
+            file.write(buffer, 0, read);
+            segment.position += read;
+            reportProgress(mReceived.addAndGet(read), false);
+
+            sinceCheckpoint += read;
+            if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                sinceCheckpoint = 0;
+                synchronized (this) {
+                    saveStateQuietly();
+                }
+            }
+        }
+    }
+
+    /**
+     * The server sent the whole file to a segmented download, so the file changed or ranges are no longer honored.
+     * Start again once, as a single segment.
+     */
+    private void restart(int generation) {
+        List<HttpRequestBase> active = null;
+        Segment whole = new Segment(0, -1, 0);
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mGeneration++;
+            if (!mRestarted) {
+                mRestarted = true;
+                RequestScheduler scheduler = NetUtils.getRequestScheduler();
+                for (Runnable task : mQueuedTasks) {
+                    scheduler.remove(task);
+                }
+                mQueuedTasks.clear();
+                active = new ArrayList<HttpRequestBase>(mActiveRequests);
+
+                // Segments still running keep writing to the old, unlinked file rather than this one.
+                mMetaFile.delete();
+                mPartFile.delete();
+                mValidator = null;
+                mLength = -1;
+                mSegments = new Segment[]{whole};
+                mRemaining = 1;
+                mReceived.set(0);
+            }
+        }
+
+        if (active == null) {
+            fail(new IOException("Server did not honor the requested ranges."));
+            return;
+        }
+        for (HttpRequestBase request : active) {
+            request.abort();
+        }
+        NetUtils.getRequestTracer().trace(mRequestId, "Restarting download of '%s'.", mUri);
+        queueSegment(whole, generation + 1);
+    }
+
+    private void complete() {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+
+        if (mDestination.exists() && !mDestination.delete()) {
+            mListener.onFailure(new IOException("Unable to replace " + mDestination + "."));
+            return;
+        }
+        if (!mPartFile.renameTo(mDestination)) {
+            mListener.onFailure(new IOException("Unable to move the download to " + mDestination + "."));
+            return;
+        }
+        mMetaFile.delete();
+
+        reportProgress(mReceived.get(), true);
+        NetUtils.getRequestTracer().trace(mRequestId, "Download complete: %s bytes.", mReceived.get());
+        mListener.onSuccess(mDestination);
+    }
+
+    private void fail(Exception e) {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+
+        cancel();
+        NetUtils.getRequestTracer().trace(mRequestId, "Download failed with error '%s'!", e.getMessage());
+        if (e instanceof HttpStatusException) {
+            mListener.onError(null, ((HttpStatusException) e).status);
+        } else {
+            mListener.onFailure(e);
+        }
+    }
+
+    private void reportProgress(long received, boolean force) {
+        if (mProgressListener == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastProgress.get();
+        if (force || (now - last >= PROGRESS_INTERVAL_MILLIS && mLastProgress.compareAndSet(last, now))) {
+            long length;
+            synchronized (this) {
+                length = mLength;
+            }
+            mProgressListener.onProgress(received, length);
+        }
+    }
+
+    private void prepare(HttpRequestBase request) {
+        if (mHeaders != null) {
+            request.setHeaders(mHeaders);
+        }
+        // Ranges count bytes of the file itself, not of a compressed transfer.
+        request.setHeader("Accept-Encoding", "identity");
+        NetUtils.applyTimeouts(request, mOptions);
+    }
+
+    private HttpResponse execute(HttpRequestBase request) throws IOException {
+        synchronized (this) {
+            mActiveRequests.add(request);
+        }
+        if (mHandle.isDone()) {
+            request.abort();
+        }
+        try {
+            return NetUtils.getHttpClient().execute(request);
+        } catch (IOException e) {
+            finishRequest(request, null);
+            throw e;
+        }
+    }
+
+    /**
+     * @param response a response whose body was not read to its end, or null.
+     */
+    private void finishRequest(HttpRequestBase request, HttpResponse response) {
+        synchronized (this) {
+            mActiveRequests.remove(request);
+        }
+        if (response != null) {
+            // Abort rather than drain: the rest of a large body is not worth reading.
+            request.abort();
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private void saveState() throws IOException {
+        if (mValidator == null) {
+            mMetaFile.delete();
+            return;
+        }
+
+        Properties meta = new Properties();
+        meta.setProperty("url", mUri.toString());
+        meta.setProperty("validator", mValidator);
+        meta.setProperty("length", String.valueOf(mLength));
+        meta.setProperty("segments", String.valueOf(mSegments.length));
+        for (int i = 0; i < mSegments.length; i++) {
+            Segment segment = mSegments[i];
+            meta.setProperty("segment." + i, segment.start + "," + segment.end + "," + segment.position);
+        }
+
+        File temp = new File(mMetaFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mMetaFile)) {
+            throw new IOException("Unable to write " + mMetaFile + ".");
+        }
+    }
+
+    private void saveStateQuietly() {
+        try {
+            saveState();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to save download state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a strong "ETag", which must match exactly for "If-Range", or else "Last-Modified"; null if there is
+     *         neither.
+     */
+    private static String getValidator(HttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Make sure a 206 response starts where it was asked to, ie: "Content-Range: bytes 1000-1999/5000".
+     */
+    private static void checkContentRange(HttpResponse response, long position) throws IOException {
+        Header range = response.getFirstHeader("Content-Range");
+        if (range == null) {
+            throw new IOException("Partial response did not contain a Content-Range.");
+        }
+
+        String value = range.getValue().trim();
+        int dash = value.indexOf('-');
+        if (!value.startsWith("bytes ") || dash < 0) {
+            throw new IOException("Unsupported Content-Range '" + value + "'.");
+        }
+
+        try {
+            if (Long.parseLong(value.substring(6, dash).trim()) != position) {
+                throw new IOException("Content-Range '" + value + "' does not start at " + position + ".");
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Unsupported Content-Range '" + value + "'.");
+        }
+    }
+
+    /**
+     * A step of the download waiting on the scheduler; it follows the download to a replacement scheduler.
+     */
+    private final class QueuedTask implements Runnable, RequestScheduler.Requeueable {
+        private final Runnable mWork;
+
+        QueuedTask(Runnable work) {
+            mWork = work;
+        }
+
+        @Override
+        public void run() {
+            synchronized (FileDownload.this) {
+                mQueuedTasks.remove(this);
+            }
+            mWork.run();
+        }
+
+        @Override
+        public void requeue() {
+            while (true) {
+                RequestScheduler scheduler = NetUtils.getRequestScheduler();
+                try {
+                    scheduler.execute(mHost, mOptions.getPriority(), this);
+                    return;
+                } catch (IllegalStateException e) {
+                    // A scheduler replaced meanwhile is shut down; try its successor.
+                    if (NetUtils.getRequestScheduler() == scheduler) {
+                        synchronized (FileDownload.this) {
+                            mQueuedTasks.remove(this);
+                        }
+                        fail(e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One byte range of the file.
+     */
+    private static final class Segment {
+        final long start;
+        /**
+         * The last byte of the range, or -1 to read to the end of the file.
+         */
+        final long end;
+        volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && position > end;
+        }
+
+        boolean isComplete(long length) {
+            return isComplete() || (end < 0 && length >= 0 && position >= length);
+        }
+    }
+
+    private static final class RangeIgnoredException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Carries a non-success response to the listener's onError.
+     */
+    private static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final StatusLine status;
+
+        HttpStatusException(StatusLine status) {
+            super("Server responded with status '" + status + "'.");
+            this.status = status;
+        }
+    }
+}
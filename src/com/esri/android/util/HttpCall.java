@@ -0,0 +1,233 @@
+package com.esri.android.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One HTTP request as it moves through the {@link RequestScheduler}, possibly several times when a
+ * {@link RetryPolicy} sends it again. Each attempt runs on a copy of the original request, since an aborted request
+ * cannot be re-executed.
+ *
+ * @param <T> the decoded response type.
+ */
+final class HttpCall<T> implements Runnable, RequestScheduler.Requeueable {
+    private final String mRequestId;
+    private final String mCacheKey;
+    private final NetUtils.ResponseDecoder<T> mDecoder;
+    private final RequestOptions mOptions;
+    private final RetryPolicy mRetryPolicy;
+    private final RequestHandle mHandle;
+    private final NetUtils.ResponseListener<T> mListener;
+    private final String mHost;
+    private final RequestMetrics mMetrics;
+    private final NetUtils.ProgressListener mUploadListener;
+    // The body as the caller built it, before compression and progress reporting wrapped it.
+    private final HttpEntity mEntity;
+    private volatile HttpRequestBase mRequest;
+    private volatile int mAttempt = 1;
+    private volatile Future<?> mPendingRetry;
+
+    /**
+     * @param retryPolicy the {@link RetryPolicy} for failed attempts, or null to never retry.
+     * @param handle the handle of the request that goes to the network; it is marked running on the first attempt.
+     * @param listener receives the outcome of the last attempt.
+     * @param metrics records the timings of the call.
+     * @param uploadListener receives the upload progress of the request body, or null.
+     */
+    HttpCall(String requestId, HttpRequestBase request, String cacheKey, NetUtils.ResponseDecoder<T> decoder,
+             RequestOptions options, RetryPolicy retryPolicy, RequestHandle handle,
+             NetUtils.ResponseListener<T> listener, RequestMetrics metrics, NetUtils.ProgressListener uploadListener) {
+        mRequestId = requestId;
+        mRequest = request;
+        mCacheKey = cacheKey;
+        mDecoder = decoder;
+        mOptions = options;
+        mRetryPolicy = retryPolicy;
+        mHandle = handle;
+        mListener = listener;
+        mMetrics = metrics;
+        mUploadListener = uploadListener;
+        mHost = request.getURI().getHost();
+        mEntity = request instanceof HttpEntityEnclosingRequestBase
+                ? ((HttpEntityEnclosingRequestBase) request).getEntity() : null;
+    }
+
+    String getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * @return the request for the current attempt.
+     */
+    HttpRequestBase getRequest() {
+        return mRequest;
+    }
+
+    String getCacheKey() {
+        return mCacheKey;
+    }
+
+    NetUtils.ResponseDecoder<T> getDecoder() {
+        return mDecoder;
+    }
+
+    RequestOptions getOptions() {
+        return mOptions;
+    }
+
+    /**
+     * @return the {@link RetryPolicy} for failed attempts, or null if the call is never retried.
+     */
+    RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    RequestHandle getHandle() {
+        return mHandle;
+    }
+
+    NetUtils.ResponseListener<T> getListener() {
+        return mListener;
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    RequestMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    NetUtils.ProgressListener getUploadListener() {
+        return mUploadListener;
+    }
+
+    /**
+     * @return the current attempt, starting at 1.
+     */
+    int getAttempt() {
+        return mAttempt;
+    }
+
+    /**
+     * Queue the first attempt on the scheduler.
+     */
+    void submit() {
+        mMetrics.markEnqueued();
+        requeue();
+    }
+
+    /**
+     * Queue the call on the current {@link NetUtils#getRequestScheduler scheduler}, ie: again after the scheduler it
+     * was queued on was replaced. If no scheduler takes it, the call fails.
+     */
+    @Override
+    public void requeue() {
+        while (true) {
+            RequestScheduler scheduler = NetUtils.getRequestScheduler();
+            try {
+                scheduler.execute(mHost, mOptions.getPriority(), this);
+                return;
+            } catch (IllegalStateException e) {
+                // A scheduler replaced meanwhile is shut down; try its successor.
+                if (NetUtils.getRequestScheduler() == scheduler) {
+                    mListener.onFailure(e);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean proceed = mAttempt == 1 ? mHandle.markRunning() : !mHandle.isDone();
+        if (proceed) {
+            mMetrics.markDequeued();
+            NetUtils.executeRequest(this);
+        }
+    }
+
+    /**
+     * Stop the call wherever it is: queued, waiting to retry or running.
+     */
+    void cancel() {
+        NetUtils.getRequestScheduler().remove(this);
+        Future<?> pendingRetry = mPendingRetry;
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+        }
+        mRequest.abort();
+    }
+
+    /**
+     * @return a copy of the current request to send on the next attempt, or null if the policy does not allow another
+     *         attempt or the request cannot be copied.
+     */
+    HttpRequestBase prepareRetry() {
+        if (mRetryPolicy == null || mHandle.isDone() || !mRetryPolicy.canRetry(mRequest, mAttempt)) {
+            return null;
+        }
+
+        HttpRequestBase request = mRequest;
+        if (!(request instanceof HttpEntityEnclosingRequestBase)) {
+            try {
+                return (HttpRequestBase) request.clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+        }
+
+        // Cloning a request clones its entity, which most streaming entities do not support. Copy the request
+        // without it and send the original, repeatable body again; each attempt compresses and wraps it afresh.
+        HttpEntityEnclosingRequestBase enclosing = (HttpEntityEnclosingRequestBase) request;
+        HttpEntity sent = enclosing.getEntity();
+        HttpEntityEnclosingRequestBase copy;
+        enclosing.setEntity(null);
+        try {
+            copy = (HttpEntityEnclosingRequestBase) enclosing.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        } finally {
+            enclosing.setEntity(sent);
+        }
+        copy.setEntity(mEntity);
+        return copy;
+    }
+
+    /**
+     * Send a copy from {@link #prepareRetry} after a delay. The call goes back onto the scheduler rather than holding
+     * a worker thread while it waits.
+     */
+    void retry(HttpRequestBase copy, long delayMillis, ScheduledExecutorService timer) {
+        mRequest = copy;
+        mAttempt++;
+        mPendingRetry = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!mHandle.isDone()) {
+                    mMetrics.markEnqueued();
+                    requeue();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+
+        // A cancel that raced with the copy aborted the previous request; make sure it reaches this one.
+        if (mHandle.isDone()) {
+            cancel();
+        }
+    }
+
+    /**
+     * @param response the failed response, or null if the attempt did not get one.
+     * @return milliseconds to wait before the next attempt, or -1 if it should not be made.
+     */
+    long getRetryDelay(HttpResponse response) {
+        return mRetryPolicy.getDelay(mAttempt, response);
+    }
+}
@@ -0,0 +1,134 @@
+package com.esri.android.util;
+
+/**
+ * Settings for the shared, pooled HTTP client used by {@link NetUtils}.
+ *
+ * <p>Setters return the config so they can be chained, ie:
+ * <pre>
+ * NetUtils.setHttpClientConfig(new HttpClientConfig()
+ *         .setUserAgent("MyApp/1.0")
+ *         .setMaxConnectionsPerHost(4));
+ * </pre>
+ */
+public class HttpClientConfig {
+    public static final String DEFAULT_USER_AGENT = "MyUserAgent";
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 7000;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 30000;
+
+    private String mUserAgent = DEFAULT_USER_AGENT;
+    private int mConnectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int mSocketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int mMaxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+    private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private long mKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private long mIdleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+
+    public String getUserAgent() {
+        return mUserAgent;
+    }
+
+    /**
+     * @param userAgent the value sent in the "User-Agent" header of every request.
+     */
+    public HttpClientConfig setUserAgent(String userAgent) {
+        mUserAgent = userAgent;
+        return this;
+    }
+
+    public int getConnectionTimeout() {
+        return mConnectionTimeout;
+    }
+
+    /**
+     * @param connectionTimeout milliseconds to wait for a TCP connection to be established.
+     */
+    public HttpClientConfig setConnectionTimeout(int connectionTimeout) {
+        if (connectionTimeout < 0) {
+            throw new IllegalArgumentException("Connection timeout cannot be negative.");
+        }
+        mConnectionTimeout = connectionTimeout;
+        return this;
+    }
+
+    public int getSocketTimeout() {
+        return mSocketTimeout;
+    }
+
+    /**
+     * @param socketTimeout milliseconds to wait between packets of data once connected.
+     */
+    public HttpClientConfig setSocketTimeout(int socketTimeout) {
+        if (socketTimeout < 0) {
+            throw new IllegalArgumentException("Socket timeout cannot be negative.");
+        }
+        mSocketTimeout = socketTimeout;
+        return this;
+    }
+
+    public int getMaxTotalConnections() {
+        return mMaxTotalConnections;
+    }
+
+    /**
+     * @param maxTotalConnections the maximum number of pooled connections across all hosts.
+     */
+    public HttpClientConfig setMaxTotalConnections(int maxTotalConnections) {
+        if (maxTotalConnections < 1) {
+            throw new IllegalArgumentException("Max total connections must be at least 1.");
+        }
+        mMaxTotalConnections = maxTotalConnections;
+        return this;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    /**
+     * @param maxConnectionsPerHost the maximum number of pooled connections to a single host.
+     */
+    public HttpClientConfig setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Max connections per host must be at least 1.");
+        }
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    public long getKeepAliveMillis() {
+        return mKeepAliveMillis;
+    }
+
+    /**
+     * The longest a connection will be kept alive for reuse. If the server sends a shorter "Keep-Alive: timeout"
+     * the server's value wins.
+     *
+     * @param keepAliveMillis keep-alive duration in milliseconds, or 0 to disable connection reuse.
+     */
+    public HttpClientConfig setKeepAliveMillis(long keepAliveMillis) {
+        if (keepAliveMillis < 0) {
+            throw new IllegalArgumentException("Keep-alive cannot be negative.");
+        }
+        mKeepAliveMillis = keepAliveMillis;
+        return this;
+    }
+
+    public long getIdleConnectionTimeout() {
+        return mIdleConnectionTimeout;
+    }
+
+    /**
+     * @param idleConnectionTimeout milliseconds a pooled connection may sit unused before it is evicted.
+     */
+    public HttpClientConfig setIdleConnectionTimeout(long idleConnectionTimeout) {
+        if (idleConnectionTimeout < 1) {
+            throw new IllegalArgumentException("Idle connection timeout must be positive.");
+        }
+        mIdleConnectionTimeout = idleConnectionTimeout;
+        return this;
+    }
+}
@@ -0,0 +1,257 @@
+package com.esri.android.util;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Transparent gzip/deflate support for the shared HTTP client, and the byte counters that show what it saves.
+ *
+ * <p>Responses are decompressed as they are read, so callers always see the plain body. Request bodies are only
+ * compressed when asked to with {@link RequestOptions#setGzipRequestThreshold}.
+ */
+public final class HttpCompression {
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    private static final AtomicLong sRequestBytesUncompressed = new AtomicLong();
+    private static final AtomicLong sRequestBytesCompressed = new AtomicLong();
+    private static final AtomicLong sResponseBytesCompressed = new AtomicLong();
+    private static final AtomicLong sResponseBytesDecompressed = new AtomicLong();
+
+    private HttpCompression() {}
+
+    /**
+     * @return the total size of request bodies before they were gzipped.
+     */
+    public static long getRequestBytesUncompressed() {
+        return sRequestBytesUncompressed.get();
+    }
+
+    /**
+     * @return the total size of gzipped request bodies as sent.
+     */
+    public static long getRequestBytesCompressed() {
+        return sRequestBytesCompressed.get();
+    }
+
+    /**
+     * @return the total number of compressed response bytes read off the wire.
+     */
+    public static long getResponseBytesCompressed() {
+        return sResponseBytesCompressed.get();
+    }
+
+    /**
+     * @return the total number of bytes those compressed responses expanded to.
+     */
+    public static long getResponseBytesDecompressed() {
+        return sResponseBytesDecompressed.get();
+    }
+
+    /**
+     * Adds "Accept-Encoding: gzip, deflate" unless the caller set its own "Accept-Encoding" header, ie: "identity"
+     * for a ranged download.
+     */
+    static final HttpRequestInterceptor ACCEPT_ENCODING_INTERCEPTOR = new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            if (!request.containsHeader(ACCEPT_ENCODING)) {
+                request.addHeader(ACCEPT_ENCODING, "gzip, deflate");
+            }
+        }
+    };
+
+    /**
+     * Swaps a compressed response entity for one that decompresses as it is read.
+     */
+    static final HttpResponseInterceptor DECOMPRESSING_INTERCEPTOR = new HttpResponseInterceptor() {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+
+            Header encoding = entity.getContentEncoding();
+            if (encoding == null) {
+                return;
+            }
+
+            for (HeaderElement element : encoding.getElements()) {
+                String name = element.getName();
+                if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                    response.setEntity(new DecompressingEntity(entity, true));
+                    return;
+                } else if ("deflate".equalsIgnoreCase(name)) {
+                    response.setEntity(new DecompressingEntity(entity, false));
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * Gzip a request body if it is larger than the threshold.
+     *
+     * @param entity a repeatable request body.
+     * @param threshold the size, in bytes, above which the body is compressed; negative to never compress.
+     * @return a gzipped copy of the entity with "Content-Encoding: gzip", or the original entity.
+     */
+    static HttpEntity compressRequestEntity(HttpEntity entity, int threshold) throws IOException {
+        if (entity == null || threshold < 0 || !entity.isRepeatable() || entity.getContentEncoding() != null) {
+            return entity;
+        }
+
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= threshold) {
+            return entity;
+        }
+
+        int initialSize = length > 0 ? (int) Math.min(length / 4, 65536) : 512;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(initialSize);
+        GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+        CountingOutput counting = new CountingOutput(gzip);
+        entity.writeTo(counting);
+        gzip.close();
+
+        if (counting.count <= threshold || buffer.size() >= counting.count) {
+            return entity;
+        }
+
+        ByteArrayEntity compressed = new ByteArrayEntity(buffer.toByteArray());
+        compressed.setContentType(entity.getContentType());
+        compressed.setContentEncoding("gzip");
+        sRequestBytesUncompressed.addAndGet(counting.count);
+        sRequestBytesCompressed.addAndGet(compressed.getContentLength());
+        return compressed;
+    }
+
+    /**
+     * Counts the bytes written through it, so the size of a streamed body is known after compression.
+     */
+    private static final class CountingOutput extends FilterOutputStream {
+        long count;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Adds the number of bytes read through it to a counter.
+     */
+    private static final class CountingInput extends FilterInputStream {
+        private final AtomicLong mCounter;
+
+        CountingInput(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * A response entity that gzip- or deflate-decodes the wrapped entity's content as it is read.
+     */
+    private static final class DecompressingEntity extends HttpEntityWrapper {
+        private final boolean mGzip;
+
+        DecompressingEntity(HttpEntity wrapped, boolean gzip) {
+            super(wrapped);
+            mGzip = gzip;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream raw = new CountingInput(wrappedEntity.getContent(), sResponseBytesCompressed);
+            InputStream decoded;
+            if (mGzip) {
+                decoded = new GZIPInputStream(raw);
+            } else {
+                // "deflate" should be zlib-wrapped, but some servers send raw deflate data; sniff the zlib header.
+                BufferedInputStream buffered = new BufferedInputStream(raw, 2);
+                buffered.mark(2);
+                int cmf = buffered.read();
+                int flg = buffered.read();
+                buffered.reset();
+                boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+                decoded = new InflaterInputStream(buffered, new Inflater(!zlib));
+            }
+            return new CountingInput(decoded, sResponseBytesDecompressed);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
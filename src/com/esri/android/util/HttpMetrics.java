@@ -0,0 +1,277 @@
+package com.esri.android.util;
+
+import android.util.Log;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the {@link RequestMetrics} of every HTTP request made through {@link NetUtils}: they are aggregated into
+ * per-host {@link HostStats}, with a latency histogram, and passed to any registered {@link MetricsListener}.
+ */
+public final class HttpMetrics {
+    private static final String TAG = "HttpMetrics";
+
+    /**
+     * The {@link HttpContext} attribute holding the {@link RequestMetrics} of the request being executed.
+     */
+    static final String CONTEXT_ATTRIBUTE = "com.esri.android.util.request-metrics";
+
+    private static final List<MetricsListener> sListeners = new CopyOnWriteArrayList<MetricsListener>();
+    private static final ConcurrentHashMap<String, HostStats> sHostStats = new ConcurrentHashMap<String, HostStats>();
+
+    private HttpMetrics() {}
+
+    /**
+     * @param listener a {@link MetricsListener} to receive the metrics of every completed request.
+     */
+    public static void addListener(MetricsListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+        sListeners.add(listener);
+    }
+
+    public static void removeListener(MetricsListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * @param host a host name, ie: "my.api-server.com".
+     * @return the aggregated statistics for the host, or null if no request to it has completed.
+     */
+    public static HostStats getHostStats(String host) {
+        return sHostStats.get(host != null ? host : "");
+    }
+
+    /**
+     * @return the aggregated statistics of every host, keyed by host name.
+     */
+    public static Map<String, HostStats> getAllHostStats() {
+        return new HashMap<String, HostStats>(sHostStats);
+    }
+
+    /**
+     * Forget all aggregated statistics.
+     */
+    public static void reset() {
+        sHostStats.clear();
+    }
+
+    /**
+     * Aggregate a completed request and pass it to the listeners. Runs on the NetUtils timer thread, never the main
+     * thread.
+     */
+    static void record(RequestMetrics metrics) {
+        String host = metrics.getHost() != null ? metrics.getHost() : "";
+        HostStats stats = sHostStats.get(host);
+        if (stats == null) {
+            HostStats created = new HostStats();
+            stats = sHostStats.putIfAbsent(host, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(metrics);
+
+        for (MetricsListener listener : sListeners) {
+            try {
+                listener.onRequestComplete(metrics);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Metrics listener threw an exception.", e);
+            }
+        }
+    }
+
+    /**
+     * Records when the connection for a request is ready; request interceptors only run once it is established.
+     */
+    static final HttpRequestInterceptor CONNECT_TIMING_INTERCEPTOR = new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            Object metrics = context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (metrics instanceof RequestMetrics) {
+                ((RequestMetrics) metrics).markConnected();
+            }
+        }
+    };
+
+    /**
+     * Receives the {@link RequestMetrics} of each completed request, on a background thread. Requests that were
+     * cancelled, or failed before they could be queued, are not reported.
+     */
+    public interface MetricsListener {
+        public void onRequestComplete(RequestMetrics metrics);
+    }
+
+    /**
+     * Aggregated statistics for one host. Latencies are the total time of each request, from being made until its
+     * listener returned, counted into fixed buckets.
+     */
+    public static final class HostStats {
+        private static final long[] BUCKET_BOUNDS_MILLIS =
+                {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+        private final long[] mBuckets = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+        private long mCount;
+        private long mFailureCount;
+        private long mCacheHitCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+        private long mBytesIn;
+        private long mBytesOut;
+
+        private HostStats() {}
+
+        synchronized void record(RequestMetrics metrics) {
+            long millis = metrics.getTotalMillis();
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+
+            mCount++;
+            if (metrics.getOutcome() != RequestMetrics.Outcome.SUCCESS) {
+                mFailureCount++;
+            }
+            if (metrics.isFromCache()) {
+                mCacheHitCount++;
+            }
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+            if (!metrics.isCoalesced()) {
+                mBytesIn += metrics.getBytesReceived();
+                mBytesOut += metrics.getBytesSent();
+            }
+        }
+
+        /**
+         * @return the upper bounds, in milliseconds, of every histogram bucket but the last, which is unbounded.
+         */
+        public static long[] getBucketBoundsMillis() {
+            return BUCKET_BOUNDS_MILLIS.clone();
+        }
+
+        /**
+         * @return the number of requests in each bucket of {@link #getBucketBoundsMillis}, plus the unbounded last one.
+         */
+        public synchronized long[] getBucketCounts() {
+            return mBuckets.clone();
+        }
+
+        /**
+         * @param percentile the percentile to estimate, ie: 0.99.
+         * @return the upper bound of the bucket holding the percentile, or the slowest request seen if it falls in the
+         *         last bucket.
+         */
+        public synchronized long getPercentileMillis(double percentile) {
+            if (percentile < 0 || percentile > 1) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 1.");
+            }
+
+            long rank = (long) Math.ceil(percentile * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(BUCKET_BOUNDS_MILLIS[i], mMaxMillis);
+                }
+            }
+            return mMaxMillis;
+        }
+
+        /**
+         * @return the number of completed requests.
+         */
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the number of requests whose listener received onError or onFailure.
+         */
+        public synchronized long getFailureCount() {
+            return mFailureCount;
+        }
+
+        public synchronized long getCacheHitCount() {
+            return mCacheHitCount;
+        }
+
+        public synchronized long getAverageMillis() {
+            return mCount == 0 ? 0 : mTotalMillis / mCount;
+        }
+
+        public synchronized long getMaxMillis() {
+            return mMaxMillis;
+        }
+
+        /**
+         * @return the total size of response bodies read from the host, after decompression.
+         */
+        public synchronized long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         * @return the total size of request bodies sent to the host.
+         */
+        public synchronized long getBytesOut() {
+            return mBytesOut;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it and the time spent blocked in reads, so body reading can be told apart from
+     * parsing.
+     */
+    static final class TimedInputStream extends FilterInputStream {
+        private long mReadNanos;
+        private long mBytesRead;
+
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+
+        long getBytesRead() {
+            return mBytesRead;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mBytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mBytesRead += read;
+            }
+            return read;
+        }
+    }
+}
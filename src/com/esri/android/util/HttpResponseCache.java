@@ -0,0 +1,579 @@
+package com.esri.android.util;
+
+import android.content.Context;
+import android.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two-tier cache for GET responses made through {@link NetUtils}: a bounded in-memory LRU in front of a size-capped
+ * directory on disk. Entries honor "Cache-Control" and "Expires", and stale entries that carry an "ETag" or
+ * "Last-Modified" validator are revalidated with a conditional request so a 304 can be served from the cache.
+ *
+ * <p>Install one with {@link NetUtils#setResponseCache}.
+ */
+public class HttpResponseCache {
+    private static final String TAG = "HttpResponseCache";
+    private static final String DIRECTORY_NAME = "netutils-http";
+    private static final int DISK_FORMAT_VERSION = 1;
+
+    private final File mDirectory;
+    private final int mMaxMemoryBytes;
+    private final long mMaxDiskBytes;
+    private final Object mDiskLock = new Object();
+    private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mMemoryBytes;
+    private long mDiskBytes = -1;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mConditionalHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    /**
+     * @param directory the directory that holds the on-disk tier; it is created if needed.
+     * @param maxMemoryBytes the maximum number of body bytes held in memory.
+     * @param maxDiskBytes the maximum number of bytes stored on disk.
+     */
+    public HttpResponseCache(File directory, int maxMemoryBytes, long maxDiskBytes) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null.");
+        }
+
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes cannot be negative.");
+        }
+
+        mDirectory = directory;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Create a cache stored under the application's cache directory.
+     *
+     * @param context a {@link Context} object.
+     * @param maxMemoryBytes the maximum number of body bytes held in memory.
+     * @param maxDiskBytes the maximum number of bytes stored on disk.
+     */
+    public static HttpResponseCache create(Context context, int maxMemoryBytes, long maxDiskBytes) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null.");
+        }
+        return new HttpResponseCache(new File(context.getCacheDir(), DIRECTORY_NAME), maxMemoryBytes, maxDiskBytes);
+    }
+
+    /**
+     * Build a cache key from a URL and its query arguments. Arguments are sorted by name so the key does not depend
+     * on the iteration order of the supplied map.
+     */
+    public static String createKey(String url, Map<String, String> args) {
+        return createKey(url, args, null);
+    }
+
+    /**
+     * Build a cache key from a URL, its query arguments and the credentials sent with it, so a response fetched
+     * with one "Authorization" or "Cookie" header is never served to a request sent with another. Credentials are
+     * only kept as a digest, since keys are written to disk.
+     *
+     * @param headers the request headers, or null.
+     */
+    public static String createKey(String url, Map<String, String> args, Header[] headers) {
+        StringBuilder key = new StringBuilder(url);
+        if (args != null && !args.isEmpty()) {
+            key.append('?').append(NetUtils.urlencode(new TreeMap<String, String>(args)));
+        }
+
+        StringBuilder credentials = null;
+        if (headers != null) {
+            for (Header header : headers) {
+                if ("Authorization".equalsIgnoreCase(header.getName())
+                        || "Cookie".equalsIgnoreCase(header.getName())) {
+                    if (credentials == null) {
+                        credentials = new StringBuilder();
+                    }
+                    credentials.append(header.getName().toLowerCase()).append(':').append(header.getValue())
+                            .append('\n');
+                }
+            }
+        }
+        if (credentials != null) {
+            key.append('#').append(hex(digest("SHA-1", credentials.toString())));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the number of requests served from the cache without touching the network.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of stale entries the server confirmed were still valid with a 304.
+     */
+    public long getConditionalHitCount() {
+        return mConditionalHitCount.get();
+    }
+
+    /**
+     * @return the number of cacheable requests that had to be fetched in full from the network.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of response body bytes served from the cache instead of being downloaded.
+     */
+    public long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    /**
+     * Remove every entry from memory and disk.
+     */
+    public void clear() {
+        synchronized (mMemory) {
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+
+        synchronized (mDiskLock) {
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mDiskBytes = 0;
+        }
+    }
+
+    /**
+     * Look up an entry, checking memory first and then disk. Disk reads block, so only call this off the main thread.
+     *
+     * @return the entry, or null if nothing is cached for the key.
+     */
+    Entry get(String key) {
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        Entry entry = readFromDisk(key);
+        if (entry != null) {
+            putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    void recordHit(Entry entry) {
+        mHitCount.incrementAndGet();
+        mBytesServed.addAndGet(entry.body.length);
+    }
+
+    void recordConditionalHit(Entry entry) {
+        mConditionalHitCount.incrementAndGet();
+        mBytesServed.addAndGet(entry.body.length);
+    }
+
+    void recordMiss() {
+        mMissCount.incrementAndGet();
+    }
+
+    /**
+     * @return the largest body that will be captured for caching.
+     */
+    int getMaxEntryBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(mMaxMemoryBytes / 4, mMaxDiskBytes / 8));
+    }
+
+    /**
+     * Build an entry from a network response, or return null if the response may not be stored or would never be
+     * usable (no freshness lifetime and no validator).
+     */
+    static Entry fromResponse(HttpResponse response, byte[] body, String charset) {
+        long now = System.currentTimeMillis();
+        long expiresAt = computeExpiresAt(response, now);
+        if (expiresAt == Long.MIN_VALUE) {
+            return null;
+        }
+
+        String etag = headerValue(response, "ETag");
+        String lastModified = headerValue(response, "Last-Modified");
+        if (expiresAt <= now && etag == null && lastModified == null) {
+            return null;
+        }
+        return new Entry(body, charset, etag, lastModified, expiresAt);
+    }
+
+    /**
+     * Refresh a stored entry's lifetime and validators after the server answered a conditional request with a 304.
+     */
+    void revalidated(String key, Entry entry, HttpResponse response) {
+        long expiresAt = computeExpiresAt(response, System.currentTimeMillis());
+        String etag = headerValue(response, "ETag");
+        String lastModified = headerValue(response, "Last-Modified");
+        Entry updated = new Entry(entry.body, entry.charset, etag != null ? etag : entry.etag,
+                lastModified != null ? lastModified : entry.lastModified,
+                expiresAt == Long.MIN_VALUE ? 0 : expiresAt);
+        put(key, updated);
+    }
+
+    /**
+     * @return the absolute expiry time in milliseconds, 0 if the response must always be revalidated, or
+     * {@link Long#MIN_VALUE} if it must not be stored at all.
+     */
+    private static long computeExpiresAt(HttpResponse response, long now) {
+        // Read every directive first: no-store beats everything, and no-cache beats max-age, wherever they appear.
+        boolean noCache = false;
+        String maxAge = null;
+        Header[] cacheControls = response.getHeaders("Cache-Control");
+        for (Header cacheControl : cacheControls) {
+            for (HeaderElement element : cacheControl.getElements()) {
+                String name = element.getName();
+                if ("no-store".equalsIgnoreCase(name)) {
+                    return Long.MIN_VALUE;
+                } else if ("no-cache".equalsIgnoreCase(name) || "must-revalidate".equalsIgnoreCase(name)) {
+                    noCache = true;
+                } else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null && maxAge == null) {
+                    maxAge = element.getValue();
+                }
+            }
+        }
+
+        if (noCache) {
+            return 0;
+        }
+        if (maxAge != null) {
+            try {
+                return now + Long.parseLong(maxAge) * 1000;
+            } catch (NumberFormatException ignored) {
+                return 0;
+            }
+        }
+
+        String expires = headerValue(response, "Expires");
+        if (expires != null) {
+            try {
+                return DateUtils.parseDate(expires).getTime();
+            } catch (DateParseException e) {
+                // An invalid Expires header means the response is already expired.
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        if (entry.body.length > mMaxMemoryBytes / 4) {
+            return;
+        }
+
+        synchronized (mMemory) {
+            Entry previous = mMemory.put(key, entry);
+            if (previous != null) {
+                mMemoryBytes -= previous.body.length;
+            }
+            mMemoryBytes += entry.body.length;
+
+            Iterator<Map.Entry<String, Entry>> it = mMemory.entrySet().iterator();
+            while (mMemoryBytes > mMaxMemoryBytes && it.hasNext()) {
+                mMemoryBytes -= it.next().getValue().body.length;
+                it.remove();
+            }
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (mMaxDiskBytes == 0) {
+            return null;
+        }
+
+        synchronized (mDiskLock) {
+            File file = fileForKey(key);
+            if (!file.exists()) {
+                return null;
+            }
+
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != DISK_FORMAT_VERSION || !key.equals(in.readUTF())) {
+                    return null;
+                }
+                long expiresAt = in.readLong();
+                String etag = readOptionalString(in);
+                String lastModified = readOptionalString(in);
+                String charset = readOptionalString(in);
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Invalid body length " + length + ".");
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+
+                // Touch the file so disk eviction is least-recently-used rather than least-recently-written.
+                file.setLastModified(System.currentTimeMillis());
+                return new Entry(body, charset, etag, lastModified, expiresAt);
+            } catch (IOException e) {
+                Log.d(TAG, "Discarding unreadable cache entry: " + e.getMessage());
+                deleteFile(file);
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (entry.body.length > mMaxDiskBytes / 8) {
+            return;
+        }
+
+        synchronized (mDiskLock) {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.d(TAG, "Unable to create cache directory " + mDirectory);
+                return;
+            }
+            ensureDiskSize();
+
+            File file = fileForKey(key);
+            File temp = new File(mDirectory, file.getName() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeInt(DISK_FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeLong(entry.expiresAt);
+                writeOptionalString(out, entry.etag);
+                writeOptionalString(out, entry.lastModified);
+                writeOptionalString(out, entry.charset);
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+                out.close();
+                out = null;
+
+                deleteFile(file);
+                if (temp.renameTo(file)) {
+                    mDiskBytes += file.length();
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Unable to write cache entry: " + e.getMessage());
+            } finally {
+                closeQuietly(out);
+                temp.delete();
+            }
+
+            trimDisk();
+        }
+    }
+
+    private void ensureDiskSize() {
+        if (mDiskBytes >= 0) {
+            return;
+        }
+
+        mDiskBytes = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                mDiskBytes += file.length();
+            }
+        }
+    }
+
+    private void trimDisk() {
+        if (mDiskBytes <= mMaxDiskBytes) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && mDiskBytes > mMaxDiskBytes; i++) {
+            deleteFile(files[i]);
+        }
+    }
+
+    private void deleteFile(File file) {
+        long length = file.length();
+        if (file.delete() && mDiskBytes >= 0) {
+            mDiskBytes -= length;
+        }
+    }
+
+    private File fileForKey(String key) {
+        return new File(mDirectory, hex(digest("MD5", key)));
+    }
+
+    private static byte[] digest(String algorithm, String value) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    /**
+     * A cached response body with its freshness lifetime and validators. Entries are immutable.
+     */
+    static final class Entry {
+        final byte[] body;
+        final String charset;
+        final String etag;
+        final String lastModified;
+        final long expiresAt;
+
+        Entry(byte[] body, String charset, String etag, String lastModified, long expiresAt) {
+            this.body = body;
+            this.charset = charset;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * Copies everything read through it into a buffer, up to a limit, so a response can be decoded and cached in a
+     * single pass. Once the limit is exceeded the copy is discarded and the stream simply passes data through.
+     */
+    static final class CaptureInputStream extends FilterInputStream {
+        private final int mLimit;
+        private ByteArrayOutputStream mCapture;
+
+        CaptureInputStream(InputStream in, int limit) {
+            super(in);
+            mLimit = limit;
+            mCapture = new ByteArrayOutputStream(Math.min(limit, 8192));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && mCapture != null) {
+                mCapture.write(b);
+                checkLimit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0 && mCapture != null) {
+                mCapture.write(buffer, offset, read);
+                checkLimit();
+            }
+            return read;
+        }
+
+        /**
+         * Read whatever the decoder left unread, then return the complete body.
+         *
+         * @return the captured body, or null if it was larger than the limit.
+         */
+        byte[] drain() throws IOException {
+            byte[] buffer = new byte[1024];
+            while (mCapture != null && read(buffer, 0, buffer.length) != -1) {
+                // Keep reading until the end of the stream.
+            }
+            return mCapture != null ? mCapture.toByteArray() : null;
+        }
+
+        private void checkLimit() {
+            if (mCapture.size() > mLimit) {
+                mCapture = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.esri.android.util;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.protocol.HTTP;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * A request body that serializes a {@link JSONObject} or {@link JSONArray} straight to the connection as UTF-8,
+ * sent with chunked transfer encoding, rather than building the whole document as a String first.
+ *
+ * <p>The JSON is read while the request is being sent, and again on retries, so it must not be modified until the
+ * request has completed.
+ */
+public class JsonStreamEntity extends AbstractHttpEntity {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Object mValue;
+
+    public JsonStreamEntity(JSONObject json) {
+        this((Object) json);
+    }
+
+    public JsonStreamEntity(JSONArray json) {
+        this((Object) json);
+    }
+
+    private JsonStreamEntity(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("JSON cannot be null.");
+        }
+
+        mValue = value;
+        setContentType("application/json; charset=" + HTTP.UTF_8);
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Serialize the whole document into memory. Only used by code that needs the body as a stream, ie: to store it
+     * in an {@link OfflineRequestQueue}; sending the request uses {@link #writeTo}.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+        writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream cannot be null.");
+        }
+
+        // Not closed: the connection owns the stream.
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, HTTP.UTF_8), BUFFER_SIZE);
+        writeValue(writer, mValue);
+        writer.flush();
+    }
+
+    private static void writeValue(Writer writer, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writer.write("null");
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.write('{');
+            boolean first = true;
+            for (Iterator<?> keys = object.keys(); keys.hasNext(); ) {
+                String key = (String) keys.next();
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeString(writer, key);
+                writer.write(':');
+                writeValue(writer, object.opt(key));
+            }
+            writer.write('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.write('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeValue(writer, array.opt(i));
+            }
+            writer.write(']');
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Number) {
+            try {
+                writer.write(JSONObject.numberToString((Number) value));
+            } catch (JSONException e) {
+                throw new IOException("Cannot serialize number: " + e.getMessage());
+            }
+        } else {
+            writeString(writer, value.toString());
+        }
+    }
+
+    /**
+     * Write a quoted string with the same escaping as {@link JSONObject#quote}.
+     */
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    writer.write('\\');
+                    writer.write(c);
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+}
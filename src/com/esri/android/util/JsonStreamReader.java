@@ -0,0 +1,283 @@
+package com.esri.android.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A small pull parser that builds {@link JSONObject} and {@link JSONArray} trees straight from a {@link Reader}, so a
+ * response body never has to be held in memory as a single String before it is parsed.
+ *
+ * <p>{@link android.util.JsonReader} would do the job, but it is not available before API 11.
+ */
+public final class JsonStreamReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private final StringBuilder mScratch = new StringBuilder();
+    private int mPos;
+    private int mLimit;
+
+    public JsonStreamReader(Reader reader) {
+        if (reader == null) {
+            throw new IllegalArgumentException("Reader cannot be null.");
+        }
+        mReader = reader;
+    }
+
+    /**
+     * Read the next value, which must be a JSON object.
+     */
+    public JSONObject nextObject() throws IOException, JSONException {
+        Object value = nextValue();
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Expected a JSON object but found " + describe(value));
+        }
+        return (JSONObject) value;
+    }
+
+    /**
+     * Read the next value, which must be a JSON array.
+     */
+    public JSONArray nextArray() throws IOException, JSONException {
+        Object value = nextValue();
+        if (!(value instanceof JSONArray)) {
+            throw new JSONException("Expected a JSON array but found " + describe(value));
+        }
+        return (JSONArray) value;
+    }
+
+    /**
+     * Read the next value of any type.
+     *
+     * @return a {@link JSONObject}, {@link JSONArray}, String, Boolean, Integer, Long, Double or
+     * {@link JSONObject#NULL}.
+     */
+    public Object nextValue() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case -1:
+                throw new JSONException("End of input");
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+            case '\'':
+                return readString((char) c);
+            default:
+                unread(c);
+                return readLiteral();
+        }
+    }
+
+    private JSONObject readObject() throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return object;
+        }
+        unread(c);
+
+        while (true) {
+            c = nextNonWhitespace();
+            String name;
+            if (c == '"' || c == '\'') {
+                name = readString((char) c);
+            } else {
+                throw syntaxError("Expected a name");
+            }
+
+            c = nextNonWhitespace();
+            if (c != ':' && c != '=') {
+                throw syntaxError("Expected ':' after " + name);
+            }
+            if (c == '=' && peek() == '>') {
+                mPos++;
+            }
+
+            object.put(name, nextValue());
+
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return object;
+            } else if (c != ',' && c != ';') {
+                throw syntaxError("Unterminated object");
+            }
+        }
+    }
+
+    private JSONArray readArray() throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return array;
+        }
+        unread(c);
+
+        while (true) {
+            array.put(nextValue());
+
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return array;
+            } else if (c != ',' && c != ';') {
+                throw syntaxError("Unterminated array");
+            }
+        }
+    }
+
+    private String readString(char quote) throws IOException, JSONException {
+        StringBuilder builder = mScratch;
+        builder.setLength(0);
+
+        while (true) {
+            int start = mPos;
+            while (mPos < mLimit) {
+                char c = mBuffer[mPos++];
+                if (c == quote) {
+                    builder.append(mBuffer, start, mPos - start - 1);
+                    return builder.toString();
+                } else if (c == '\\') {
+                    builder.append(mBuffer, start, mPos - start - 1);
+                    builder.append(readEscapeCharacter());
+                    start = mPos;
+                }
+            }
+            builder.append(mBuffer, start, mPos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscapeCharacter() throws IOException, JSONException {
+        int c = read();
+        switch (c) {
+            case -1:
+                throw syntaxError("Unterminated escape sequence");
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int hex = Character.digit(read(), 16);
+                    if (hex == -1) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | hex;
+                }
+                return (char) value;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                return (char) c;
+        }
+    }
+
+    private Object readLiteral() throws IOException, JSONException {
+        StringBuilder builder = mScratch;
+        builder.setLength(0);
+
+        int c;
+        while ((c = read()) != -1) {
+            if (c <= ' ' || ",:]}/\\\"[{;=#".indexOf(c) != -1) {
+                unread(c);
+                break;
+            }
+            builder.append((char) c);
+        }
+
+        if (builder.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+
+        String literal = builder.toString();
+        if ("null".equalsIgnoreCase(literal)) {
+            return JSONObject.NULL;
+        } else if ("true".equalsIgnoreCase(literal)) {
+            return Boolean.TRUE;
+        } else if ("false".equalsIgnoreCase(literal)) {
+            return Boolean.FALSE;
+        }
+
+        char first = literal.charAt(0);
+        if ((first >= '0' && first <= '9') || first == '-') {
+            try {
+                if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+                    long longValue = Long.parseLong(literal);
+                    if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                        return (int) longValue;
+                    }
+                    return longValue;
+                }
+                return Double.valueOf(literal);
+            } catch (NumberFormatException ignored) {
+                // Fall through and return the literal as a String, as JSONTokener does.
+            }
+        }
+        return literal;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == -1 || c > ' ') {
+                return c;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos];
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++];
+    }
+
+    /**
+     * Push back the character most recently returned by {@link #read}. A character is always read from the current
+     * buffer, so stepping back one position is safe.
+     */
+    private void unread(int c) {
+        if (c != -1) {
+            mPos--;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int count = mReader.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            mPos = mLimit = 0;
+            return false;
+        }
+        mPos = 0;
+        mLimit = count;
+        return true;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message);
+    }
+
+    private static String describe(Object value) {
+        return value == null ? "null" : value.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,721 @@
+package com.esri.android.util;
+
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SharedPreferences} kept in a memory-mapped, append-only log instead of an XML file. A commit appends one
+ * small checksummed record per changed key rather than rewriting every value, and loading replays the log into an
+ * in-memory index. Once most of the log is overwritten values, it is compacted on a background thread into a new
+ * file that replaces the old one by rename.
+ *
+ * <p>Register it with {@link SharedPrefsUtils#registerStore} to use it through the usual typed getters and setters,
+ * ie: for counters, sync cursors or the last known location.
+ *
+ * <p>Records are in the page cache as soon as a commit returns, so they survive the process being killed; call
+ * {@link #sync} to also survive losing power. A record torn by a crash fails its checksum and is dropped, along with
+ * anything after it, as is a record of a type this version does not know. Unlike the framework's preferences,
+ * {@link Editor#apply} writes on the calling thread (it is as cheap as a memory copy), listeners are called on the
+ * thread that made the change, and the file must only be opened once per process.
+ */
+public final class MappedPreferences implements SharedPreferences {
+    private static final int MAGIC = 0x4D505246; // "MPRF"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int PAGE_BYTES = 4096;
+    private static final int INITIAL_BYTES = 4 * PAGE_BYTES;
+    // Logs smaller than this are never worth compacting.
+    private static final int COMPACT_MIN_BYTES = 64 * 1024;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+    private static final byte TYPE_REMOVE = 7;
+    private static final byte TYPE_CLEAR = 8;
+
+    private static final ExecutorService sCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MappedPreferences-Compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File mFile;
+    // Written under this; read without a lock.
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<String, Object>();
+
+    // Guarded by this.
+    private final Map<String, Integer> mRecordBytes = new HashMap<String, Integer>();
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
+            new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+    private LogFile mLog;
+    private long mLiveBytes;
+    private Set<String> mChangedWhileCompacting;
+    private boolean mCompacting;
+
+    /**
+     * Open a log, creating it if needed. Opening reads the whole log, so do it off the main thread.
+     *
+     * @param file the log file, ie: new File(context.getFilesDir(), "location.log").
+     * @throws IOException if the file cannot be mapped, or is not a preferences log.
+     */
+    public MappedPreferences(File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null.");
+        }
+        mFile = file;
+        // An unfinished compaction never replaced the log, so its output can go.
+        getCompactFile().delete();
+        mLog = new LogFile(file, false);
+        synchronized (this) {
+            try {
+                replay();
+            } catch (IOException e) {
+                mLog.close();
+                throw e;
+            }
+            maybeCompact();
+        }
+    }
+
+    /**
+     * Force every record to the storage device.
+     *
+     * @throws IOException if the log is closed.
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen().force();
+    }
+
+    /**
+     * Sync and release the log. Later commits fail, and reads return the last values.
+     */
+    public synchronized void close() throws IOException {
+        if (mLog != null) {
+            try {
+                mLog.force();
+            } finally {
+                mLog.close();
+                mLog = null;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        String value = (String) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return a copy of the stored set, or the default.
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, Set<String> defaultValues) {
+        Set<String> values = (Set<String>) mValues.get(key);
+        return values != null ? new HashSet<String>(values) : defaultValues;
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        Integer value = (Integer) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        Long value = (Long) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defaultValue) {
+        Float value = (Float) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Boolean value = (Boolean) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new LogEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.put(listener, this);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private LogFile checkOpen() throws IOException {
+        if (mLog == null) {
+            throw new IOException("Preferences log is closed: " + mFile);
+        }
+        return mLog;
+    }
+
+    private File getCompactFile() {
+        return new File(mFile.getPath() + ".compact");
+    }
+
+    /**
+     * Rebuild the index from the log, stopping at its end or at the first damaged record.
+     */
+    private void replay() throws IOException {
+        ByteBuffer buffer = mLog.mBuffer;
+        int position = HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.position(position + RECORD_HEADER_BYTES);
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+
+            int recordBytes = RECORD_HEADER_BYTES + length;
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            byte type = record.get();
+            String key = null;
+            Object value = null;
+            try {
+                if (type != TYPE_CLEAR) {
+                    key = readString(record);
+                }
+                if (type != TYPE_CLEAR && type != TYPE_REMOVE) {
+                    value = readValue(type, record);
+                    if (value == null) {
+                        // A type this version does not know; handled like a damaged record.
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Fields that overrun the record.
+                break;
+            }
+
+            if (type == TYPE_CLEAR) {
+                mValues.clear();
+                mRecordBytes.clear();
+                mLiveBytes = 0;
+            } else {
+                Integer old = mRecordBytes.remove(key);
+                if (old != null) {
+                    mLiveBytes -= old;
+                }
+                if (type == TYPE_REMOVE) {
+                    mValues.remove(key);
+                } else {
+                    mValues.put(key, value);
+                    mRecordBytes.put(key, recordBytes);
+                    mLiveBytes += recordBytes;
+                }
+            }
+            position += recordBytes;
+        }
+
+        // Clear whatever follows the last good record, so a shorter record written over it cannot be followed by
+        // stale bytes that happen to look valid.
+        mLog.truncate(position);
+    }
+
+    /**
+     * Append a record and update the index. Call with the lock held.
+     *
+     * @param value the new value, or null to remove the key.
+     */
+    private void write(String key, Object value) throws IOException {
+        byte[] record = value != null ? encode(typeOf(value), key, value) : encode(TYPE_REMOVE, key, null);
+        checkOpen().append(record);
+
+        Integer old = mRecordBytes.remove(key);
+        if (old != null) {
+            mLiveBytes -= old;
+        }
+        if (value != null) {
+            mValues.put(key, value);
+            mRecordBytes.put(key, record.length);
+            mLiveBytes += record.length;
+        } else {
+            mValues.remove(key);
+        }
+        if (mChangedWhileCompacting != null) {
+            mChangedWhileCompacting.add(key);
+        }
+    }
+
+    /**
+     * Drop every value. Call with the lock held.
+     */
+    private void clear() throws IOException {
+        checkOpen().append(encode(TYPE_CLEAR, null, null));
+        if (mChangedWhileCompacting != null) {
+            mChangedWhileCompacting.addAll(mValues.keySet());
+        }
+        mValues.clear();
+        mRecordBytes.clear();
+        mLiveBytes = 0;
+    }
+
+    /**
+     * Start a compaction once most of the log is values that have since been replaced. Call with the lock held.
+     */
+    private void maybeCompact() {
+        if (mCompacting || mLog == null) {
+            return;
+        }
+        int used = mLog.mPosition;
+        if (used < COMPACT_MIN_BYTES || mLiveBytes * 2 > used) {
+            return;
+        }
+
+        mCompacting = true;
+        mChangedWhileCompacting = new HashSet<String>();
+        final Map<String, Object> snapshot = new HashMap<String, Object>(mValues);
+        sCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Write the live values to a new log, catch it up with the changes made meanwhile, and swap it in.
+     */
+    private void compact(Map<String, Object> snapshot) {
+        File compactFile = getCompactFile();
+        LogFile log = null;
+        try {
+            log = new LogFile(compactFile, true);
+            Map<String, Integer> recordBytes = new HashMap<String, Integer>();
+            long liveBytes = 0;
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                byte[] record = encode(typeOf(entry.getValue()), entry.getKey(), entry.getValue());
+                log.append(record);
+                recordBytes.put(entry.getKey(), record.length);
+                liveBytes += record.length;
+            }
+
+            synchronized (this) {
+                if (mLog == null) {
+                    return;
+                }
+                for (String key : mChangedWhileCompacting) {
+                    Object value = mValues.get(key);
+                    byte[] record = value != null ? encode(typeOf(value), key, value) : encode(TYPE_REMOVE, key, null);
+                    log.append(record);
+                    Integer old = recordBytes.remove(key);
+                    if (old != null) {
+                        liveBytes -= old;
+                    }
+                    if (value != null) {
+                        recordBytes.put(key, record.length);
+                        liveBytes += record.length;
+                    }
+                }
+
+                log.force();
+                if (!compactFile.renameTo(mFile)) {
+                    throw new IOException("Unable to replace " + mFile);
+                }
+                mLog.close();
+                mLog = log;
+                log = null;
+                mRecordBytes.clear();
+                mRecordBytes.putAll(recordBytes);
+                mLiveBytes = liveBytes;
+            }
+        } catch (IOException e) {
+            // The old log is still complete; the next commit will try again.
+        } finally {
+            if (log != null) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    // Nothing more to release.
+                }
+                compactFile.delete();
+            }
+            synchronized (this) {
+                mChangedWhileCompacting = null;
+                mCompacting = false;
+            }
+        }
+    }
+
+    private void notifyListeners(Set<String> keys) {
+        List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (this) {
+            if (keys.isEmpty() || mListeners.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<OnSharedPreferenceChangeListener>(mListeners.keySet());
+        }
+        for (String key : keys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private static byte typeOf(Object value) {
+        if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Set) {
+            return TYPE_STRING_SET;
+        }
+        throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName() + ".");
+    }
+
+    /**
+     * @return a whole record: payload length, payload checksum, then the type, key and value.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encode(byte type, String key, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        if (type != TYPE_CLEAR) {
+            writeString(out, key);
+        }
+        switch (type) {
+            case TYPE_STRING:
+                writeString(out, (String) value);
+                break;
+            case TYPE_INT:
+                out.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                out.writeLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TYPE_BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case TYPE_STRING_SET:
+                Set<String> values = (Set<String>) value;
+                out.writeInt(values.size());
+                for (String element : values) {
+                    writeString(out, element);
+                }
+                break;
+        }
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - RECORD_HEADER_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_BYTES, length);
+        ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * @return the value, or null if the type is unknown.
+     */
+    private static Object readValue(byte type, ByteBuffer record) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return readString(record);
+            case TYPE_INT:
+                return record.getInt();
+            case TYPE_LONG:
+                return record.getLong();
+            case TYPE_FLOAT:
+                return record.getFloat();
+            case TYPE_BOOLEAN:
+                return record.get() != 0;
+            case TYPE_STRING_SET:
+                int size = record.getInt();
+                Set<String> values = new HashSet<String>();
+                for (int i = 0; i < size; i++) {
+                    values.add(readString(record));
+                }
+                return Collections.unmodifiableSet(values);
+            default:
+                return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer record) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * One mapped log file: the header, then records up to {@link #mPosition}, then zeros.
+     */
+    private static final class LogFile {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private MappedByteBuffer mBuffer;
+        private int mPosition;
+
+        LogFile(File file, boolean truncate) throws IOException {
+            mFile = new RandomAccessFile(file, "rw");
+            try {
+                if (truncate) {
+                    mFile.setLength(0);
+                }
+                mChannel = mFile.getChannel();
+                long length = mFile.length();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Preferences log is too large: " + file);
+                }
+
+                int magic = 0;
+                int version = 0;
+                if (length >= HEADER_BYTES) {
+                    magic = mFile.readInt();
+                    version = mFile.readInt();
+                }
+                if (magic == 0 && version == 0) {
+                    // New, or a crash came between sizing the file and writing the header.
+                    map(Math.max((int) length, INITIAL_BYTES));
+                    mBuffer.putInt(0, MAGIC);
+                    mBuffer.putInt(4, VERSION);
+                } else if (magic == MAGIC && version == VERSION) {
+                    map((int) length);
+                } else {
+                    throw new IOException("Not a preferences log: " + file);
+                }
+                mPosition = HEADER_BYTES;
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Write the record's body before its length, so a record is not seen until it is whole.
+         */
+        void append(byte[] record) throws IOException {
+            ensureCapacity(mPosition + record.length + RECORD_HEADER_BYTES);
+            mBuffer.position(mPosition + 4);
+            mBuffer.put(record, 4, record.length - 4);
+            mBuffer.putInt(mPosition, ByteBuffer.wrap(record).getInt());
+            mPosition += record.length;
+        }
+
+        /**
+         * Zero everything from the position on, and append from there.
+         */
+        void truncate(int position) {
+            byte[] zeros = new byte[PAGE_BYTES];
+            mBuffer.position(position);
+            while (mBuffer.hasRemaining()) {
+                mBuffer.put(zeros, 0, Math.min(zeros.length, mBuffer.remaining()));
+            }
+            mPosition = position;
+        }
+
+        void force() {
+            mBuffer.force();
+        }
+
+        void close() throws IOException {
+            mFile.close();
+        }
+
+        private void ensureCapacity(int bytes) throws IOException {
+            if (bytes <= mBuffer.capacity()) {
+                return;
+            }
+            long capacity = mBuffer.capacity();
+            while (capacity < bytes) {
+                capacity *= 2;
+            }
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("Preferences log is full.");
+            }
+            map((int) capacity);
+        }
+
+        private void map(int capacity) throws IOException {
+            int pages = (capacity + PAGE_BYTES - 1) / PAGE_BYTES;
+            long size = (long) pages * PAGE_BYTES;
+            mFile.setLength(size);
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Collects changes and appends them, one record per key whose value actually changes, on commit.
+     */
+    private final class LogEditor implements Editor {
+        private final Map<String, Object> mChanges = new LinkedHashMap<String, Object>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        /**
+         * Store a copy of the set.
+         */
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values != null ? Collections.unmodifiableSet(new HashSet<String>(values)) : null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            Set<String> changed = new LinkedHashSet<String>();
+            boolean success = true;
+            synchronized (MappedPreferences.this) {
+                Map<String, Object> changes;
+                boolean clear;
+                synchronized (this) {
+                    changes = new LinkedHashMap<String, Object>(mChanges);
+                    clear = mClear;
+                    mChanges.clear();
+                    mClear = false;
+                }
+
+                try {
+                    if (clear && !mValues.isEmpty()) {
+                        changed.addAll(mValues.keySet());
+                        MappedPreferences.this.clear();
+                    }
+                    for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                        Object value = entry.getValue();
+                        Object current = mValues.get(entry.getKey());
+                        if (value == null ? current == null : value.equals(current)) {
+                            continue;
+                        }
+                        write(entry.getKey(), value);
+                        changed.add(entry.getKey());
+                    }
+                } catch (IOException e) {
+                    success = false;
+                }
+                maybeCompact();
+            }
+
+            notifyListeners(changed);
+            return success;
+        }
+
+        /**
+         * Same as {@link #commit}: appending is cheap enough to do on the calling thread.
+         */
+        @Override
+        public void apply() {
+            commit();
+        }
+
+        private synchronized Editor put(String key, Object value) {
+            if (key == null) {
+                throw new IllegalArgumentException("Key cannot be null.");
+            }
+            mChanges.put(key, value);
+            return this;
+        }
+    }
+}
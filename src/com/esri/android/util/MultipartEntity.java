@@ -0,0 +1,184 @@
+package com.esri.android.util;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.protocol.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A "multipart/form-data" request body of text fields and files. Files are streamed from disk as the request is
+ * sent, never held in memory, and the total length is known up front so no chunked encoding is needed.
+ *
+ * <p>ie: <code>new MultipartEntity().addField("title", "Survey").addFile("photo", file, "image/jpeg")</code>
+ */
+public class MultipartEntity extends AbstractHttpEntity {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DASHES = {'-', '-'};
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String mBoundary;
+    private final List<Part> mParts = new ArrayList<Part>();
+
+    public MultipartEntity() {
+        mBoundary = "----NetUtilsBoundary" + NetUtils.RandomString.getString(16);
+        setContentType("multipart/form-data; boundary=" + mBoundary);
+    }
+
+    /**
+     * Add a text field, sent as UTF-8.
+     */
+    public MultipartEntity addField(String name, String value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null.");
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null.");
+        }
+
+        byte[] header = encode("Content-Disposition: form-data; name=\"" + escape(name) + "\"\r\n"
+                + "Content-Type: text/plain; charset=" + HTTP.UTF_8 + "\r\n\r\n");
+        mParts.add(new Part(header, encode(value), null));
+        return this;
+    }
+
+    /**
+     * Add a file. The file is read each time the request is sent, so it must not change until the request completes.
+     *
+     * @param contentType the file's MIME type, ie: "image/jpeg", or null for "application/octet-stream".
+     */
+    public MultipartEntity addFile(String name, File file, String contentType) {
+        if (name == null) {
+            throw new IllegalArgumentException("Name cannot be null.");
+        }
+
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null.");
+        }
+
+        byte[] header = encode("Content-Disposition: form-data; name=\"" + escape(name) + "\"; filename=\""
+                + escape(file.getName()) + "\"\r\n"
+                + "Content-Type: " + (contentType != null ? contentType : "application/octet-stream") + "\r\n\r\n");
+        mParts.add(new Part(header, null, file));
+        return this;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        byte[] boundary = encode(mBoundary);
+        long length = 0;
+        for (Part part : mParts) {
+            length += DASHES.length + boundary.length + CRLF.length + part.header.length + part.getLength()
+                    + CRLF.length;
+        }
+        return length + DASHES.length + boundary.length + DASHES.length + CRLF.length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        Vector<InputStream> streams = new Vector<InputStream>();
+        try {
+            for (Part part : mParts) {
+                streams.add(new ByteArrayInputStream(getDelimiter()));
+                streams.add(new ByteArrayInputStream(part.header));
+                streams.add(part.file != null ? new FileInputStream(part.file) : new ByteArrayInputStream(part.body));
+                streams.add(new ByteArrayInputStream(CRLF));
+            }
+        } catch (IOException e) {
+            for (InputStream stream : streams) {
+                stream.close();
+            }
+            throw e;
+        }
+        streams.add(new ByteArrayInputStream(getCloseDelimiter()));
+        return new SequenceInputStream(streams.elements());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream cannot be null.");
+        }
+
+        byte[] buffer = null;
+        for (Part part : mParts) {
+            out.write(getDelimiter());
+            out.write(part.header);
+            if (part.file == null) {
+                out.write(part.body);
+            } else {
+                if (buffer == null) {
+                    buffer = new byte[BUFFER_SIZE];
+                }
+                InputStream in = new FileInputStream(part.file);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            out.write(CRLF);
+        }
+        out.write(getCloseDelimiter());
+        out.flush();
+    }
+
+    private byte[] getDelimiter() {
+        return encode("--" + mBoundary + "\r\n");
+    }
+
+    private byte[] getCloseDelimiter() {
+        return encode("--" + mBoundary + "--\r\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\r", "").replace("\n", "");
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes(HTTP.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Part {
+        final byte[] header;
+        final byte[] body;
+        final File file;
+
+        Part(byte[] header, byte[] body, File file) {
+            this.header = header;
+            this.body = body;
+            this.file = file;
+        }
+
+        long getLength() {
+            return file != null ? file.length() : body.length;
+        }
+    }
+}
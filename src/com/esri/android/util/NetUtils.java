@@ -1,44 +1,80 @@
 package com.esri.android.util;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Handler;
+import android.os.Message;
 import android.text.TextUtils;
-import android.util.Log;
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A pack of helpful JSON/HTTP and UDP utility methods.
@@ -47,16 +83,73 @@ import java.util.concurrent.Future;
  */
 final public class NetUtils {
     private static final String TAG = "NetUtils";
-    private static final String HTTP_CLIENT_USER_AGENT = "MyUserAgent";
-    private static final int HTTP_CLIENT_CONNECTION_TIMEOUT = 5000;
-    private static final int HTTP_CLIENT_SOCKET_TIMEOUT = 7000;
+    public static final int DEFAULT_UDP_PACKET_SIZE = 1024;
+    public static final int DEFAULT_UDP_POOL_SIZE = 32;
     private static ExecutorService sThreadExecutor = Executors.newCachedThreadPool();
-    private static ArrayList<Future<?>> sUdpFutures = new ArrayList<Future<?>>();
+    private static volatile RequestScheduler sRequestScheduler = new RequestScheduler();
+    private static final ConcurrentHashMap<Long, UdpSession> sUdpSessions = new ConcurrentHashMap<Long, UdpSession>();
+    private static UdpMultiplexer sUdpMultiplexer;
+    private static final Object sHttpClientLock = new Object();
+    private static HttpClientConfig sHttpClientConfig = new HttpClientConfig();
+    private static DefaultHttpClient sHttpClient;
+    private static ScheduledFuture<?> sIdleConnectionReaper;
+    // Pools replaced by setHttpClientConfig, shut down by the reaper once their last connection is released.
+    private static final List<ClientConnectionManager> sRetiredConnectionManagers =
+            new ArrayList<ClientConnectionManager>();
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "NetUtils-Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static volatile HttpResponseCache sResponseCache;
+    private static volatile RetryPolicy sRetryPolicy;
+    private static volatile RequestTracer sTracer = new RequestTracer.LogcatTracer(TAG);
+    private static volatile boolean sDeferBackgroundOnMetered;
+    private static ConnectivityMonitor.Listener sMeteredPolicyListener;
+    private static final RequestOptions DEFAULT_REQUEST_OPTIONS = new RequestOptions();
+    private static final ConcurrentHashMap<String, CoalescedRequest<?>> sInFlightRequests =
+            new ConcurrentHashMap<String, CoalescedRequest<?>>();
+
+    /**
+     * Decodes a response body that holds a JSON object.
+     */
+    public static final ResponseDecoder<JSONObject> JSON_OBJECT_DECODER = new ResponseDecoder<JSONObject>() {
+        @Override
+        public JSONObject decode(InputStream content, String charset) throws IOException, JSONException {
+            return new JsonStreamReader(new InputStreamReader(content, charset)).nextObject();
+        }
+    };
+
+    /**
+     * Decodes a response body that holds a JSON array.
+     */
+    public static final ResponseDecoder<JSONArray> JSON_ARRAY_DECODER = new ResponseDecoder<JSONArray>() {
+        @Override
+        public JSONArray decode(InputStream content, String charset) throws IOException, JSONException {
+            return new JsonStreamReader(new InputStreamReader(content, charset)).nextArray();
+        }
+    };
+
+    /**
+     * Decodes a response body that holds any JSON value; the result is a {@link JSONObject}, {@link JSONArray},
+     * String, Boolean, Number or {@link JSONObject#NULL}.
+     */
+    public static final ResponseDecoder<Object> JSON_VALUE_DECODER = new ResponseDecoder<Object>() {
+        @Override
+        public Object decode(InputStream content, String charset) throws IOException, JSONException {
+            return new JsonStreamReader(new InputStreamReader(content, charset)).nextValue();
+        }
+    };
 
     private NetUtils() {}
 
     /**
-     * Provide your own ExecutorService if you don't want this class to maintain its own cached thread pool.
+     * Provide your own ExecutorService if you don't want this class to maintain its own cached thread pool. The
+     * executor runs UDP work; HTTP requests run on the {@link RequestScheduler}, see {@link #setRequestScheduler}.
      *
      * @param threadExecutor
      */
@@ -68,16 +161,234 @@ final public class NetUtils {
         sThreadExecutor = threadExecutor;
     }
 
+    /**
+     * Provide your own {@link RequestScheduler} to change how many HTTP requests run at once, overall and per host.
+     * Requests already queued on the previous scheduler move to the new one; those running finish on the old one.
+     *
+     * @param scheduler a {@link RequestScheduler}.
+     */
+    public static void setRequestScheduler(RequestScheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null.");
+        }
+
+        RequestScheduler previous = sRequestScheduler;
+        sRequestScheduler = scheduler;
+        if (sDeferBackgroundOnMetered) {
+            scheduler.setBackgroundPaused(previous != null && previous.isBackgroundPaused());
+        }
+        if (previous != null && previous != scheduler) {
+            for (Runnable task : previous.shutdownAndDrain()) {
+                if (task instanceof RequestScheduler.Requeueable) {
+                    ((RequestScheduler.Requeueable) task).requeue();
+                } else {
+                    scheduler.execute(null, null, task);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the {@link RequestScheduler} HTTP requests run on, for its queue statistics.
+     */
+    public static RequestScheduler getRequestScheduler() {
+        return sRequestScheduler;
+    }
+
+    /**
+     * Hold {@link RequestScheduler.Priority#BACKGROUND} requests in the queue while the device is on a metered
+     * network, ie: mobile data, so prefetching only uses Wi-Fi. They are sent once an unmetered network connects.
+     *
+     * @param defer true to defer background requests on metered networks, false to send them on any network (the
+     *              default).
+     */
+    public static void setDeferBackgroundOnMetered(Context context, boolean defer) {
+        ConnectivityMonitor monitor = ConnectivityMonitor.get(context);
+        synchronized (NetUtils.class) {
+            sDeferBackgroundOnMetered = defer;
+            if (defer && sMeteredPolicyListener == null) {
+                sMeteredPolicyListener = new ConnectivityMonitor.Listener() {
+                    @Override
+                    public void onNetworkStateChanged(ConnectivityMonitor.NetworkState state) {
+                        if (sDeferBackgroundOnMetered) {
+                            sRequestScheduler.setBackgroundPaused(state.isMetered());
+                        }
+                    }
+                };
+                monitor.addListener(sMeteredPolicyListener);
+            } else if (!defer && sMeteredPolicyListener != null) {
+                monitor.removeListener(sMeteredPolicyListener);
+                sMeteredPolicyListener = null;
+            }
+        }
+        sRequestScheduler.setBackgroundPaused(defer && monitor.getState().isMetered());
+    }
+
+    /**
+     * Replace the settings used for the shared HTTP client. The connection pool is rebuilt with the new settings;
+     * requests already in flight finish on the old pool, whose idle connections are closed immediately. The old pool
+     * is shut down once those requests release their connections.
+     *
+     * @param config an {@link HttpClientConfig}, or null to restore the defaults.
+     */
+    public static void setHttpClientConfig(HttpClientConfig config) {
+        synchronized (sHttpClientLock) {
+            sHttpClientConfig = config != null ? config : new HttpClientConfig();
+            if (sHttpClient != null) {
+                ClientConnectionManager manager = sHttpClient.getConnectionManager();
+                manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                sRetiredConnectionManagers.add(manager);
+                sHttpClient = null;
+            }
+        }
+    }
+
+    /**
+     * Install a cache for responses to {@link #getJson}, {@link #getJsonArray} and {@link #get}. Requests are keyed on
+     * the URL plus the sorted query arguments.
+     *
+     * @param cache an {@link HttpResponseCache}, ie: from {@link HttpResponseCache#create}, or null to disable caching.
+     */
+    public static void setResponseCache(HttpResponseCache cache) {
+        sResponseCache = cache;
+    }
+
+    /**
+     * @return the installed {@link HttpResponseCache}, or null if responses are not cached.
+     */
+    public static HttpResponseCache getResponseCache() {
+        return sResponseCache;
+    }
+
+    /**
+     * Set the {@link RetryPolicy} used by requests whose {@link RequestOptions} do not set their own.
+     *
+     * @param policy a {@link RetryPolicy}, or null to never retry (the default).
+     */
+    public static void setRetryPolicy(RetryPolicy policy) {
+        sRetryPolicy = policy;
+    }
+
+    /**
+     * @return the default {@link RetryPolicy}, or null if requests are not retried by default.
+     */
+    public static RetryPolicy getRetryPolicy() {
+        return sRetryPolicy;
+    }
+
+    /**
+     * Set the {@link RequestTracer} that traces HTTP requests. The default traces to logcat under the "NetUtils" tag
+     * only when verbose logging is enabled for it, and never reads request bodies.
+     *
+     * @param tracer a {@link RequestTracer}, or null to trace nothing.
+     */
+    public static void setRequestTracer(RequestTracer tracer) {
+        sTracer = tracer != null ? tracer : RequestTracer.NONE;
+    }
+
+    public static RequestTracer getRequestTracer() {
+        return sTracer;
+    }
+
+    /**
+     * @param host a host name, ie: "my.api-server.com".
+     * @return the state of the host's {@link CircuitBreaker}; while it is {@link CircuitBreaker.State#OPEN},
+     *         requests to the host fail with a {@link CircuitOpenException} without being sent.
+     */
+    public static CircuitBreaker.State getCircuitState(String host) {
+        return CircuitBreaker.forHost(host).getState();
+    }
+
+    /**
+     * Close every pooled HTTP connection and release the shared client. A new client is created on the next request.
+     */
+    public static void shutdownHttpClient() {
+        synchronized (sHttpClientLock) {
+            if (sHttpClient != null) {
+                sHttpClient.getConnectionManager().shutdown();
+                sHttpClient = null;
+            }
+            for (ClientConnectionManager manager : sRetiredConnectionManagers) {
+                manager.shutdown();
+            }
+            sRetiredConnectionManagers.clear();
+            if (sIdleConnectionReaper != null) {
+                sIdleConnectionReaper.cancel(false);
+                sIdleConnectionReaper = null;
+            }
+        }
+    }
+
     /**
      * Send a GET request.
      *
      * @param args optional map of query arguments to be encoded and appended to the path.
      * @param headers optional headers to send with the request
      * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
      */
-    public static void getJson(Context context, String url, Map<String, String> args, Header[] headers,
-                               JsonRequestListener listener) {
+    public static RequestHandle getJson(Context context, String url, Map<String, String> args, Header[] headers,
+                                        JsonRequestListener listener) {
+        return get(context, url, args, headers, JSON_OBJECT_DECODER, null, listener);
+    }
+
+    /**
+     * Send a GET request.
+     *
+     * @param args optional map of query arguments to be encoded and appended to the path.
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle getJson(Context context, String url, Map<String, String> args, Header[] headers,
+                                        RequestOptions options, JsonRequestListener listener) {
+        return get(context, url, args, headers, JSON_OBJECT_DECODER, options, listener);
+    }
+
+    /**
+     * Send a GET request to a server that responds with a top-level JSON array.
+     *
+     * @param args optional map of query arguments to be encoded and appended to the path.
+     * @param headers optional headers to send with the request
+     * @param listener a {@link JsonArrayRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle getJsonArray(Context context, String url, Map<String, String> args, Header[] headers,
+                                             JsonArrayRequestListener listener) {
+        return get(context, url, args, headers, JSON_ARRAY_DECODER, null, listener);
+    }
+
+    /**
+     * Send a GET request to a server that responds with a top-level JSON array.
+     *
+     * @param args optional map of query arguments to be encoded and appended to the path.
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonArrayRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle getJsonArray(Context context, String url, Map<String, String> args, Header[] headers,
+                                             RequestOptions options, JsonArrayRequestListener listener) {
+        return get(context, url, args, headers, JSON_ARRAY_DECODER, options, listener);
+    }
+
+    /**
+     * Send a GET request and decode the response body with the supplied {@link ResponseDecoder}. The decoder reads
+     * directly from the response stream on the background thread, so the body is never held in memory as a String.
+     *
+     * @param args optional map of query arguments to be encoded and appended to the path.
+     * @param headers optional headers to send with the request
+     * @param decoder a {@link ResponseDecoder}, ie: {@link #JSON_OBJECT_DECODER}.
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link ResponseListener} for the decoded value.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static <T> RequestHandle get(Context context, String url, Map<String, String> args, Header[] headers,
+                                        ResponseDecoder<T> decoder, RequestOptions options,
+                                        ResponseListener<T> listener) {
         HttpGet request = new HttpGet();
+        String cacheKey = HttpResponseCache.createKey(url, args, headers);
         try {
             String qs = urlencode(args);
             if (!TextUtils.isEmpty(qs)) {
@@ -87,9 +398,9 @@ final public class NetUtils {
             request.setHeaders(headers);
         } catch (URISyntaxException e) {
             listener.onFailure(new Exception(e));
-            return;
+            return RequestHandle.failed();
         }
-        runHttpRequest(context, request, listener);
+        return runHttpRequest(context, request, cacheKey, decoder, options, listener);
     }
 
     /**
@@ -98,21 +409,28 @@ final public class NetUtils {
      * @param json json POST body
      * @param headers optional headers to send with the request
      * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
      */
-    public static void postJson(Context context, String url, JSONObject json, Header[] headers,
-                                JsonRequestListener listener) {
-        StringEntity entity;
-        try {
-            if (json == null) {
-                entity = new StringEntity("{}", HTTP.UTF_8);
-            } else {
-                entity = new StringEntity(json.toString(), HTTP.UTF_8);
-            }
-        } catch (UnsupportedEncodingException e) {
-            listener.onFailure(new Exception(e));
-            return;
-        }
-        runPostRequest(context, url, entity, headers, "application/json", listener);
+    public static RequestHandle postJson(Context context, String url, JSONObject json, Header[] headers,
+                                         JsonRequestListener listener) {
+        return postJson(context, url, json, headers, null, listener);
+    }
+
+    /**
+     * Send a POST request with a "Content-Type" value of "application/json". The body is serialized as it is sent,
+     * with chunked transfer encoding; see {@link JsonStreamEntity}.
+     *
+     * @param json json POST body
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postJson(Context context, String url, JSONObject json, Header[] headers,
+                                         RequestOptions options, JsonRequestListener listener) {
+        JsonStreamEntity entity = new JsonStreamEntity(json != null ? json : new JSONObject());
+        return runPostRequest(context, url, entity, headers, "application/json", JSON_OBJECT_DECODER, options,
+                listener);
     }
 
     /**
@@ -121,21 +439,28 @@ final public class NetUtils {
      * @param json json POST body
      * @param headers optional headers to send with the request
      * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
      */
-    public static void postJson(Context context, String url, JSONArray json, Header[] headers,
-                                JsonRequestListener listener) {
-        StringEntity entity;
-        try {
-            if (json == null) {
-                entity = new StringEntity("{}", HTTP.UTF_8);
-            } else {
-                entity = new StringEntity(json.toString(), HTTP.UTF_8);
-            }
-        } catch (UnsupportedEncodingException e) {
-            listener.onFailure(new Exception(e));
-            return;
-        }
-        runPostRequest(context, url, entity, headers, "application/json", listener);
+    public static RequestHandle postJson(Context context, String url, JSONArray json, Header[] headers,
+                                         JsonRequestListener listener) {
+        return postJson(context, url, json, headers, null, listener);
+    }
+
+    /**
+     * Send a POST request with a "Content-Type" value of "application/json". The body is serialized as it is sent,
+     * with chunked transfer encoding; see {@link JsonStreamEntity}.
+     *
+     * @param json json POST body
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postJson(Context context, String url, JSONArray json, Header[] headers,
+                                         RequestOptions options, JsonRequestListener listener) {
+        JsonStreamEntity entity = json != null ? new JsonStreamEntity(json) : new JsonStreamEntity(new JSONObject());
+        return runPostRequest(context, url, entity, headers, "application/json", JSON_OBJECT_DECODER, options,
+                listener);
     }
 
     /**
@@ -144,30 +469,191 @@ final public class NetUtils {
      * @param fields fields to be form encoded
      * @param headers optional headers to send with the request
      * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
      */
-    public static void postFormEncoded(Context context, String url, Map<String, String> fields, Header[] headers,
-                                       JsonRequestListener listener) {
+    public static RequestHandle postFormEncoded(Context context, String url, Map<String, String> fields,
+                                                Header[] headers, JsonRequestListener listener) {
+        return postFormEncoded(context, url, fields, headers, null, listener);
+    }
+
+    /**
+     * Send a POST request with a "Content-Type" value of "application/x-www-form-urlencoded".
+     *
+     * @param fields fields to be form encoded
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postFormEncoded(Context context, String url, Map<String, String> fields,
+                                                Header[] headers, RequestOptions options,
+                                                JsonRequestListener listener) {
         StringEntity entity;
         try {
             entity = new StringEntity(NetUtils.urlencode(fields), HTTP.UTF_8);
         } catch (UnsupportedEncodingException e) {
             listener.onFailure(new Exception(e));
-            return;
+            return RequestHandle.failed();
         }
-        runPostRequest(context, url, entity, headers, "application/x-www-form-urlencoded", listener);
+        return runPostRequest(context, url, entity, headers, "application/x-www-form-urlencoded",
+                JSON_OBJECT_DECODER, options, listener);
     }
 
     /**
-     * Send a POST request with a "Content-Type" value of "application/json".
+     * Upload a file as the raw POST body, streamed from disk as it is sent.
      *
-     * <p>This method adds the Access Token header to the request.
+     * @param file the file to send.
+     * @param contentType the file's MIME type, ie: "image/jpeg".
+     * @param headers optional headers to send with the request
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postFile(Context context, String url, File file, String contentType,
+                                         Header[] headers, JsonRequestListener listener) {
+        return postFile(context, url, file, contentType, headers, null, listener);
+    }
+
+    /**
+     * Upload a file as the raw POST body, streamed from disk as it is sent. Use
+     * {@link RequestOptions#setUploadProgressListener} to follow the upload.
+     *
+     * @param file the file to send.
+     * @param contentType the file's MIME type, ie: "image/jpeg".
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postFile(Context context, String url, File file, String contentType,
+                                         Header[] headers, RequestOptions options, JsonRequestListener listener) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null.");
+        }
+
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        return runPostRequest(context, url, new FileEntity(file, contentType), headers, contentType,
+                JSON_OBJECT_DECODER, options, listener);
+    }
+
+    /**
+     * Send a "multipart/form-data" POST request of fields and files.
      *
-     * @param entity a StringEntity containing a serialized JSONObject or JSONArray.
+     * @param entity a {@link MultipartEntity} holding the fields and files to send.
      * @param headers optional headers to send with the request
      * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
      */
-    private static void runPostRequest(Context context, String url, StringEntity entity, Header[] headers,
-                                       String contentType, JsonRequestListener listener) {
+    public static RequestHandle postMultipart(Context context, String url, MultipartEntity entity, Header[] headers,
+                                              JsonRequestListener listener) {
+        return postMultipart(context, url, entity, headers, null, listener);
+    }
+
+    /**
+     * Send a "multipart/form-data" POST request of fields and files. Files are streamed from disk as they are sent;
+     * use {@link RequestOptions#setUploadProgressListener} to follow the upload.
+     *
+     * @param entity a {@link MultipartEntity} holding the fields and files to send.
+     * @param headers optional headers to send with the request
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link JsonRequestListener}.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle postMultipart(Context context, String url, MultipartEntity entity, Header[] headers,
+                                              RequestOptions options, JsonRequestListener listener) {
+        if (entity == null) {
+            throw new IllegalArgumentException("Entity cannot be null.");
+        }
+        return runPostRequest(context, url, entity, headers, entity.getContentType().getValue(),
+                JSON_OBJECT_DECODER, options, listener);
+    }
+
+    /**
+     * Download a file, streaming the response body straight to disk.
+     *
+     * @param headers optional headers to send with the request
+     * @param destination the file to create or replace once the download is complete.
+     * @param listener a {@link ResponseListener} that receives the destination file.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle download(Context context, String url, Header[] headers, File destination,
+                                         ResponseListener<File> listener) {
+        return download(context, url, headers, destination, null, listener);
+    }
+
+    /**
+     * Download a file, streaming the response body straight to disk through a fixed-size buffer. If an earlier
+     * download to the same destination failed or was cancelled, it resumes where it stopped, as long as the file has
+     * not changed on the server.
+     *
+     * <p>Use {@link RequestOptions#setDownloadProgressListener} to follow the download and
+     * {@link RequestOptions#setDownloadSegments} to fetch a large file over several connections. On a non-success
+     * status the listener receives onError with a null file.
+     *
+     * @param headers optional headers to send with the request
+     * @param destination the file to create or replace once the download is complete.
+     * @param options optional {@link RequestOptions} for this request.
+     * @param listener a {@link ResponseListener} that receives the destination file.
+     * @return a {@link RequestHandle} that can be used to cancel the request.
+     */
+    public static RequestHandle download(Context context, String url, Header[] headers, File destination,
+                                         RequestOptions options, ResponseListener<File> listener) {
+        if (destination == null) {
+            throw new IllegalArgumentException("Destination cannot be null.");
+        }
+
+        final String requestId = RandomString.getString(5);
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            listener.onFailure(new Exception(e));
+            return RequestHandle.failed();
+        }
+
+        if (options == null) {
+            options = DEFAULT_REQUEST_OPTIONS;
+        }
+
+        // Check for an active network connection
+        if (!isConnected(context)) {
+            sTracer.trace(requestId, "Download failed! No active network connection.");
+            listener.onFailure(new Exception("No active network connection!"));
+            return RequestHandle.failed();
+        }
+
+        ResponseListener<File> threadSafeListener = getThreadSafeListener(context, listener, null);
+        ProgressListener progressListener = options.getDownloadProgressListener() != null
+                ? getThreadSafeListener(context, options.getDownloadProgressListener()) : null;
+        RequestHandle handle = new RequestHandle();
+        final FileDownload download = new FileDownload(requestId, uri, headers, destination, options, handle,
+                handle.gate(threadSafeListener), progressListener);
+        handle.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                download.cancel();
+            }
+        });
+
+        scheduleDeadline(handle, options, threadSafeListener);
+        download.start();
+        return handle;
+    }
+
+    /**
+     * Send a POST request with the given body and "Content-Type".
+     *
+     * @param entity the request body.
+     * @param headers optional headers to send with the request
+     * @param decoder a {@link ResponseDecoder} for the response body.
+     * @param options the {@link RequestOptions} for this request, or null for the defaults.
+     * @param listener a {@link ResponseListener}.
+     */
+    private static <T> RequestHandle runPostRequest(Context context, String url, HttpEntity entity,
+                                                    Header[] headers, String contentType,
+                                                    ResponseDecoder<T> decoder, RequestOptions options,
+                                                    ResponseListener<T> listener) {
         HttpPost request = new HttpPost();
         try {
             request.setURI(new URI(url));
@@ -178,77 +664,446 @@ final public class NetUtils {
 
         } catch (URISyntaxException e) {
             listener.onFailure(new Exception(e));
-            return;
+            return RequestHandle.failed();
         }
-        runHttpRequest(context, request, listener);
+        return runHttpRequest(context, request, null, decoder, options, listener);
     }
 
     /**
-     * Run a raw HttpRequest synchronously on the calling thread.
+     * Run a raw HttpRequest on a background thread.
      *
      * @param request an {@link HttpRequestBase} object.
-     * @param listener a {@link JsonRequestListener} object.
+     * @param cacheKey the key used to look up and store the response in the {@link HttpResponseCache}, or null if the
+     *                 response should not be cached.
+     * @param decoder a {@link ResponseDecoder} that reads the response body.
+     * @param options the {@link RequestOptions} for this request, or null for the defaults.
+     * @param listener a {@link ResponseListener} object.
+     * @return a {@link RequestHandle} for the request.
      */
-    private static void runHttpRequest(Context context, final HttpRequestBase request,
-                                       final JsonRequestListener listener) {
+    private static <T> RequestHandle runHttpRequest(Context context, final HttpRequestBase request,
+                                                    final String cacheKey, final ResponseDecoder<T> decoder,
+                                                    RequestOptions options, final ResponseListener<T> listener) {
         // Generate a unique ID for this request.
         final String requestId = RandomString.getString(5);
+        RequestTracer tracer = sTracer;
 
         // Initialize the request
-        Log.v(TAG, String.format("[%s] Executing new API request.", requestId));
+        tracer.trace(requestId, "Executing new API request.");
 
         // Check for a valid request URI
         if (request.getURI() == null) {
             throw new IllegalArgumentException("Cannot execute request with null URI!");
         }
 
+        final RequestMetrics metrics = new RequestMetrics(requestId, request.getMethod(),
+                request.getURI().toString(), request.getURI().getHost());
+
+        if (options == null) {
+            options = DEFAULT_REQUEST_OPTIONS;
+        }
+
+        // Writes that may be replayed later carry the same idempotency key on every attempt.
+        final OfflineRequestQueue offlineQueue = request instanceof HttpPost ? options.getOfflineQueue() : null;
+        if (offlineQueue != null && !request.containsHeader(OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER)) {
+            request.setHeader(OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER, UUID.randomUUID().toString());
+        }
+
         // Check for an active network connection
         if (!isConnected(context)) {
+            tracer.trace(requestId, "Request failed! No active network connection.");
+            if (offlineQueue != null) {
+                RequestHandle handle = new RequestHandle();
+                queueForReplay(offlineQueue, (HttpPost) request,
+                        handle.gate(getThreadSafeListener(context, listener, null)),
+                        new IOException("No active network connection!"));
+                return handle;
+            }
+
             // TODO: Pass a more appropriate exception type to the listener.
-            Log.v(TAG, String.format("[%s] Request failed! No active network connection.", requestId));
             listener.onFailure(new Exception("No active network connection!"));
-            return;
+            return RequestHandle.failed();
         }
 
-        final JsonRequestListener threadSafeListener = getThreadSafeListener(context, listener);
+        applyTimeouts(request, options);
+
+        final ResponseListener<T> threadSafeListener = getThreadSafeListener(context, listener, metrics);
+        RequestHandle handle;
+        RequestHandle networkHandle;
+        ResponseListener<T> requestListener;
+
+        // Attach to an identical GET that is already in flight, if there is one.
+        if (options.isCoalesce() && request instanceof HttpGet) {
+            String coalesceKey = getCoalesceKey(request, decoder);
+            while (true) {
+                CoalescedRequest<T> coalesced = new CoalescedRequest<T>(sInFlightRequests, coalesceKey);
+                @SuppressWarnings("unchecked")
+                CoalescedRequest<T> existing = (CoalescedRequest<T>) sInFlightRequests.putIfAbsent(coalesceKey,
+                        coalesced);
+                CoalescedRequest<T> target = existing != null ? existing : coalesced;
+
+                handle = new RequestHandle(target.getNetworkHandle());
+                if (target.addListener(handle.gate(threadSafeListener), handle)) {
+                    if (existing != null) {
+                        tracer.trace(requestId, "Coalesced with an identical request in flight.");
+                        metrics.markCoalesced();
+                        scheduleDeadline(handle, options, threadSafeListener);
+                        return handle;
+                    }
+                    networkHandle = coalesced.getNetworkHandle();
+                    requestListener = coalesced;
+                    break;
+                }
+                // The in-flight request completed while we were attaching; remove it if it is still registered.
+                sInFlightRequests.remove(coalesceKey, existing);
+            }
+        } else {
+            handle = new RequestHandle();
+            networkHandle = handle;
+            requestListener = handle.gate(threadSafeListener);
+        }
 
-        sThreadExecutor.execute(new Runnable() {
+        RetryPolicy retryPolicy = options.getRetryPolicy() != null ? options.getRetryPolicy() : sRetryPolicy;
+        ProgressListener uploadListener = options.getUploadProgressListener() != null
+                && request instanceof HttpEntityEnclosingRequest
+                ? getThreadSafeListener(context, options.getUploadProgressListener()) : null;
+        final HttpCall<T> call = new HttpCall<T>(requestId, request, cacheKey, decoder, options, retryPolicy,
+                networkHandle, requestListener, metrics, uploadListener);
+        networkHandle.setCanceller(new Runnable() {
             @Override
             public void run() {
-                try {
-                    DefaultHttpClient client = getHttpClient();
-                    Log.v(TAG, String.format("[%s] Sending request to '%s'.", requestId, request.getURI()));
+                call.cancel();
+            }
+        });
+
+        scheduleDeadline(handle, options, threadSafeListener);
+        call.submit();
+        return handle;
+    }
+
+    /**
+     * Apply per-request connect and read timeouts, where the {@link RequestOptions} override the client defaults.
+     */
+    static void applyTimeouts(HttpRequestBase request, RequestOptions options) {
+        if (options.getConnectTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(request.getParams(), options.getConnectTimeout());
+            ConnManagerParams.setTimeout(request.getParams(), options.getConnectTimeout());
+        }
+        if (options.getReadTimeout() > 0) {
+            HttpConnectionParams.setSoTimeout(request.getParams(), options.getReadTimeout());
+        }
+    }
+
+    /**
+     * Fail the request with a {@link java.util.concurrent.TimeoutException} if it has not finished within the total
+     * deadline from {@link RequestOptions#setTotalTimeout}.
+     */
+    private static <T> void scheduleDeadline(final RequestHandle handle, RequestOptions options,
+                                             final ResponseListener<T> listener) {
+        final long totalTimeout = options.getTotalTimeout();
+        if (totalTimeout <= 0) {
+            return;
+        }
+
+        handle.setDeadline(sTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (handle.expire()) {
+                    listener.onFailure(RequestHandle.deadlineExceeded(totalTimeout));
+                }
+            }
+        }, totalTimeout, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Build the key used to match identical GETs: the URI, every request header (sorted, so order does not matter)
+     * and the decoder, since listeners of one request must all expect the same decoded type.
+     */
+    private static String getCoalesceKey(HttpRequestBase request, ResponseDecoder<?> decoder) {
+        Header[] headers = request.getAllHeaders();
+        String[] lines = new String[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            lines[i] = headers[i].getName().toLowerCase() + ":" + headers[i].getValue();
+        }
+        Arrays.sort(lines);
+
+        StringBuilder key = new StringBuilder(request.getMethod()).append(' ').append(request.getURI());
+        for (String line : lines) {
+            key.append('\n').append(line);
+        }
+        key.append('\n').append(System.identityHashCode(decoder));
+        return key.toString();
+    }
+
+    /**
+     * Store a POST in its {@link OfflineRequestQueue}, then tell the listener it was queued (or why it could not be).
+     */
+    private static <T> void queueForReplay(OfflineRequestQueue queue, HttpPost request,
+                                           final ResponseListener<T> listener, final Throwable cause) {
+        queue.enqueue(request, new OfflineRequestQueue.EnqueueCallback() {
+            @Override
+            public void onQueued(String idempotencyKey, IOException error) {
+                if (error != null) {
+                    listener.onFailure(new Exception(cause));
+                } else {
+                    listener.onFailure(new RequestQueuedException(idempotencyKey, cause));
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a request replayed from an {@link OfflineRequestQueue} through the usual path, so it is scheduled, traced,
+     * measured and guarded by the {@link CircuitBreaker} like any other. Failures are reported to the listener rather
+     * than queued again.
+     */
+    static <T> RequestHandle sendForReplay(Context context, HttpPost request, RequestOptions options,
+                                           ResponseDecoder<T> decoder, ResponseListener<T> listener) {
+        return runHttpRequest(context, request, null, decoder, options, listener);
+    }
+
+    /**
+     * Execute one attempt of a call synchronously on the calling thread, consulting the response cache first when a
+     * cache key is given, and report the outcome to the listener unless the attempt is to be retried.
+     */
+    static <T> void executeRequest(HttpCall<T> call) {
+        String requestId = call.getRequestId();
+        HttpRequestBase request = call.getRequest();
+        String cacheKey = call.getCacheKey();
+        ResponseDecoder<T> decoder = call.getDecoder();
+        RequestOptions options = call.getOptions();
+        RequestHandle handle = call.getHandle();
+        ResponseListener<T> listener = call.getListener();
+        RequestMetrics metrics = call.getMetrics();
+        RequestTracer tracer = sTracer;
+        CircuitBreaker breaker = CircuitBreaker.forHost(call.getHost());
+        HttpResponseCache cache = cacheKey != null ? sResponseCache : null;
+        boolean responded = false;
+        try {
+            if (request instanceof HttpEntityEnclosingRequest && call.getAttempt() == 1) {
+                tracer.traceBody(requestId, ((HttpEntityEnclosingRequest) request).getEntity());
+            }
+
+            if (request instanceof HttpEntityEnclosingRequest && options.getGzipRequestThreshold() >= 0) {
+                HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+                enclosing.setEntity(HttpCompression.compressRequestEntity(enclosing.getEntity(),
+                        options.getGzipRequestThreshold()));
+            }
+
+            if (call.getUploadListener() != null) {
+                // Wrapped last, so the count is of the bytes that actually go out.
+                HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+                enclosing.setEntity(ProgressEntity.wrap(enclosing.getEntity(), call.getUploadListener()));
+            }
 
-                    if (request instanceof HttpPost) {
-                        Log.v(TAG, String.format("[%s] Request post body: %s", requestId,
-                                EntityUtils.toString(((HttpPost) request).getEntity())));
+            HttpResponseCache.Entry cached = null;
+            if (cache != null) {
+                cached = cache.get(cacheKey);
+                if (cached != null && cached.isFresh(System.currentTimeMillis()) && !forbidsCachedResponse(request)) {
+                    tracer.trace(requestId, "Serving fresh response from cache.");
+                    cache.recordHit(cached);
+                    metrics.markFromCache();
+                    listener.onSuccess(decodeCached(cached, decoder));
+                    return;
+                }
+
+                if (cached != null && cached.hasValidators()) {
+                    if (cached.etag != null) {
+                        request.setHeader("If-None-Match", cached.etag);
                     }
-                    // Execute the request
-                    HttpResponse response = client.execute(request);
-                    StatusLine status = response.getStatusLine();
-                    String entity = EntityUtils.toString(response.getEntity());
-
-                    Log.v(TAG, String.format("[%s] Response received with status '%s'.", requestId, status));
-                    Log.v(TAG, String.format("[%s] Response entity: '%s'.", requestId, entity));
-
-                    // Consume the response content
-                    JSONObject json = new JSONObject(entity);
-
-                    if (status.getStatusCode() == HttpStatus.SC_OK) {
-                        Log.v(TAG, String.format("[%s] Request was successful!", requestId));
-                        threadSafeListener.onSuccess(json);
-                    } else {
-                        Log.v(TAG, String.format("[%s] Request completed with status '%s'!", requestId, status));
-                        threadSafeListener.onError(json, status);
+                    if (cached.lastModified != null) {
+                        request.setHeader("If-Modified-Since", cached.lastModified);
                     }
-                } catch (Exception e) {
-                    Log.d(TAG, String.format("[%s] Request failed with error '%s'!", requestId, e.getMessage()));
-                    threadSafeListener.onFailure(new Exception(e));
                 }
             }
-        });
+
+            if (!breaker.allowRequest()) {
+                throw new CircuitOpenException(call.getHost(), breaker.getRemainingOpenMillis());
+            }
+
+            DefaultHttpClient client = getHttpClient();
+            tracer.trace(requestId, "Sending request to '%s' (attempt %d).", request.getURI(), call.getAttempt());
+
+            HttpEntity requestEntity = request instanceof HttpEntityEnclosingRequest
+                    ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+            metrics.markSending(requestEntity != null ? requestEntity.getContentLength() : 0);
+            HttpContext httpContext = new BasicHttpContext();
+            httpContext.setAttribute(HttpMetrics.CONTEXT_ATTRIBUTE, metrics);
+
+            // Execute the request. The shared client pools the connection, so the entity must be fully
+            // consumed (or the request aborted) for it to be released back to the pool.
+            HttpResponse response = client.execute(request, httpContext);
+            StatusLine status = response.getStatusLine();
+            metrics.markResponseHeaders(status.getStatusCode());
+
+            responded = true;
+            tracer.trace(requestId, "Response received with status '%s'.", status);
+
+            if (status.getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                breaker.recordFailure();
+            } else {
+                breaker.recordSuccess();
+            }
+
+            if (call.getRetryPolicy() != null && call.getRetryPolicy().isRetryableStatus(status.getStatusCode())
+                    && retry(call, response, null)) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                return;
+            }
+
+            if (cache != null && cached != null && status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
+                tracer.trace(requestId, "Cached response revalidated.");
+                cache.revalidated(cacheKey, cached, response);
+                cache.recordConditionalHit(cached);
+                listener.onSuccess(decodeCached(cached, decoder));
+                return;
+            }
+
+            // Consume the response content
+            T json;
+            if (cache != null && status.getStatusCode() == HttpStatus.SC_OK) {
+                cache.recordMiss();
+                json = decodeAndCache(response, cache, cacheKey, decoder, metrics);
+            } else {
+                json = decodeEntity(response.getEntity(), decoder, metrics);
+            }
+
+            if (status.getStatusCode() == HttpStatus.SC_OK) {
+                tracer.trace(requestId, "Request was successful!");
+                listener.onSuccess(json);
+            } else {
+                tracer.trace(requestId, "Request completed with status '%s'!", status);
+                listener.onError(json, status);
+            }
+        } catch (Exception e) {
+            request.abort();
+            tracer.trace(requestId, "Request failed with error '%s'!", e.getMessage());
+
+            if (e instanceof IOException && !(e instanceof CircuitOpenException) && !handle.isDone()) {
+                if (!responded) {
+                    breaker.recordFailure();
+                }
+                if (retry(call, null, e)) {
+                    return;
+                }
+            }
+
+            // A connection failure on a queueable write is stored for replay, unless it was cancelled or timed out.
+            OfflineRequestQueue queue = options.getOfflineQueue();
+            if (queue != null && e instanceof IOException && request instanceof HttpPost && !handle.isDone()) {
+                queueForReplay(queue, (HttpPost) request, listener, e);
+                return;
+            }
+            listener.onFailure(new Exception(e));
+        }
+    }
+
+    /**
+     * Schedule another attempt of a call if its {@link RetryPolicy} allows one.
+     *
+     * @param response the failed response, or null if the attempt failed with an exception.
+     * @param error the exception the attempt failed with, or null.
+     * @return true if the attempt will be retried, in which case the listener must not be notified.
+     */
+    private static <T> boolean retry(HttpCall<T> call, HttpResponse response, Exception error) {
+        HttpRequestBase copy = call.prepareRetry();
+        if (copy == null) {
+            return false;
+        }
+
+        long delay = call.getRetryDelay(response);
+        if (delay < 0) {
+            return false;
+        }
+
+        if (response != null) {
+            sTracer.trace(call.getRequestId(), "Retrying in %dms after status '%s'.", delay, response.getStatusLine());
+        } else {
+            sTracer.trace(call.getRequestId(), "Retrying in %dms after error '%s'.", delay, error.getMessage());
+        }
+        call.retry(copy, delay, sTimer);
+        return true;
+    }
+
+    /**
+     * @return true if the caller asked for an end-to-end reload with "Cache-Control: no-cache" or "Pragma: no-cache".
+     */
+    private static boolean forbidsCachedResponse(HttpRequestBase request) {
+        for (Header header : request.getHeaders("Cache-Control")) {
+            if (header.getValue() != null && header.getValue().contains("no-cache")) {
+                return true;
+            }
+        }
+        return request.containsHeader("Pragma");
+    }
+
+    private static <T> T decodeCached(HttpResponseCache.Entry cached, ResponseDecoder<T> decoder) throws Exception {
+        return decoder.decode(new ByteArrayInputStream(cached.body), cached.charset != null ? cached.charset : HTTP.UTF_8);
+    }
+
+    /**
+     * Decode a response while copying its body aside, then store the body if the response headers allow it.
+     */
+    private static <T> T decodeAndCache(HttpResponse response, HttpResponseCache cache, String cacheKey,
+                                        ResponseDecoder<T> decoder, RequestMetrics metrics) throws Exception {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new IOException("Response did not contain an entity.");
+        }
+
+        String charset = EntityUtils.getContentCharSet(entity);
+        HttpMetrics.TimedInputStream timed = new HttpMetrics.TimedInputStream(entity.getContent());
+        HttpResponseCache.CaptureInputStream content =
+                new HttpResponseCache.CaptureInputStream(timed, cache.getMaxEntryBytes());
+        try {
+            long start = System.nanoTime();
+            T value = decoder.decode(content, charset != null ? charset : HTTP.UTF_8);
+            metrics.markDecoded(System.nanoTime() - start, timed.getReadNanos(), timed.getBytesRead());
+            byte[] body = content.drain();
+            if (body != null) {
+                HttpResponseCache.Entry entry = HttpResponseCache.fromResponse(response, body, charset);
+                if (entry != null) {
+                    cache.put(cacheKey, entry);
+                }
+            }
+            return value;
+        } finally {
+            content.close();
+        }
     }
 
+    /**
+     * @return the charset declared by the entity's "Content-Type", or UTF-8 if there is none.
+     */
+    static String charsetOf(HttpEntity entity) {
+        String charset = EntityUtils.getContentCharSet(entity);
+        return charset != null ? charset : HTTP.UTF_8;
+    }
+
+    /**
+     * Stream an {@link HttpEntity} through a {@link ResponseDecoder}, closing the content stream afterwards so the
+     * connection can be released back to the pool. Read and parse times are recorded in the {@link RequestMetrics}.
+     */
+    private static <T> T decodeEntity(HttpEntity entity, ResponseDecoder<T> decoder, RequestMetrics metrics)
+            throws Exception {
+        if (entity == null) {
+            throw new IOException("Response did not contain an entity.");
+        }
+
+        HttpMetrics.TimedInputStream content = new HttpMetrics.TimedInputStream(entity.getContent());
+        try {
+            long start = System.nanoTime();
+            T value = decoder.decode(content, charsetOf(entity));
+            metrics.markDecoded(System.nanoTime() - start, content.getReadNanos(), content.getBytesRead());
+            return value;
+        } finally {
+            content.close();
+        }
+    }
 
     /**
      * Open a UDP socket and connect to the supplied host/port. If you open multiple UDP connections this way,
@@ -259,10 +1114,34 @@ final public class NetUtils {
      * @param host A host string, ie: "my.udp-server.com"
      * @param port The port to connect
      * @param listener {@link UdpListener} with callbacks for standard UDP events.
-     * @param shouldListen if true, automatically call {@link #listenToUdpSocket} when connected.
+     * @param shouldListen if true, automatically call {@link #listenToUdpSocket} when connected. To send on the
+     *                     connected socket without blocking the caller, wrap it in a {@link UdpSender}.
      */
     public static void openUdpConnection(final Context context, final String host, final int port,
                                          final UdpListener listener, final boolean shouldListen) {
+        openUdpConnection(context, host, port, listener, shouldListen, null);
+    }
+
+    /**
+     * Open a UDP socket, connect to the supplied host/port and listen on it with a packet pool, as with
+     * {@link #listenToUdpSocket(DatagramSocket, UdpListener, int, int)}. Packets are delivered on the main thread and
+     * returned to the pool once {@link UdpListener#onReceive} returns.
+     *
+     * @param context
+     * @param host A host string, ie: "my.udp-server.com"
+     * @param port The port to connect
+     * @param listener {@link UdpListener} with callbacks for standard UDP events.
+     * @param packetSize the largest datagram, in bytes, that can be received without truncation.
+     * @param poolSize the number of packets that can be waiting for the main thread at once.
+     */
+    public static void openUdpConnection(Context context, String host, int port, UdpListener listener,
+                                         int packetSize, int poolSize) {
+        openUdpConnection(context, host, port, listener, true, new UdpPacketPool(packetSize, poolSize));
+    }
+
+    private static void openUdpConnection(final Context context, final String host, final int port,
+                                          final UdpListener listener, final boolean shouldListen,
+                                          final UdpPacketPool pool) {
         if (context == null) {
             throw new IllegalArgumentException("Context cannot be null.");
         }
@@ -300,7 +1179,7 @@ final public class NetUtils {
                         handler.post(new Runnable() {
                             @Override
                             public void run() {
-                                listenToUdpSocket(socket, threadSafeListener);
+                                startUdpReceiver(socket, threadSafeListener, pool);
                             }
                         });
                     }
@@ -316,9 +1195,37 @@ final public class NetUtils {
      *
      * @param socket The {@link DatagramSocket} to listen to.
      * @param listener The {@link UdpListener} for packet receive callback.
-     * @return A {@link Future} that can be canceled to stop listening for packets.
+     * @return A {@link UdpSession}, which can be closed (or, as a {@link Future}, canceled) to stop listening for
+     *         packets and close the socket.
+     */
+    public static UdpSession listenToUdpSocket(DatagramSocket socket, UdpListener listener) {
+        checkUdpSocket(socket, listener);
+        return startUdpReceiver(socket, listener, null);
+    }
+
+    /**
+     * Pass in an open/connected {@link DatagramSocket} to perform blocking receives on a background thread, reusing a
+     * fixed pool of packets instead of allocating one per datagram.
+     *
+     * <p>A packet belongs to the listener only until {@link UdpListener#onReceive} returns; it is then reused for a
+     * later datagram, so copy out anything you need to keep. If every packet is still in use the receiver stops
+     * reading until one is returned.
+     *
+     * @param socket The {@link DatagramSocket} to listen to.
+     * @param listener The {@link UdpListener} for packet receive callback.
+     * @param packetSize the largest datagram, in bytes, that can be received without truncation, ie: 1500 for a
+     *                   typical MTU, or 65507 for the largest possible.
+     * @param poolSize the number of packets; defaults to {@link #DEFAULT_UDP_POOL_SIZE}.
+     * @return A {@link UdpSession}, which can be closed (or, as a {@link Future}, canceled) to stop listening for
+     *         packets and close the socket.
      */
-    public static Future<?> listenToUdpSocket(final DatagramSocket socket, final UdpListener listener) {
+    public static UdpSession listenToUdpSocket(DatagramSocket socket, UdpListener listener, int packetSize,
+                                              int poolSize) {
+        checkUdpSocket(socket, listener);
+        return startUdpReceiver(socket, listener, new UdpPacketPool(packetSize, poolSize));
+    }
+
+    private static void checkUdpSocket(DatagramSocket socket, UdpListener listener) {
         if (listener == null) {
             throw new IllegalArgumentException("Listener cannot be null.");
         }
@@ -330,41 +1237,232 @@ final public class NetUtils {
         if (!socket.isConnected() || socket.isClosed()) {
             throw new IllegalArgumentException("Socket must be open and connected before attempting to listen.");
         }
+    }
 
-        Future<?> udpFuture = sThreadExecutor.submit(new Runnable() {
+    /**
+     * @param pool the packets to receive into, or null to allocate a new {@link #DEFAULT_UDP_PACKET_SIZE} packet for
+     *             each datagram and hand it to the listener for good.
+     */
+    private static UdpSession startUdpReceiver(final DatagramSocket socket, final UdpListener listener,
+                                               final UdpPacketPool pool) {
+        final UdpSession session = new UdpSession(sUdpSessions, String.valueOf(socket.getRemoteSocketAddress()));
+        // A blocked receive() ignores interrupts; closing the socket is what wakes it up.
+        session.setCloser(new Runnable() {
             @Override
             public void run() {
-                while (!Thread.interrupted()) {
-                    byte[] bytes = new byte[1024];
-                    DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+                socket.close();
+            }
+        });
 
-                    try {
-                        socket.receive(packet);
-                    } catch (IOException e) {
-                        listener.onError(e);
+        try {
+            sThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receiveUdpPackets(session, socket, listener, pool);
+                }
+            });
+        } catch (RuntimeException e) {
+            session.finish(true);
+            throw e;
+        }
+        return session;
+    }
+
+    private static void receiveUdpPackets(UdpSession session, DatagramSocket socket, UdpListener listener,
+                                          UdpPacketPool pool) {
+        UdpStreamAnalyzer analyzer = null;
+        if (listener instanceof AnalyzedUdpListener) {
+            analyzer = ((AnalyzedUdpListener) listener).mAnalyzer;
+            listener = ((AnalyzedUdpListener) listener).mDelegate;
+        } else if (listener instanceof UdpStreamAnalyzer) {
+            analyzer = (UdpStreamAnalyzer) listener;
+            listener = analyzer.getDelegate();
+        }
+        MainThreadUdpListener mainThreadListener =
+                listener instanceof MainThreadUdpListener ? (MainThreadUdpListener) listener : null;
+        boolean failed = true;
+        if (!session.markActive()) {
+            socket.close();
+            session.finish(false);
+            return;
+        }
+
+        try {
+            while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
+                int slot = -1;
+                DatagramPacket packet;
+                if (pool != null) {
+                    slot = pool.acquire();
+                    packet = pool.get(slot);
+                } else {
+                    byte[] bytes = new byte[DEFAULT_UDP_PACKET_SIZE];
+                    packet = new DatagramPacket(bytes, bytes.length);
+                }
+
+                try {
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    if (pool != null) {
+                        pool.release(slot);
+                    }
+                    if (socket.isClosed() || Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    session.recordError();
+                    listener.onError(e);
+                    continue;
+                }
+
+                session.recordPacket(packet.getLength());
+                if (analyzer != null && !analyzer.record(packet.getData(), packet.getOffset(), packet.getLength())) {
+                    // A suppressed duplicate.
+                    if (pool != null) {
+                        pool.release(slot);
                     }
+                    continue;
+                }
 
+                if (pool == null) {
                     listener.onReceive(packet);
+                } else if (mainThreadListener != null) {
+                    // The main thread returns the packet to the pool once the listener has seen it.
+                    mainThreadListener.onReceive(pool, slot);
+                } else {
+                    try {
+                        listener.onReceive(packet);
+                    } finally {
+                        pool.release(slot);
+                    }
                 }
+            }
+            failed = false;
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for a free packet.
+            failed = false;
+        } finally {
+            socket.close();
+            session.finish(failed);
+        }
+    }
 
-                socket.close();
+    /**
+     * Open a UDP channel to the supplied host/port on the shared {@link UdpMultiplexer}, which services every channel
+     * opened this way from a single I/O thread rather than a thread per socket.
+     *
+     * @param context
+     * @param host A host string, ie: "my.udp-server.com"
+     * @param port The port to connect
+     * @param listener a {@link UdpMultiplexer.ChannelListener}; its callbacks run on the I/O thread.
+     * @return the {@link UdpMultiplexer.Endpoint}, or null if there is no network connection, in which case the
+     *         listener's onError has been called.
+     */
+    public static UdpMultiplexer.Endpoint openUdpChannel(Context context, String host, int port,
+                                                         UdpMultiplexer.ChannelListener listener) {
+        if (TextUtils.isEmpty(host)) {
+            throw new IllegalArgumentException("Host cannot be empty.");
+        }
+
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+
+        if (!isConnected(context)) {
+            listener.onError(null, new IOException("No connection available."));
+            return null;
+        }
+
+        final UdpSession session = new UdpSession(sUdpSessions, host + ":" + port);
+        try {
+            final UdpMultiplexer.Endpoint endpoint = getUdpMultiplexer().connect(host, port,
+                    trackSession(session, listener));
+            session.setCloser(new Runnable() {
+                @Override
+                public void run() {
+                    endpoint.close();
+                }
+            });
+            return endpoint;
+        } catch (IOException e) {
+            session.finish(true);
+            listener.onError(null, e);
+            return null;
+        }
+    }
+
+    /**
+     * Wrap a channel listener so the endpoint's traffic and lifecycle are recorded in its {@link UdpSession}.
+     */
+    private static UdpMultiplexer.ChannelListener trackSession(final UdpSession session,
+                                                               final UdpMultiplexer.ChannelListener listener) {
+        return new UdpMultiplexer.ChannelListener() {
+            @Override
+            public void onOpen(UdpMultiplexer.Endpoint endpoint) {
+                session.markActive();
+                listener.onOpen(endpoint);
             }
-        });
 
-        sUdpFutures.add(udpFuture);
-        return udpFuture;
+            @Override
+            public void onReceive(UdpMultiplexer.Endpoint endpoint, ByteBuffer data, SocketAddress sender) {
+                session.recordPacket(data.remaining());
+                listener.onReceive(endpoint, data, sender);
+            }
+
+            @Override
+            public void onError(UdpMultiplexer.Endpoint endpoint, IOException error) {
+                session.recordError();
+                if (session.getState() == UdpSession.State.STARTING) {
+                    // The channel failed to open.
+                    session.finish(true);
+                }
+                listener.onError(endpoint, error);
+            }
+
+            @Override
+            public void onClosed(UdpMultiplexer.Endpoint endpoint) {
+                session.finish(false);
+                listener.onClosed(endpoint);
+            }
+        };
+    }
+
+    /**
+     * @return the shared {@link UdpMultiplexer}, creating it on first use.
+     */
+    public static synchronized UdpMultiplexer getUdpMultiplexer() throws IOException {
+        if (sUdpMultiplexer == null || sUdpMultiplexer.isShutdown()) {
+            sUdpMultiplexer = new UdpMultiplexer();
+        }
+        return sUdpMultiplexer;
+    }
+
+    /**
+     * @return the UDP sessions that are currently running, in no particular order.
+     */
+    public static List<UdpSession> getUdpSessions() {
+        return new ArrayList<UdpSession>(sUdpSessions.values());
+    }
+
+    /**
+     * @param id a {@link UdpSession#getId session ID}.
+     * @return the running session with that ID, or null if it has finished or never existed.
+     */
+    public static UdpSession getUdpSession(long id) {
+        return sUdpSessions.get(id);
     }
 
     /**
-     * A method for canceling all existing UDP receiver threads. Threads will attempt to close any open
-     * UDP sockets as well.
+     * A method for canceling all existing UDP receiver threads. Closing a session closes its socket, which is what
+     * unblocks its pending receive. Channels on the shared {@link UdpMultiplexer} are closed as well.
      */
     public static void haltAllUdpReceiverThreads() {
-        if (sUdpFutures != null) {
-            for (Future<?> udpFuture : sUdpFutures) {
-                if (udpFuture != null && !udpFuture.isDone()) {
-                    udpFuture.cancel(true);
-                }
+        for (UdpSession session : sUdpSessions.values()) {
+            session.close();
+        }
+
+        synchronized (NetUtils.class) {
+            if (sUdpMultiplexer != null) {
+                sUdpMultiplexer.shutdown();
+                sUdpMultiplexer = null;
             }
         }
     }
@@ -392,63 +1490,90 @@ final public class NetUtils {
     }
 
     /**
-     * Determine if the device has an active network connection.
+     * Determine if the device has an active network connection. The answer comes from the {@link ConnectivityMonitor},
+     * so this is cheap enough to call on the main thread.
      *
      * @return true if the network is connected, false if otherwise.
      */
     public static boolean isConnected(Context context) {
-        if (context == null) {
-            throw new IllegalArgumentException("Context cannot be null.");
-        }
-
-        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
-                Context.CONNECTIVITY_SERVICE);
-        if (cm != null) {
-            NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-            if (activeNetwork != null) {
-                return activeNetwork.isConnected();
-            }
-        }
-        return false;
+        return ConnectivityMonitor.get(context).isConnected();
     }
 
     /**
-     * Take a user-supplied {@link JsonRequestListener} and make it thread safe by running callbacks on the main
+     * Take a user-supplied {@link ResponseListener} and make it thread safe by running callbacks on the main
      * thread, rather than in the background.
      *
      * @param context
      * @param listener
+     * @param metrics the {@link RequestMetrics} to complete and report once the listener returns, or null.
      * @return
      */
-    private static JsonRequestListener getThreadSafeListener(Context context, final JsonRequestListener listener) {
+    private static <T> ResponseListener<T> getThreadSafeListener(Context context, final ResponseListener<T> listener,
+                                                                 final RequestMetrics metrics) {
         final Handler handler = new Handler(context.getMainLooper());
-        return new JsonRequestListener() {
+        return new ResponseListener<T>() {
             @Override
-            public void onSuccess(final JSONObject json) {
+            public void onSuccess(final T json) {
+                markPosted();
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onSuccess(json);
+                        try {
+                            listener.onSuccess(json);
+                        } finally {
+                            report(RequestMetrics.Outcome.SUCCESS, -1);
+                        }
                     }
                 });
             }
 
             @Override
             public void onFailure(final Throwable e) {
+                markPosted();
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onFailure(e);
+                        try {
+                            listener.onFailure(e);
+                        } finally {
+                            report(RequestMetrics.Outcome.FAILURE, -1);
+                        }
                     }
                 });
             }
 
             @Override
-            public void onError(final JSONObject json, final StatusLine status) {
+            public void onError(final T json, final StatusLine status) {
+                markPosted();
                 handler.post(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onError(json, status);
+                        try {
+                            listener.onError(json, status);
+                        } finally {
+                            report(RequestMetrics.Outcome.ERROR, status != null ? status.getStatusCode() : -1);
+                        }
+                    }
+                });
+            }
+
+            private void markPosted() {
+                if (metrics != null) {
+                    metrics.markPosted();
+                }
+            }
+
+            private void report(RequestMetrics.Outcome outcome, int statusCode) {
+                if (metrics == null) {
+                    return;
+                }
+
+                // Aggregate off the main thread; listeners may do I/O with the metrics.
+                metrics.markDispatched(outcome, statusCode);
+                sTimer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        HttpMetrics.record(metrics);
                     }
                 });
             }
@@ -456,91 +1581,298 @@ final public class NetUtils {
     }
 
     /**
-     * Take a user-supplied {@link UdpListener} and make it thread safe by running callbacks on the main
-     * thread, rather than in the background.
+     * Take a user-supplied {@link ProgressListener} and make it thread safe by running callbacks on the main thread.
+     * Only one update is queued at a time; it reports the latest count when it runs, so a fast upload does not flood
+     * the main thread.
      *
      * @param context
      * @param listener
      * @return
      */
-    private static UdpListener getThreadSafeListener(Context context, final UdpListener listener) {
+    private static ProgressListener getThreadSafeListener(Context context, final ProgressListener listener) {
         final Handler handler = new Handler(context.getMainLooper());
-        return new UdpListener() {
+        final AtomicBoolean pending = new AtomicBoolean();
+        final AtomicLong written = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final Runnable update = new Runnable() {
             @Override
-            public void onConnect(final DatagramSocket socket) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onConnect(socket);
-                    }
-                });
+            public void run() {
+                pending.set(false);
+                listener.onProgress(written.get(), total.get());
             }
-
+        };
+        return new ProgressListener() {
             @Override
-            public void onError(final Throwable e) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onError(e);
-                    }
-                });
+            public void onProgress(long bytesWritten, long totalBytes) {
+                total.set(totalBytes);
+                written.set(bytesWritten);
+                if (pending.compareAndSet(false, true)) {
+                    handler.post(update);
+                }
             }
+        };
+    }
 
-            @Override
-            public void onReceive(final DatagramPacket packet) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onReceive(packet);
+    /**
+     * Take a user-supplied {@link UdpListener} and make it thread safe by running callbacks on the main
+     * thread, rather than in the background.
+     *
+     * @param context
+     * @param listener
+     * @return
+     */
+    private static UdpListener getThreadSafeListener(Context context, final UdpListener listener) {
+        if (listener instanceof UdpBatcher) {
+            // A UdpBatcher hands its batches to the main thread itself.
+            return listener;
+        }
+
+        if (listener instanceof UdpStreamAnalyzer) {
+            // Measure datagrams as they arrive; only the analyzed stream goes to the main thread. The caller's
+            // analyzer is left as it is, so it can be passed to another connection.
+            UdpStreamAnalyzer analyzer = (UdpStreamAnalyzer) listener;
+            return new AnalyzedUdpListener(analyzer, getThreadSafeListener(context, analyzer.getDelegate()));
+        }
+        return new MainThreadUdpListener(context, listener);
+    }
+
+    /**
+     * Measures datagrams with a {@link UdpStreamAnalyzer} on the receiving thread, then passes them to a listener
+     * other than the analyzer's own, ie: one that runs on the main thread.
+     */
+    private static final class AnalyzedUdpListener implements UdpListener {
+        final UdpStreamAnalyzer mAnalyzer;
+        final UdpListener mDelegate;
+
+        AnalyzedUdpListener(UdpStreamAnalyzer analyzer, UdpListener delegate) {
+            mAnalyzer = analyzer;
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onConnect(DatagramSocket socket) {
+            mDelegate.onConnect(socket);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mDelegate.onError(error);
+        }
+
+        @Override
+        public void onReceive(DatagramPacket packet) {
+            if (mAnalyzer.record(packet.getData(), packet.getOffset(), packet.getLength())) {
+                mDelegate.onReceive(packet);
+            }
+        }
+    }
+
+    /**
+     * Passes {@link UdpListener} callbacks to the main thread as recycled {@link Message}s, so a busy
+     * socket does not allocate a Runnable per packet.
+     */
+    private static final class MainThreadUdpListener implements UdpListener, Handler.Callback {
+        private static final int MSG_CONNECT = 1;
+        private static final int MSG_ERROR = 2;
+        private static final int MSG_RECEIVE = 3;
+        private static final int MSG_RECEIVE_POOLED = 4;
+
+        private final UdpListener mListener;
+        private final Handler mHandler;
+
+        MainThreadUdpListener(Context context, UdpListener listener) {
+            mListener = listener;
+            mHandler = new Handler(context.getMainLooper(), this);
+        }
+
+        @Override
+        public void onConnect(DatagramSocket socket) {
+            mHandler.obtainMessage(MSG_CONNECT, socket).sendToTarget();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mHandler.obtainMessage(MSG_ERROR, error).sendToTarget();
+        }
+
+        @Override
+        public void onReceive(DatagramPacket packet) {
+            mHandler.obtainMessage(MSG_RECEIVE, packet).sendToTarget();
+        }
+
+        /**
+         * Deliver a pooled packet, releasing it back to the pool after the listener returns.
+         */
+        void onReceive(UdpPacketPool pool, int slot) {
+            mHandler.obtainMessage(MSG_RECEIVE_POOLED, slot, 0, pool).sendToTarget();
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECT:
+                    mListener.onConnect((DatagramSocket) msg.obj);
+                    return true;
+                case MSG_ERROR:
+                    mListener.onError((Throwable) msg.obj);
+                    return true;
+                case MSG_RECEIVE:
+                    mListener.onReceive((DatagramPacket) msg.obj);
+                    return true;
+                case MSG_RECEIVE_POOLED:
+                    UdpPacketPool pool = (UdpPacketPool) msg.obj;
+                    try {
+                        mListener.onReceive(pool.get(msg.arg1));
+                    } finally {
+                        pool.release(msg.arg1);
                     }
-                });
+                    return true;
+                default:
+                    return false;
             }
-        };
+        }
+    }
+
+    /**
+     * @return the shared daemon timer used for deadlines, retries and other delayed work.
+     */
+    static ScheduledExecutorService getTimer() {
+        return sTimer;
     }
 
     /**
-     * This is a helper method that creates an instance of {@link DefaultHttpClient} with some default parameters.
+     * Return the process-wide {@link DefaultHttpClient}, creating it on first use. The client is backed by a
+     * {@link ThreadSafeClientConnManager} so keep-alive connections are pooled and reused across requests, within
+     * the per-host and total limits of the current {@link HttpClientConfig}.
      *
      * <p>Make sure you call consumeContent on the returned {@link org.apache.http.HttpEntity} if you want to reuse a
      * connection.
      *
-     * @return an instance of DefaultHttpClient.
+     * @return the shared instance of DefaultHttpClient.
      */
-    private static DefaultHttpClient getHttpClient() {
-        DefaultHttpClient client = new DefaultHttpClient();
+    static DefaultHttpClient getHttpClient() {
+        synchronized (sHttpClientLock) {
+            if (sHttpClient == null) {
+                sHttpClient = createHttpClient(sHttpClientConfig);
+                startIdleConnectionReaper(sHttpClientConfig.getIdleConnectionTimeout());
+            }
+            return sHttpClient;
+        }
+    }
 
+    private static DefaultHttpClient createHttpClient(final HttpClientConfig config) {
         // Set default client parameters
         HttpParams params = new BasicHttpParams();
-        params.setParameter(CoreProtocolPNames.USER_AGENT, HTTP_CLIENT_USER_AGENT);
-        HttpConnectionParams.setConnectionTimeout(params, HTTP_CLIENT_CONNECTION_TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, HTTP_CLIENT_SOCKET_TIMEOUT);
-        client.setParams(params);
+        params.setParameter(CoreProtocolPNames.USER_AGENT, config.getUserAgent());
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, config.getConnectionTimeout());
+        HttpConnectionParams.setSoTimeout(params, config.getSocketTimeout());
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, config.getMaxTotalConnections());
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(config.getMaxConnectionsPerHost()));
+        ConnManagerParams.setTimeout(params, config.getConnectionTimeout());
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        client.addRequestInterceptor(HttpCompression.ACCEPT_ENCODING_INTERCEPTOR);
+        client.addResponseInterceptor(HttpCompression.DECOMPRESSING_INTERCEPTOR);
+        client.addRequestInterceptor(HttpMetrics.CONNECT_TIMING_INTERCEPTOR);
+
+        if (config.getKeepAliveMillis() == 0) {
+            client.setReuseStrategy(new NoConnectionReuseStrategy());
+        } else {
+            client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = config.getKeepAliveMillis();
+                    HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                    while (it.hasNext()) {
+                        HeaderElement element = it.nextElement();
+                        if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                            try {
+                                duration = Math.min(duration, Long.parseLong(element.getValue()) * 1000);
+                            } catch (NumberFormatException ignored) {
+                                // Fall back to the configured keep-alive.
+                            }
+                        }
+                    }
+                    return duration;
+                }
+            });
+        }
 
         return client;
     }
 
+    /**
+     * Periodically evict expired and idle connections from the shared pool so dead sockets are not handed out.
+     */
+    private static void startIdleConnectionReaper(final long idleTimeout) {
+        if (sIdleConnectionReaper != null) {
+            sIdleConnectionReaper.cancel(false);
+        }
+
+        long period = Math.max(1000, idleTimeout / 2);
+        sIdleConnectionReaper = sTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                DefaultHttpClient client;
+                List<ClientConnectionManager> released = new ArrayList<ClientConnectionManager>();
+                synchronized (sHttpClientLock) {
+                    client = sHttpClient;
+                    Iterator<ClientConnectionManager> it = sRetiredConnectionManagers.iterator();
+                    while (it.hasNext()) {
+                        ClientConnectionManager manager = it.next();
+                        // Connections given back since the pool was retired are idle; once none are leased, it can go.
+                        manager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                        if (!(manager instanceof ThreadSafeClientConnManager)
+                                || ((ThreadSafeClientConnManager) manager).getConnectionsInPool() == 0) {
+                            released.add(manager);
+                            it.remove();
+                        }
+                    }
+                }
+                for (ClientConnectionManager manager : released) {
+                    manager.shutdown();
+                }
+                if (client != null) {
+                    ClientConnectionManager manager = client.getConnectionManager();
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * The interface that defines possible outcomes of an HTTP request so that custom behavior can be implemented when those
      * events occur. Code written within the provided callbacks will be run on the main thread, so it is safe to spin up
      * {@link android.os.AsyncTask} or other {@link Thread} from within the callbacks in order to parse JSON from the server
      * or other longer running task.
+     *
+     * @param <T> the type produced by the {@link ResponseDecoder} used for the request.
      */
-    public interface JsonRequestListener {
+    public interface ResponseListener<T> {
         /**
          * The server returned an {@link org.apache.http.HttpStatus#SC_OK} response.
          *
-         * @param json the {@link org.json.JSONObject} parsed from the raw HttpResponse.
+         * @param value the value decoded from the raw HttpResponse.
          */
-        public void onSuccess(JSONObject json);
+        public void onSuccess(T value);
 
         /**
          * The server did return a response, but the response code was not {@link org.apache.http.HttpStatus#SC_OK} and
          * indicates some error condition.
          *
-         * @param json the {@link JSONObject} parsed from the raw HttpResponse.
+         * @param value the value decoded from the raw HttpResponse.
          * @param status the StatusLine returned from the raw HttpResponse.
          */
-        public void onError(JSONObject json, StatusLine status);
+        public void onError(T value, StatusLine status);
 
         /**
          * The request failed to be sent due to some local error condition or the response could not be parsed.
@@ -550,6 +1882,62 @@ final public class NetUtils {
         public void onFailure(Throwable error);
     }
 
+    /**
+     * A {@link ResponseListener} for servers that respond with a JSON object.
+     */
+    public interface JsonRequestListener extends ResponseListener<JSONObject> {
+        /**
+         * The server returned an {@link org.apache.http.HttpStatus#SC_OK} response.
+         *
+         * @param json the {@link org.json.JSONObject} parsed from the raw HttpResponse.
+         */
+        public void onSuccess(JSONObject json);
+
+        /**
+         * The server did return a response, but the response code was not {@link org.apache.http.HttpStatus#SC_OK} and
+         * indicates some error condition.
+         *
+         * @param json the {@link JSONObject} parsed from the raw HttpResponse.
+         * @param status the StatusLine returned from the raw HttpResponse.
+         */
+        public void onError(JSONObject json, StatusLine status);
+    }
+
+    /**
+     * A {@link ResponseListener} for servers that respond with a top-level JSON array.
+     */
+    public interface JsonArrayRequestListener extends ResponseListener<JSONArray> {
+    }
+
+    /**
+     * Receives the progress of an upload or download, on the main thread. See
+     * {@link RequestOptions#setUploadProgressListener} and {@link RequestOptions#setDownloadProgressListener}.
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytesWritten for an upload, the number of body bytes sent so far in the current attempt, starting
+         *                     again from 0 when a request is retried; for a download, the bytes written to disk,
+         *                     including any resumed from an earlier attempt.
+         * @param totalBytes the size of the body or file, or -1 if it is unknown, ie: for chunked JSON.
+         */
+        public void onProgress(long bytesWritten, long totalBytes);
+    }
+
+    /**
+     * Reads a response body straight from the entity's {@link InputStream}. Decoders run on the background thread
+     * that executed the request and must not close the stream themselves.
+     *
+     * @param <T> the decoded type.
+     */
+    public interface ResponseDecoder<T> {
+        /**
+         * @param content the raw response body.
+         * @param charset the charset declared by the response, or UTF-8 if none was given.
+         * @return the decoded value.
+         */
+        public T decode(InputStream content, String charset) throws IOException, JSONException;
+    }
+
     /**
      * The interface that defines possible outcomes of attempting to open a UDP socket, so that custom behavior can be
      * implemented when those events occur. Code written within the provided callbacks will be run on the main thread,
@@ -572,7 +1960,8 @@ final public class NetUtils {
         public void onError(Throwable error);
 
         /**
-         * The UDP socket successfully received a {@link DatagramPacket}.
+         * The UDP socket successfully received a {@link DatagramPacket}. When listening with a packet pool, the packet
+         * is reused once this returns, so copy out any data you need to keep.
          *
          * @param packet The {@link DatagramPacket} that was received.
          */
@@ -0,0 +1,736 @@
+package com.esri.android.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicStatusLine;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbox for POST requests made with {@link NetUtils#postJson} or {@link NetUtils#postFormEncoded}. When a
+ * request made with {@link RequestOptions#setOfflineQueue} cannot be sent, because the device is offline or the
+ * connection failed, it is appended to a log on disk and replayed, in order, once connectivity returns.
+ *
+ * <p>Every queued request carries an "Idempotency-Key" header, the same one used for the original attempt, so the
+ * server can recognize a replay of a write it already received.
+ *
+ * <p>Queues are replayed when the {@link ConnectivityMonitor} reports a connection, or on demand with
+ * {@link #replay}; call it once after adding your {@link ReplayListener}s to flush requests left over from a previous
+ * session. Replays go through the same scheduler, {@link CircuitBreaker} and {@link RequestTracer} as any other
+ * request. Replay outcomes are reported to listeners on the main thread.
+ */
+public class OfflineRequestQueue {
+    private static final String TAG = "OfflineRequestQueue";
+    private static final String DIRECTORY_NAME = "netutils-outbox";
+    private static final int RECORD_VERSION = 1;
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final int DEFAULT_MAX_RECORDS = 500;
+    public static final long DEFAULT_MAX_BYTES = 5 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    private static final List<OfflineRequestQueue> sQueues = new CopyOnWriteArrayList<OfflineRequestQueue>();
+    private static ConnectivityMonitor.Listener sConnectivityListener;
+    // Shared by every queue. Appends and replay steps are short, as no step waits on the network, and stay in order.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OfflineRequestQueue");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Reads replay responses as JSON, treating a body that is not JSON as no body.
+     */
+    private static final NetUtils.ResponseDecoder<JSONObject> REPLAY_DECODER =
+            new NetUtils.ResponseDecoder<JSONObject>() {
+                @Override
+                public JSONObject decode(InputStream content, String charset) throws IOException {
+                    try {
+                        return NetUtils.JSON_OBJECT_DECODER.decode(content, charset);
+                    } catch (JSONException e) {
+                        Log.d(TAG, "Replayed request returned an unreadable body: " + e.getMessage());
+                        return null;
+                    }
+                }
+            };
+
+    /**
+     * Bounds each replayed request, so a pass always ends even if a request is lost on its way.
+     */
+    private static final RequestOptions REPLAY_OPTIONS = new RequestOptions().setTotalTimeout(10 * 60 * 1000);
+
+    private final Context mContext;
+    private final String mName;
+    private final File mLogFile;
+    private final Handler mHandler;
+    private final List<ReplayListener> mListeners = new CopyOnWriteArrayList<ReplayListener>();
+    private LinkedList<Record> mRecords;
+    private long mBytes;
+    private boolean mReplaying;
+    private int mRemovedSinceRewrite;
+
+    private int mMaxRecords = DEFAULT_MAX_RECORDS;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mMaxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Open (or create) the named queue. Queues with different names are replayed independently; requests within a
+     * queue are always replayed in the order they were queued.
+     *
+     * @param context a {@link Context} object.
+     * @param name a name for the queue, safe to use as a file name.
+     */
+    public OfflineRequestQueue(Context context, String name) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null.");
+        }
+
+        if (name == null || !name.matches("[A-Za-z0-9_.-]+")) {
+            throw new IllegalArgumentException("Queue name must be a non-empty file-safe name.");
+        }
+
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mName = name;
+        mLogFile = new File(new File(mContext.getFilesDir(), DIRECTORY_NAME), name + ".log");
+        mHandler = new Handler(mContext.getMainLooper());
+        register(this);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @param maxRecords the most requests held; the oldest are dropped beyond this.
+     */
+    public OfflineRequestQueue setMaxRecords(int maxRecords) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("Max records must be at least 1.");
+        }
+        mMaxRecords = maxRecords;
+        return this;
+    }
+
+    /**
+     * @param maxBytes the most request body bytes held; the oldest requests are dropped beyond this.
+     */
+    public OfflineRequestQueue setMaxBytes(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Max bytes must be at least 1.");
+        }
+        mMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param maxAgeMillis how long a request is kept before it is dropped unsent.
+     */
+    public OfflineRequestQueue setMaxAge(long maxAgeMillis) {
+        if (maxAgeMillis < 1) {
+            throw new IllegalArgumentException("Max age must be positive.");
+        }
+        mMaxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * @param batchSize the most requests sent during a replay before the log is rewritten.
+     */
+    public OfflineRequestQueue setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    public void addReplayListener(ReplayListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+        mListeners.add(listener);
+    }
+
+    public void removeReplayListener(ReplayListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the number of requests waiting to be sent. Blocks while the log is loaded, so call this off the main
+     * thread.
+     */
+    public synchronized int size() {
+        return records().size();
+    }
+
+    /**
+     * Send queued requests now, if the device is connected. Replay stops at the first request that cannot be
+     * delivered, so ordering is preserved; it resumes on the next connectivity change or call to this method.
+     */
+    public void replay() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                replayNow();
+            }
+        });
+    }
+
+    /**
+     * Persist a request that could not be sent. Runs on the queues' shared thread.
+     *
+     * @param request the POST that failed; its entity must be repeatable.
+     * @param onQueued notified on the queues' thread once the request is on disk, or with the error if it could not
+     *                 be stored.
+     */
+    void enqueue(final HttpPost request, final EnqueueCallback onQueued) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Record record = Record.fromRequest(request, mMaxBytes);
+                    synchronized (OfflineRequestQueue.this) {
+                        records().add(record);
+                        mBytes += record.body.length;
+                        append(record);
+                        enforceLimits();
+                    }
+                    onQueued.onQueued(record.idempotencyKey, null);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to queue request for replay.", e);
+                    onQueued.onQueued(null, e);
+                } catch (RuntimeException e) {
+                    // ie: an entity that fails to write itself; the caller must still hear about it.
+                    Log.w(TAG, "Unable to queue request for replay.", e);
+                    onQueued.onQueued(null, new IOException(e.toString()));
+                }
+            }
+        });
+    }
+
+    private void replayNow() {
+        if (!NetUtils.isConnected(mContext)) {
+            return;
+        }
+        synchronized (this) {
+            if (mReplaying) {
+                return;
+            }
+            mReplaying = true;
+        }
+        sendNext();
+    }
+
+    /**
+     * Send the oldest record. Its outcome arrives through the listener and sends the next one from there, so the
+     * queues' thread never waits on the network.
+     */
+    private void sendNext() {
+        while (true) {
+            Record record;
+            synchronized (this) {
+                if (records().isEmpty()) {
+                    finishReplay();
+                    return;
+                }
+                record = records().getFirst();
+            }
+
+            try {
+                NetUtils.sendForReplay(mContext, record.toRequest(), REPLAY_OPTIONS, REPLAY_DECODER,
+                        new ReplayCallback(record));
+                return;
+            } catch (RuntimeException e) {
+                // The record can never be sent; drop it rather than fail on it at every replay.
+                Log.w(TAG, "Dropping request that cannot be replayed.", e);
+                notifyDropped(record);
+                remove(record);
+            }
+        }
+    }
+
+    /**
+     * Act on the outcome of a replayed record, on the queues' thread.
+     *
+     * @param status the response status, or null if the request did not reach the server.
+     */
+    private void onReplayed(final Record record, final JSONObject body, final StatusLine status) {
+        if (status == null) {
+            finishReplay();
+            return;
+        }
+        int code = status.getStatusCode();
+        if (code >= 500 || code == 408 || code == 429) {
+            // The server is struggling; keep the request and try again later.
+            finishReplay();
+            return;
+        }
+
+        // Delivered, or rejected outright by the server; either way it is done.
+        for (final ReplayListener listener : mListeners) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onReplayed(OfflineRequestQueue.this, record.idempotencyKey, body, status);
+                }
+            });
+        }
+        remove(record);
+        sendNext();
+    }
+
+    /**
+     * Forget a record that was sent or cannot be, rewriting the log once a batch of them has piled up.
+     */
+    private synchronized void remove(Record record) {
+        // The limits may have dropped the record while it was being sent.
+        if (records().remove(record)) {
+            mBytes -= record.body.length;
+            mRemovedSinceRewrite++;
+        }
+        if (mRemovedSinceRewrite >= mBatchSize) {
+            rewrite();
+            mRemovedSinceRewrite = 0;
+        }
+    }
+
+    private synchronized void finishReplay() {
+        if (mRemovedSinceRewrite > 0) {
+            rewrite();
+            mRemovedSinceRewrite = 0;
+        }
+        mReplaying = false;
+    }
+
+    private void enforceLimits() throws IOException {
+        long oldest = System.currentTimeMillis() - mMaxAgeMillis;
+        boolean dropped = false;
+        Iterator<Record> it = records().iterator();
+        while (it.hasNext()) {
+            Record record = it.next();
+            if (record.createdAt >= oldest && records().size() <= mMaxRecords && mBytes <= mMaxBytes) {
+                break;
+            }
+            it.remove();
+            mBytes -= record.body.length;
+            dropped = true;
+            notifyDropped(record);
+        }
+
+        if (dropped) {
+            rewrite();
+        }
+    }
+
+    private void notifyDropped(final Record record) {
+        for (final ReplayListener listener : mListeners) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDropped(OfflineRequestQueue.this, record.idempotencyKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * Load the log on first use. Reading stops at the first truncated or corrupt record, which can only be the tail of
+     * an append that was interrupted.
+     */
+    private LinkedList<Record> records() {
+        if (mRecords != null) {
+            return mRecords;
+        }
+
+        mRecords = new LinkedList<Record>();
+        mBytes = 0;
+        if (!mLogFile.exists()) {
+            return mRecords;
+        }
+
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mLogFile)));
+            while (true) {
+                Record record = Record.read(in);
+                if (record == null) {
+                    break;
+                }
+                mRecords.add(record);
+                mBytes += record.body.length;
+                validLength += record.encodedLength;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read queue " + mName, e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        // Drop a damaged tail now, or records appended after it could never be read back.
+        if (validLength != mLogFile.length()) {
+            rewrite();
+        }
+        return mRecords;
+    }
+
+    private void append(Record record) throws IOException {
+        File directory = mLogFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        FileOutputStream out = new FileOutputStream(mLogFile, true);
+        try {
+            out.write(record.encode());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the remaining records to a new log and swap it in, so delivered and dropped records take no space.
+     */
+    private void rewrite() {
+        File temp = new File(mLogFile.getPath() + ".tmp");
+        FileOutputStream file = null;
+        try {
+            file = new FileOutputStream(temp);
+            BufferedOutputStream out = new BufferedOutputStream(file);
+            for (Record record : mRecords) {
+                out.write(record.encode());
+            }
+            out.flush();
+            file.getFD().sync();
+            file.close();
+            file = null;
+
+            if (!temp.renameTo(mLogFile)) {
+                throw new IOException("Unable to replace " + mLogFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to rewrite queue " + mName, e);
+        } finally {
+            closeQuietly(file);
+            temp.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    /**
+     * Track the queue and make sure a single {@link ConnectivityMonitor} listener replays every queue when the network
+     * returns.
+     */
+    private static synchronized void register(OfflineRequestQueue queue) {
+        sQueues.add(queue);
+        if (sConnectivityListener == null) {
+            sConnectivityListener = new ConnectivityMonitor.Listener() {
+                @Override
+                public void onNetworkStateChanged(ConnectivityMonitor.NetworkState state) {
+                    if (state.isConnected()) {
+                        for (OfflineRequestQueue each : sQueues) {
+                            each.replay();
+                        }
+                    }
+                }
+            };
+            ConnectivityMonitor.get(queue.mContext).addListener(sConnectivityListener);
+        }
+    }
+
+    /**
+     * Outcomes of replaying queued requests. Callbacks run on the main thread.
+     */
+    public interface ReplayListener {
+        /**
+         * A queued request reached the server.
+         *
+         * @param queue the queue the request was replayed from.
+         * @param idempotencyKey the key the request was sent with.
+         * @param json the response body, or null if it was empty or not JSON.
+         * @param status the response status; a 4xx status means the server rejected the request and it was not
+         *               retried.
+         */
+        public void onReplayed(OfflineRequestQueue queue, String idempotencyKey, JSONObject json, StatusLine status);
+
+        /**
+         * A queued request was dropped unsent because the queue exceeded its age, count or size limit.
+         */
+        public void onDropped(OfflineRequestQueue queue, String idempotencyKey);
+    }
+
+    /**
+     * Hands the outcome of one replayed record, delivered on the main thread, back to the queues' thread.
+     */
+    private final class ReplayCallback implements NetUtils.ResponseListener<JSONObject> {
+        private final Record mRecord;
+
+        ReplayCallback(Record record) {
+            mRecord = record;
+        }
+
+        @Override
+        public void onSuccess(JSONObject value) {
+            done(value, new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"));
+        }
+
+        @Override
+        public void onError(JSONObject value, StatusLine status) {
+            done(value, status);
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+            Log.d(TAG, "Replay interrupted: " + error.getMessage());
+            done(null, null);
+        }
+
+        private void done(final JSONObject value, final StatusLine status) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onReplayed(mRecord, value, status);
+                }
+            });
+        }
+    }
+
+    interface EnqueueCallback {
+        /**
+         * @param idempotencyKey the key of the stored request, or null if it could not be stored.
+         * @param error the reason the request could not be stored, or null.
+         */
+        void onQueued(String idempotencyKey, IOException error);
+    }
+
+    /**
+     * A queued request: everything needed to send the POST again. Encoded on disk as a length-prefixed payload
+     * followed by its CRC32.
+     */
+    private static final class Record {
+        final long createdAt;
+        final String idempotencyKey;
+        final String url;
+        final String contentType;
+        final String contentEncoding;
+        final String[] headers;
+        final byte[] body;
+        int encodedLength;
+
+        Record(long createdAt, String idempotencyKey, String url, String contentType, String contentEncoding,
+               String[] headers, byte[] body) {
+            this.createdAt = createdAt;
+            this.idempotencyKey = idempotencyKey;
+            this.url = url;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @param maxBytes the largest body the queue holds; a larger one is refused before it is read into memory.
+         */
+        static Record fromRequest(HttpPost request, long maxBytes) throws IOException {
+            Header key = request.getFirstHeader(IDEMPOTENCY_KEY_HEADER);
+            if (key == null) {
+                throw new IOException("Queued requests must carry an " + IDEMPOTENCY_KEY_HEADER + " header.");
+            }
+
+            HttpEntity entity = request.getEntity();
+            byte[] body = entity != null ? readBody(entity, maxBytes) : new byte[0];
+            Header contentType = entity != null ? entity.getContentType() : null;
+            Header contentEncoding = entity != null ? entity.getContentEncoding() : null;
+
+            Header[] all = request.getAllHeaders();
+            String[] headers = new String[all.length * 2];
+            for (int i = 0; i < all.length; i++) {
+                headers[i * 2] = all[i].getName();
+                headers[i * 2 + 1] = all[i].getValue();
+            }
+
+            return new Record(System.currentTimeMillis(), key.getValue(), request.getURI().toString(),
+                    contentType != null ? contentType.getValue() : null,
+                    contentEncoding != null ? contentEncoding.getValue() : null, headers, body);
+        }
+
+        /**
+         * Read a body of known length only if it fits, and one of unknown length, ie: streamed JSON, only until it
+         * outgrows the limit.
+         */
+        private static byte[] readBody(HttpEntity entity, final long maxBytes) throws IOException {
+            long length = entity.getContentLength();
+            if (length > maxBytes) {
+                throw new IOException("Request body of " + length + " bytes exceeds the queue limit of " + maxBytes
+                        + " bytes.");
+            }
+
+            int capacity = length > 0 && length < Integer.MAX_VALUE ? (int) length : 1024;
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(capacity);
+            entity.writeTo(new OutputStream() {
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    if (count > maxBytes - body.size()) {
+                        throw new IOException("Request body exceeds the queue limit of " + maxBytes + " bytes.");
+                    }
+                    body.write(buffer, offset, count);
+                }
+
+                @Override
+                public void write(int oneByte) throws IOException {
+                    write(new byte[] {(byte) oneByte}, 0, 1);
+                }
+            });
+            return body.toByteArray();
+        }
+
+        HttpPost toRequest() {
+            HttpPost request = new HttpPost(URI.create(url));
+            for (int i = 0; i < headers.length; i += 2) {
+                request.addHeader(headers[i], headers[i + 1]);
+            }
+
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            if (contentType != null) {
+                entity.setContentType(contentType);
+            }
+            if (contentEncoding != null) {
+                entity.setContentEncoding(contentEncoding);
+            }
+            request.setEntity(entity);
+            return request;
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(body.length + 256);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(RECORD_VERSION);
+            out.writeLong(createdAt);
+            out.writeUTF(idempotencyKey);
+            out.writeUTF(url);
+            writeOptionalString(out, contentType);
+            writeOptionalString(out, contentEncoding);
+            out.writeShort(headers.length / 2);
+            for (String header : headers) {
+                out.writeUTF(header);
+            }
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+            DataOutputStream frame = new DataOutputStream(framed);
+            frame.writeInt(bytes.length);
+            frame.write(bytes);
+            frame.writeInt((int) crc.getValue());
+            frame.flush();
+            encodedLength = framed.size();
+            return framed.toByteArray();
+        }
+
+        /**
+         * @return the next record, or null at the end of the log or at a truncated or corrupt record.
+         */
+        static Record read(DataInputStream in) throws IOException {
+            try {
+                int length = in.readInt();
+                if (length < 0 || length > 64 * 1024 * 1024) {
+                    return null;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (in.readInt() != (int) crc.getValue()) {
+                    Log.w(TAG, "Discarding corrupt queue tail.");
+                    return null;
+                }
+
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+                if (payload.readByte() != RECORD_VERSION) {
+                    return null;
+                }
+                long createdAt = payload.readLong();
+                String idempotencyKey = payload.readUTF();
+                String url = payload.readUTF();
+                String contentType = readOptionalString(payload);
+                String contentEncoding = readOptionalString(payload);
+                String[] headers = new String[payload.readShort() * 2];
+                for (int i = 0; i < headers.length; i++) {
+                    headers[i] = payload.readUTF();
+                }
+                byte[] body = new byte[payload.readInt()];
+                payload.readFully(body);
+                Record record = new Record(createdAt, idempotencyKey, url, contentType, contentEncoding, headers,
+                        body);
+                record.encodedLength = length + 8;
+                return record;
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private static String readOptionalString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.esri.android.util;
+
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the typed values {@link SharedPrefsUtils} reads from one {@link SharedPreferences} file, so hot keys are
+ * served without the file's lock. Only writes made through {@link PreferenceWriter} keep the cache coherent: they
+ * drop the entries they change before they return.
+ *
+ * <p>Changes made by other editors of the file are only seen through the change listener, which the framework calls
+ * on the main thread, so a commit made off the main thread is not seen until that callback has run, and
+ * {@link SharedPreferences.Editor#clear} is not seen at all, as it does not notify listeners on older releases. Call
+ * {@link #invalidateAll} after such a change.
+ *
+ * <p>Values parsed from a stored string, ie: a {@link org.json.JSONObject}, are cached too, together with the
+ * string they were parsed from, so a reader only gets them back while that string is still the stored value.
+ */
+final class PreferenceCache implements SharedPreferences.OnSharedPreferenceChangeListener {
+    /**
+     * Cached for keys that have no value.
+     */
+    static final Object ABSENT = new Object();
+
+    // SharedPreferences only holds its listeners weakly; this map keeps every cache, and so its registration, alive.
+    // Concurrent, so reads find the cache without a lock.
+    private static final ConcurrentHashMap<SharedPreferences, PreferenceCache> sCaches =
+            new ConcurrentHashMap<SharedPreferences, PreferenceCache>();
+
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentHashMap<String, Parsed> mParsed = new ConcurrentHashMap<String, Parsed>();
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private PreferenceCache() {}
+
+    static PreferenceCache get(SharedPreferences preferences) {
+        PreferenceCache cache = sCaches.get(preferences);
+        if (cache == null) {
+            cache = new PreferenceCache();
+            PreferenceCache existing = sCaches.putIfAbsent(preferences, cache);
+            if (existing != null) {
+                return existing;
+            }
+            preferences.registerOnSharedPreferenceChangeListener(cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Drop the cached values of keys that were just written.
+     */
+    static void invalidate(SharedPreferences preferences, Collection<String> keys) {
+        PreferenceCache cache = sCaches.get(preferences);
+        if (cache != null) {
+            for (String key : keys) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Drop every cached value of every file.
+     */
+    static void invalidateAll() {
+        for (PreferenceCache cache : sCaches.values()) {
+            cache.invalidate(null);
+        }
+    }
+
+    /**
+     * @return the cached value, {@link #ABSENT}, or null if the key is not cached.
+     */
+    Object get(String key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * @return a token to pass to {@link #put}; take it before reading the value from the preferences.
+     */
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Cache a value read from the preferences, unless an invalidation happened since the generation was taken, in
+     * which case the value may already be stale.
+     */
+    void put(String key, Object value, long generation) {
+        mValues.put(key, value);
+        if (mGeneration.get() != generation) {
+            mValues.remove(key, value);
+        }
+    }
+
+    /**
+     * @param source the string currently stored under the key.
+     * @param type the class the value was parsed into.
+     * @return the value parsed from exactly that string, or null if it has not been parsed yet.
+     */
+    Object getParsed(String key, String source, Class<?> type) {
+        Parsed parsed = mParsed.get(key);
+        if (parsed == null || !type.isInstance(parsed.mValue)) {
+            return null;
+        }
+        return parsed.mSource == source || parsed.mSource.equals(source) ? parsed.mValue : null;
+    }
+
+    void putParsed(String key, String source, Object value) {
+        mParsed.put(key, new Parsed(source, value));
+    }
+
+    /**
+     * @param key the key to drop, or null to drop everything.
+     */
+    void invalidate(String key) {
+        mGeneration.incrementAndGet();
+        if (key == null) {
+            mValues.clear();
+            mParsed.clear();
+        } else {
+            mValues.remove(key);
+            mParsed.remove(key);
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+        invalidate(key);
+    }
+
+    private static final class Parsed {
+        final String mSource;
+        final Object mValue;
+
+        Parsed(String source, Object value) {
+            mSource = source;
+            mValue = value;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.esri.android.util;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the preferences file a key lives in, so {@link SharedPrefsUtils} can spread keys over several small files.
+ * A commit rewrites a whole file, so keeping hot counters apart from large, rarely changed values keeps writes cheap.
+ *
+ * <p>A router must always send a key to the same file; changing it strands the values written under the old
+ * routing. Use {@link SharedPrefsUtils#migrateDefaultPreferences} to move values out of the default file.
+ *
+ * @see SharedPrefsUtils#setKeyRouter
+ */
+public abstract class PreferenceRouter {
+    /**
+     * @return the name of the preferences file that holds the key, or null for the default file.
+     */
+    public abstract String getStoreName(String key);
+
+    /**
+     * @return the names of the files this router can pick, so they can be {@link SharedPrefsUtils#preload preloaded};
+     * null stands for the default file. Empty unless overridden.
+     */
+    public List<String> getStoreNames() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Routes keys by their longest matching prefix, ie: "session." to one file and "cache." to another.
+     */
+    public static final class PrefixRouter extends PreferenceRouter {
+        // Replaced, never changed, so getStoreName reads it without a lock.
+        private volatile String[][] mRoutes = new String[0][];
+        private volatile String mFallback;
+
+        /**
+         * Send keys that start with the prefix to a store. The longest matching prefix wins.
+         *
+         * @param prefix the start of the keys, ie: "session.".
+         * @param storeName the name of the preferences file.
+         */
+        public synchronized PrefixRouter route(String prefix, String storeName) {
+            if (prefix == null) {
+                throw new IllegalArgumentException("Prefix cannot be null.");
+            }
+            if (TextUtils.isEmpty(storeName)) {
+                throw new IllegalArgumentException("Store name cannot be empty.");
+            }
+
+            List<String[]> routes = new ArrayList<String[]>(Arrays.asList(mRoutes));
+            int i = 0;
+            while (i < routes.size() && routes.get(i)[0].length() >= prefix.length()) {
+                i++;
+            }
+            routes.add(i, new String[] {prefix, storeName});
+            mRoutes = routes.toArray(new String[routes.size()][]);
+            return this;
+        }
+
+        /**
+         * @param storeName the file for keys no prefix matches, or null for the default file (the default).
+         */
+        public PrefixRouter setFallback(String storeName) {
+            mFallback = storeName;
+            return this;
+        }
+
+        @Override
+        public String getStoreName(String key) {
+            for (String[] route : mRoutes) {
+                if (key.startsWith(route[0])) {
+                    return route[1];
+                }
+            }
+            return mFallback;
+        }
+
+        @Override
+        public List<String> getStoreNames() {
+            String[][] routes = mRoutes;
+            List<String> names = new ArrayList<String>(routes.length + 1);
+            for (String[] route : routes) {
+                if (!names.contains(route[1])) {
+                    names.add(route[1]);
+                }
+            }
+            if (!names.contains(mFallback)) {
+                names.add(mFallback);
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Spreads keys evenly over a fixed number of files, ie: "prefs_0" to "prefs_7". {@link String#hashCode} is
+     * specified by the language, so a key lands in the same file on every run.
+     */
+    public static final class HashRouter extends PreferenceRouter {
+        private final String mBaseName;
+        private final int mShards;
+
+        /**
+         * @param baseName the start of each file name; the shard number is appended to it.
+         * @param shards the number of files. Changing it moves most keys to another file.
+         */
+        public HashRouter(String baseName, int shards) {
+            if (TextUtils.isEmpty(baseName)) {
+                throw new IllegalArgumentException("Base name cannot be empty.");
+            }
+            if (shards < 1) {
+                throw new IllegalArgumentException("Shards must be at least 1.");
+            }
+            mBaseName = baseName;
+            mShards = shards;
+        }
+
+        @Override
+        public String getStoreName(String key) {
+            return mBaseName + "_" + ((key.hashCode() & 0x7fffffff) % mShards);
+        }
+
+        @Override
+        public List<String> getStoreNames() {
+            List<String> names = new ArrayList<String>(mShards);
+            for (int i = 0; i < mShards; i++) {
+                names.add(mBaseName + "_" + i);
+            }
+            return names;
+        }
+    }
+}
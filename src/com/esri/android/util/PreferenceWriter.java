@@ -0,0 +1,254 @@
+package com.esri.android.util;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the writes {@link SharedPrefsUtils} makes to one {@link SharedPreferences} file. Changes are staged in
+ * a pending overlay, which reads consult first, and written together by a single {@link SharedPreferences.Editor}
+ * commit, either on the calling thread or on a shared background thread after a delay.
+ */
+final class PreferenceWriter {
+    private static final String TAG = "PreferenceWriter";
+
+    /**
+     * Staged in place of a value to remove the key.
+     */
+    static final Object REMOVED = new Object();
+
+    // The framework keeps SharedPreferences instances for the life of the process, so writers are never evicted.
+    // Concurrent, so reads find the writer without a lock.
+    private static final ConcurrentHashMap<SharedPreferences, PreferenceWriter> sWriters =
+            new ConcurrentHashMap<SharedPreferences, PreferenceWriter>();
+    private static final ScheduledExecutorService sExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SharedPrefsUtils-Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static Handler sMainHandler;
+
+    private final SharedPreferences mPreferences;
+    private final Object mFlushLock = new Object();
+
+    // Changed under this, read without a lock.
+    private final ConcurrentHashMap<String, Object> mPending = new ConcurrentHashMap<String, Object>();
+
+    // Guarded by this.
+    private final List<SharedPrefsUtils.CompletionListener> mWaiting =
+            new ArrayList<SharedPrefsUtils.CompletionListener>();
+    private Future<?> mScheduledFlush;
+    private long mScheduledAt;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to write preferences.", e);
+            }
+        }
+    };
+
+    private PreferenceWriter(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    static PreferenceWriter get(SharedPreferences preferences) {
+        PreferenceWriter writer = sWriters.get(preferences);
+        if (writer == null) {
+            writer = new PreferenceWriter(preferences);
+            PreferenceWriter existing = sWriters.putIfAbsent(preferences, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * @return a writer for every file written through so far.
+     */
+    static List<PreferenceWriter> getAll() {
+        return new ArrayList<PreferenceWriter>(sWriters.values());
+    }
+
+    /**
+     * @return the value staged for the key, {@link #REMOVED}, or null if nothing is waiting to be written for it.
+     */
+    static Object peek(SharedPreferences preferences, String key) {
+        PreferenceWriter writer = sWriters.get(preferences);
+        return writer != null ? writer.getPending(key) : null;
+    }
+
+    Object getPending(String key) {
+        return mPending.isEmpty() ? null : mPending.get(key);
+    }
+
+    /**
+     * Stage changes to be written on the background thread.
+     *
+     * @param changes values keyed by preference key; {@link #REMOVED} removes the key.
+     * @param delayMillis how long to wait for further changes before writing; an earlier scheduled write is kept.
+     * @param listener notified on the main thread once the changes are on disk, or null.
+     */
+    void stage(Map<String, ?> changes, long delayMillis, SharedPrefsUtils.CompletionListener listener) {
+        synchronized (this) {
+            mPending.putAll(changes);
+            if (listener != null) {
+                mWaiting.add(listener);
+            }
+
+            long at = System.currentTimeMillis() + delayMillis;
+            if (mScheduledFlush != null && !mScheduledFlush.isDone()) {
+                if (mScheduledAt <= at) {
+                    return;
+                }
+                mScheduledFlush.cancel(false);
+            }
+            mScheduledAt = at;
+            mScheduledFlush = sExecutor.schedule(mFlushTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stage changes and write them, with everything else pending, on the calling thread. Changes that cannot be
+     * written stay pending for the next flush.
+     *
+     * @return true if the write reached persistent storage.
+     */
+    boolean commit(Map<String, ?> changes) {
+        synchronized (this) {
+            mPending.putAll(changes);
+        }
+        return flush();
+    }
+
+    /**
+     * Write everything pending in one commit on the calling thread. If the commit fails, everything stays pending.
+     *
+     * @return true if the write reached persistent storage, or there was nothing to write.
+     */
+    boolean flush() {
+        synchronized (mFlushLock) {
+            Map<String, Object> snapshot;
+            List<SharedPrefsUtils.CompletionListener> listeners;
+            synchronized (this) {
+                if (mScheduledFlush != null) {
+                    mScheduledFlush.cancel(false);
+                    mScheduledFlush = null;
+                }
+                if (mPending.isEmpty() && mWaiting.isEmpty()) {
+                    return true;
+                }
+                snapshot = new HashMap<String, Object>(mPending);
+                listeners = new ArrayList<SharedPrefsUtils.CompletionListener>(mWaiting);
+                mWaiting.clear();
+            }
+
+            SharedPreferences.Editor editor = mPreferences.edit();
+            for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                put(editor, entry.getKey(), entry.getValue());
+            }
+            boolean success = editor.commit();
+            if (!success) {
+                // Keep the values staged, so reads still see them and the next flush writes them again.
+                Log.w(TAG, "Unable to write " + snapshot.size() + " preference(s); they stay pending.");
+                notifyListeners(listeners, false);
+                return false;
+            }
+
+            // The preferences hold the values now; drop them from the overlay unless they were staged again since.
+            PreferenceCache.invalidate(mPreferences, snapshot.keySet());
+            synchronized (this) {
+                for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+                    if (mPending.get(entry.getKey()) == entry.getValue()) {
+                        mPending.remove(entry.getKey());
+                    }
+                }
+            }
+
+            notifyListeners(listeners, true);
+            return true;
+        }
+    }
+
+    /**
+     * Write everything pending on the background thread now.
+     */
+    void flushAsync(SharedPrefsUtils.CompletionListener listener) {
+        stage(new HashMap<String, Object>(), 0, listener);
+    }
+
+    /**
+     * @return true if the value is of a type {@link #stage} and {@link #commit} can write.
+     */
+    static boolean isSupported(Object value) {
+        return value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Boolean;
+    }
+
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if (value == REMOVED || value == null) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported preference type " + value.getClass().getName() + ".");
+        }
+    }
+
+    /**
+     * Run a task on the writer thread, after any writes already due.
+     */
+    static void execute(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    static void notifyListeners(final List<SharedPrefsUtils.CompletionListener> listeners, final boolean success) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        Handler handler;
+        synchronized (PreferenceWriter.class) {
+            if (sMainHandler == null) {
+                sMainHandler = new Handler(Looper.getMainLooper());
+            }
+            handler = sMainHandler;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (SharedPrefsUtils.CompletionListener listener : listeners) {
+                    listener.onComplete(success);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,57 @@
+package com.esri.android.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A request body that reports how much of it has been written to the connection.
+ */
+final class ProgressEntity extends HttpEntityWrapper {
+    private final NetUtils.ProgressListener mListener;
+
+    private ProgressEntity(HttpEntity wrapped, NetUtils.ProgressListener listener) {
+        super(wrapped);
+        mListener = listener;
+    }
+
+    /**
+     * @return the entity wrapped to report to the listener, replacing any earlier wrapping so a retried request
+     *         counts from zero again.
+     */
+    static HttpEntity wrap(HttpEntity entity, NetUtils.ProgressListener listener) {
+        if (entity == null) {
+            return null;
+        }
+
+        if (entity instanceof ProgressEntity) {
+            entity = ((ProgressEntity) entity).wrappedEntity;
+        }
+        return new ProgressEntity(entity, listener);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final long total = getContentLength();
+        mListener.onProgress(0, total);
+        wrappedEntity.writeTo(new FilterOutputStream(out) {
+            private long mWritten;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                mListener.onProgress(++mWritten, total);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                mWritten += length;
+                mListener.onProgress(mWritten, total);
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+package com.esri.android.util;
+
+import org.apache.http.StatusLine;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Returned by the HTTP methods in {@link NetUtils} so a request can be cancelled, ie: when the user leaves the screen
+ * that asked for it, and so its progress can be queried.
+ *
+ * <p>If {@link #cancel} returns true, no listener callback will be made for the request. Once the callback has been
+ * claimed for delivery, cancel returns false and the callback still arrives.
+ */
+public class RequestHandle {
+    /**
+     * The lifecycle of a request.
+     */
+    public enum Status {
+        /**
+         * Waiting for a worker thread, or for an identical request it was coalesced with.
+         */
+        PENDING,
+
+        /**
+         * Being sent or its response is being read.
+         */
+        RUNNING,
+
+        /**
+         * The server responded; the listener received onSuccess or onError.
+         */
+        COMPLETED,
+
+        /**
+         * The request failed or ran past its deadline; the listener received onFailure.
+         */
+        FAILED,
+
+        /**
+         * The request was cancelled; the listener will not be called.
+         */
+        CANCELLED
+    }
+
+    private final AtomicReference<Status> mStatus;
+    private final RequestHandle mSource;
+    private volatile Runnable mCanceller;
+    private volatile Future<?> mDeadline;
+
+    RequestHandle() {
+        this(null);
+    }
+
+    /**
+     * @param source the handle of the request that actually goes to the network on this request's behalf, or null if
+     *               this handle represents that request itself.
+     */
+    RequestHandle(RequestHandle source) {
+        mStatus = new AtomicReference<Status>(Status.PENDING);
+        mSource = source;
+    }
+
+    /**
+     * @return a handle for a request that failed before it could be queued.
+     */
+    static RequestHandle failed() {
+        RequestHandle handle = new RequestHandle();
+        handle.mStatus.set(Status.FAILED);
+        return handle;
+    }
+
+    /**
+     * Cancel the request. If it is still queued it will never be sent; if it is running, the underlying HTTP request
+     * is aborted. No listener callback will be made after this returns true.
+     *
+     * @return true if the request was cancelled, false if it had already finished.
+     */
+    public boolean cancel() {
+        if (!finish(Status.CANCELLED)) {
+            return false;
+        }
+
+        Runnable canceller = mCanceller;
+        if (canceller != null) {
+            canceller.run();
+        }
+        return true;
+    }
+
+    public Status getStatus() {
+        Status status = mStatus.get();
+        if (status == Status.PENDING && mSource != null && mSource.getStatus() == Status.RUNNING) {
+            return Status.RUNNING;
+        }
+        return status;
+    }
+
+    public boolean isCancelled() {
+        return mStatus.get() == Status.CANCELLED;
+    }
+
+    /**
+     * @return true if the request completed, failed or was cancelled.
+     */
+    public boolean isDone() {
+        Status status = mStatus.get();
+        return status != Status.PENDING && status != Status.RUNNING;
+    }
+
+    /**
+     * @param canceller run when the request is cancelled or its deadline passes, to stop the work behind it.
+     */
+    void setCanceller(Runnable canceller) {
+        mCanceller = canceller;
+    }
+
+    void setDeadline(Future<?> deadline) {
+        mDeadline = deadline;
+        if (isDone()) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if the request may go ahead, false if it was cancelled while queued.
+     */
+    boolean markRunning() {
+        return mStatus.compareAndSet(Status.PENDING, Status.RUNNING);
+    }
+
+    /**
+     * Fail the request because its deadline passed, stopping the work behind it.
+     *
+     * @return true if the request had not finished yet, in which case the caller must report the failure.
+     */
+    boolean expire() {
+        if (!finish(Status.FAILED)) {
+            return false;
+        }
+
+        Runnable canceller = mCanceller;
+        if (canceller != null) {
+            canceller.run();
+        }
+        return true;
+    }
+
+    /**
+     * Wrap a listener so its callbacks are only passed on while this handle has not finished, and so the handle
+     * records how the request ended.
+     */
+    <T> NetUtils.ResponseListener<T> gate(final NetUtils.ResponseListener<T> listener) {
+        return new NetUtils.ResponseListener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                if (finish(Status.COMPLETED)) {
+                    listener.onSuccess(value);
+                }
+            }
+
+            @Override
+            public void onError(T value, StatusLine status) {
+                if (finish(Status.COMPLETED)) {
+                    listener.onError(value, status);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (finish(Status.FAILED)) {
+                    listener.onFailure(error);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return an exception describing a missed deadline.
+     */
+    static TimeoutException deadlineExceeded(long totalTimeout) {
+        return new TimeoutException("Request did not complete within " + totalTimeout + "ms.");
+    }
+
+    private boolean finish(Status terminal) {
+        while (true) {
+            Status current = mStatus.get();
+            if (current != Status.PENDING && current != Status.RUNNING) {
+                return false;
+            }
+            if (mStatus.compareAndSet(current, terminal)) {
+                Future<?> deadline = mDeadline;
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.esri.android.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time went in one HTTP request made through {@link NetUtils}, reported to {@link HttpMetrics.MetricsListener}s
+ * once the request's listener has been called.
+ *
+ * <p>The phases, in order: queue wait (for a {@link RequestScheduler} worker), connect (leasing a pooled connection
+ * or opening a new one), time to first byte (from sending the request until the response headers arrived), body read
+ * (time spent blocked reading the response body), parse (the rest of decoding) and dispatch (from handing the result
+ * to the main thread until the listener returned). When a request was retried, the network phases describe the last
+ * attempt and queue wait covers every attempt.
+ */
+public final class RequestMetrics {
+    /**
+     * How the request ended.
+     */
+    public enum Outcome {
+        /**
+         * The listener received onSuccess.
+         */
+        SUCCESS,
+
+        /**
+         * The listener received onError.
+         */
+        ERROR,
+
+        /**
+         * The listener received onFailure.
+         */
+        FAILURE
+    }
+
+    private final String mRequestId;
+    private final String mMethod;
+    private final String mUri;
+    private final String mHost;
+    private final long mStartNanos = System.nanoTime();
+
+    private Outcome mOutcome;
+    private int mStatusCode = -1;
+    private int mAttempts;
+    private boolean mFromCache;
+    private boolean mCoalesced;
+    private long mBytesSent;
+    private long mBytesReceived;
+
+    private long mEnqueuedNanos = mStartNanos;
+    private long mQueueWaitNanos;
+    private long mSendNanos;
+    private long mConnectNanos;
+    private long mTimeToFirstByteNanos;
+    private long mBodyReadNanos;
+    private long mParseNanos;
+    private long mPostedNanos;
+    private long mDispatchNanos;
+    private long mTotalNanos;
+
+    RequestMetrics(String requestId, String method, String uri, String host) {
+        mRequestId = requestId;
+        mMethod = method;
+        mUri = uri;
+        mHost = host;
+    }
+
+    /**
+     * @return the ID used for this request in log messages.
+     */
+    public String getRequestId() {
+        return mRequestId;
+    }
+
+    public String getMethod() {
+        return mMethod;
+    }
+
+    public String getUri() {
+        return mUri;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public Outcome getOutcome() {
+        return mOutcome;
+    }
+
+    /**
+     * @return the HTTP status of the response, or -1 if there was none.
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return the number of times the request was sent; 0 if it was served from cache or coalesced.
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return true if the response came from the {@link HttpResponseCache} without going to the network.
+     */
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    /**
+     * @return true if the request shared an identical request's response, in which case only the queue wait,
+     *         dispatch and total times are its own.
+     */
+    public boolean isCoalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return the size of the request body as sent, or 0 if it had none or its length was unknown.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return the size of the response body as read by the decoder, after decompression.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public long getQueueWaitMillis() {
+        return toMillis(mQueueWaitNanos);
+    }
+
+    public long getConnectMillis() {
+        return toMillis(mConnectNanos);
+    }
+
+    public long getTimeToFirstByteMillis() {
+        return toMillis(mTimeToFirstByteNanos);
+    }
+
+    public long getBodyReadMillis() {
+        return toMillis(mBodyReadNanos);
+    }
+
+    public long getParseMillis() {
+        return toMillis(mParseNanos);
+    }
+
+    public long getDispatchMillis() {
+        return toMillis(mDispatchNanos);
+    }
+
+    /**
+     * @return the time from the request being made until its listener returned.
+     */
+    public long getTotalMillis() {
+        return toMillis(mTotalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s] %s %s -> %s %d: queue=%dms connect=%dms ttfb=%dms read=%dms parse=%dms "
+                        + "dispatch=%dms total=%dms in=%dB out=%dB%s%s", mRequestId, mMethod, mUri, mOutcome,
+                mStatusCode, getQueueWaitMillis(), getConnectMillis(), getTimeToFirstByteMillis(),
+                getBodyReadMillis(), getParseMillis(), getDispatchMillis(), getTotalMillis(), mBytesReceived,
+                mBytesSent, mFromCache ? " (cached)" : "", mCoalesced ? " (coalesced)" : "");
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    void markEnqueued() {
+        mEnqueuedNanos = System.nanoTime();
+    }
+
+    /**
+     * A worker picked the request up; starts a new attempt.
+     */
+    void markDequeued() {
+        mQueueWaitNanos += System.nanoTime() - mEnqueuedNanos;
+    }
+
+    void markSending(long bytesSent) {
+        mAttempts++;
+        mBytesSent = Math.max(0, bytesSent);
+        mSendNanos = System.nanoTime();
+        mConnectNanos = 0;
+        mTimeToFirstByteNanos = 0;
+        mBodyReadNanos = 0;
+        mParseNanos = 0;
+        mBytesReceived = 0;
+    }
+
+    /**
+     * Called from the client's request interceptors, which run once the connection is established.
+     */
+    void markConnected() {
+        if (mConnectNanos == 0) {
+            mConnectNanos = System.nanoTime() - mSendNanos;
+        }
+    }
+
+    void markResponseHeaders(int statusCode) {
+        mStatusCode = statusCode;
+        mTimeToFirstByteNanos = System.nanoTime() - mSendNanos;
+    }
+
+    void markFromCache() {
+        mFromCache = true;
+    }
+
+    void markCoalesced() {
+        mCoalesced = true;
+    }
+
+    /**
+     * @param decodeNanos the time the decoder took in total.
+     * @param readNanos the part of it spent blocked reading the body.
+     * @param bytesRead the number of body bytes read.
+     */
+    void markDecoded(long decodeNanos, long readNanos, long bytesRead) {
+        mBodyReadNanos = readNanos;
+        mParseNanos = Math.max(0, decodeNanos - readNanos);
+        mBytesReceived = bytesRead;
+    }
+
+    void markPosted() {
+        mPostedNanos = System.nanoTime();
+    }
+
+    /**
+     * The listener returned.
+     */
+    void markDispatched(Outcome outcome, int statusCode) {
+        long now = System.nanoTime();
+        mOutcome = outcome;
+        if (statusCode != -1) {
+            mStatusCode = statusCode;
+        }
+        mDispatchNanos = mPostedNanos != 0 ? now - mPostedNanos : 0;
+        mTotalNanos = now - mStartNanos;
+    }
+}
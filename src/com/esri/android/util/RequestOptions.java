@@ -0,0 +1,203 @@
+package com.esri.android.util;
+
+/**
+ * Per-request settings for the HTTP methods in {@link NetUtils}. Setters return the options so they can be chained,
+ * ie:
+ * <pre>
+ * NetUtils.getJson(context, url, args, headers, new RequestOptions().setCoalesce(false), listener);
+ * </pre>
+ */
+public class RequestOptions {
+    private boolean mCoalesce = true;
+    private RequestScheduler.Priority mPriority = RequestScheduler.Priority.INTERACTIVE;
+    private int mConnectTimeout;
+    private int mReadTimeout;
+    private long mTotalTimeout;
+    private int mGzipRequestThreshold = -1;
+    private OfflineRequestQueue mOfflineQueue;
+    private RetryPolicy mRetryPolicy;
+    private NetUtils.ProgressListener mUploadProgressListener;
+    private NetUtils.ProgressListener mDownloadProgressListener;
+    private int mDownloadSegments = 1;
+
+    public boolean isCoalesce() {
+        return mCoalesce;
+    }
+
+    /**
+     * When enabled (the default), a GET that is identical to one already in flight (same URL and headers) does not
+     * hit the network again; it waits for the in-flight request and receives the same decoded result.
+     *
+     * <p>Coalesced listeners share the decoded value, so treat it as read-only.
+     *
+     * @param coalesce false to always send this request on its own.
+     */
+    public RequestOptions setCoalesce(boolean coalesce) {
+        mCoalesce = coalesce;
+        return this;
+    }
+
+    public RequestScheduler.Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @param priority {@link RequestScheduler.Priority#BACKGROUND} for prefetching and other work nobody is waiting
+     *                 on; defaults to {@link RequestScheduler.Priority#INTERACTIVE}.
+     */
+    public RequestOptions setPriority(RequestScheduler.Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Priority cannot be null.");
+        }
+        mPriority = priority;
+        return this;
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, or 0 to use
+     *                       {@link HttpClientConfig#getConnectionTimeout}.
+     */
+    public RequestOptions setConnectTimeout(int connectTimeout) {
+        if (connectTimeout < 0) {
+            throw new IllegalArgumentException("Connect timeout cannot be negative.");
+        }
+        mConnectTimeout = connectTimeout;
+        return this;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @param readTimeout milliseconds to wait between packets of data, or 0 to use
+     *                    {@link HttpClientConfig#getSocketTimeout}.
+     */
+    public RequestOptions setReadTimeout(int readTimeout) {
+        if (readTimeout < 0) {
+            throw new IllegalArgumentException("Read timeout cannot be negative.");
+        }
+        mReadTimeout = readTimeout;
+        return this;
+    }
+
+    public long getTotalTimeout() {
+        return mTotalTimeout;
+    }
+
+    /**
+     * The request fails with a {@link java.util.concurrent.TimeoutException} if it has not completed this many
+     * milliseconds after it was made, time spent queued included. The underlying HTTP request is aborted.
+     *
+     * @param totalTimeout the deadline in milliseconds, or 0 for none (the default).
+     */
+    public RequestOptions setTotalTimeout(long totalTimeout) {
+        if (totalTimeout < 0) {
+            throw new IllegalArgumentException("Total timeout cannot be negative.");
+        }
+        mTotalTimeout = totalTimeout;
+        return this;
+    }
+
+    public int getGzipRequestThreshold() {
+        return mGzipRequestThreshold;
+    }
+
+    /**
+     * Gzip the request body, and send it with "Content-Encoding: gzip", when it is larger than the threshold. Only
+     * enable this for servers that accept compressed request bodies.
+     *
+     * @param threshold the body size in bytes above which it is compressed, or -1 to never compress (the default).
+     */
+    public RequestOptions setGzipRequestThreshold(int threshold) {
+        mGzipRequestThreshold = threshold < 0 ? -1 : threshold;
+        return this;
+    }
+
+    public OfflineRequestQueue getOfflineQueue() {
+        return mOfflineQueue;
+    }
+
+    /**
+     * Store a POST in the queue for later replay if it cannot be sent now, because the device is offline or the
+     * connection fails. The listener then receives onFailure with a {@link RequestQueuedException}. Has no effect on
+     * GET requests.
+     *
+     * <p>The request is sent with an "Idempotency-Key" header (a random UUID unless the caller supplied one) so the
+     * server can ignore a replay of a write that did arrive.
+     *
+     * @param queue an {@link OfflineRequestQueue}, or null to fail immediately (the default).
+     */
+    public RequestOptions setOfflineQueue(OfflineRequestQueue queue) {
+        mOfflineQueue = queue;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Retry this request on connection failures and retryable responses, ie: 503, as the policy allows. A POST that
+     * is still failing once the attempts run out goes to the {@link #setOfflineQueue offline queue}, if there is one.
+     *
+     * @param policy a {@link RetryPolicy}, or null to use {@link NetUtils#setRetryPolicy the default} (the default).
+     */
+    public RequestOptions setRetryPolicy(RetryPolicy policy) {
+        mRetryPolicy = policy;
+        return this;
+    }
+
+    public NetUtils.ProgressListener getUploadProgressListener() {
+        return mUploadProgressListener;
+    }
+
+    /**
+     * Report how much of the request body has been sent. Updates are delivered on the main thread, and skipped
+     * while an earlier one is still waiting to run, so the listener always sees the latest count.
+     *
+     * @param listener a {@link NetUtils.ProgressListener}, or null for no updates (the default).
+     */
+    public RequestOptions setUploadProgressListener(NetUtils.ProgressListener listener) {
+        mUploadProgressListener = listener;
+        return this;
+    }
+
+    public NetUtils.ProgressListener getDownloadProgressListener() {
+        return mDownloadProgressListener;
+    }
+
+    /**
+     * Report how much of a {@link NetUtils#download download} is on disk, at most a few times a second, on the main
+     * thread. The total is -1 if the server did not say how large the file is.
+     *
+     * @param listener a {@link NetUtils.ProgressListener}, or null for no updates (the default).
+     */
+    public RequestOptions setDownloadProgressListener(NetUtils.ProgressListener listener) {
+        mDownloadProgressListener = listener;
+        return this;
+    }
+
+    public int getDownloadSegments() {
+        return mDownloadSegments;
+    }
+
+    /**
+     * Split a {@link NetUtils#download download} into ranges fetched over parallel connections. Only used when the
+     * server accepts ranges and the file is at least 1MB per segment; the per-host cap of the
+     * {@link RequestScheduler} still applies.
+     *
+     * @param segments the most segments to use, or 1 to download in one piece (the default).
+     */
+    public RequestOptions setDownloadSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("Segments must be at least 1.");
+        }
+        mDownloadSegments = segments;
+        return this;
+    }
+}
@@ -0,0 +1,28 @@
+package com.esri.android.util;
+
+import java.io.IOException;
+
+/**
+ * Passed to {@link NetUtils.ResponseListener#onFailure} when a request could not be sent right away and was stored in
+ * its {@link OfflineRequestQueue} instead. The eventual outcome is reported to the queue's
+ * {@link OfflineRequestQueue.ReplayListener}s.
+ */
+public class RequestQueuedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String mIdempotencyKey;
+
+    public RequestQueuedException(String idempotencyKey, Throwable cause) {
+        super("Request queued for replay with " + OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER + " " + idempotencyKey);
+        initCause(cause);
+        mIdempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * @return the key the request will be replayed with; it matches the key passed to
+     * {@link OfflineRequestQueue.ReplayListener#onReplayed}.
+     */
+    public String getIdempotencyKey() {
+        return mIdempotencyKey;
+    }
+}
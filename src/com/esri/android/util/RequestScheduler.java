@@ -0,0 +1,421 @@
+package com.esri.android.util;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs HTTP requests for {@link NetUtils} on a bounded set of worker threads.
+ *
+ * <p>Requests are queued by {@link Priority}; interactive requests go first, but every few dispatches a waiting
+ * background request is let through so prefetching cannot starve. A request is only started while its host is
+ * below the per-host concurrency cap, so one slow server cannot tie up every worker. Idle workers exit after a
+ * while, so a quiet scheduler holds no threads.
+ */
+public class RequestScheduler {
+    private static final String TAG = "RequestScheduler";
+    public static final int DEFAULT_MAX_WORKERS = 4;
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    private static final long WORKER_KEEP_ALIVE_MILLIS = 30000;
+    private static final int FAIRNESS_INTERVAL = 4;
+
+    /**
+     * The urgency of a request.
+     */
+    public enum Priority {
+        /**
+         * Something the user is waiting on.
+         */
+        INTERACTIVE,
+
+        /**
+         * Prefetching and other work nobody is waiting on.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * A task that can queue itself again, with its own host and priority, on the scheduler that replaced the one it
+     * was drained from.
+     */
+    interface Requeueable {
+        /**
+         * Queue the task on the current scheduler, or report the failure to its listener if none takes it.
+         */
+        void requeue();
+    }
+
+    private final int mMaxWorkers;
+    private final int mMaxPerHost;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mAvailable = mLock.newCondition();
+    private final LinkedList<Task> mInteractive = new LinkedList<Task>();
+    private final LinkedList<Task> mBackground = new LinkedList<Task>();
+    private final Map<String, Integer> mActivePerHost = new HashMap<String, Integer>();
+    private int mWorkerCount;
+    private int mIdleWorkers;
+    private int mActiveCount;
+    private int mInteractiveStreak;
+    private int mThreadSequence;
+    private boolean mShutdown;
+    private boolean mBackgroundPaused;
+
+    private long mDispatchedCount;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+
+    public RequestScheduler() {
+        this(DEFAULT_MAX_WORKERS, DEFAULT_MAX_PER_HOST);
+    }
+
+    /**
+     * @param maxWorkers the maximum number of requests running at once.
+     * @param maxPerHost the maximum number of requests running at once against a single host.
+     */
+    public RequestScheduler(int maxWorkers, int maxPerHost) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("Max workers must be at least 1.");
+        }
+
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("Max per host must be at least 1.");
+        }
+
+        mMaxWorkers = maxWorkers;
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * Queue a task to run on a worker thread.
+     *
+     * @param host the host the task talks to, used for the per-host cap.
+     * @param priority the {@link Priority} of the task.
+     * @param runnable the work to run.
+     * @throws IllegalStateException if the scheduler has been shut down.
+     */
+    public void execute(String host, Priority priority, Runnable runnable) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("Runnable cannot be null.");
+        }
+
+        Task task = new Task(host != null ? host : "", priority != null ? priority : Priority.INTERACTIVE, runnable);
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                throw new IllegalStateException("Scheduler has been shut down.");
+            }
+
+            (task.priority == Priority.INTERACTIVE ? mInteractive : mBackground).add(task);
+            if (task.priority == Priority.BACKGROUND && mBackgroundPaused) {
+                return;
+            }
+            if (mIdleWorkers == 0 && mWorkerCount < mMaxWorkers) {
+                startWorker();
+            } else {
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Remove a task that has not started yet.
+     *
+     * @param runnable the runnable passed to {@link #execute}.
+     * @return true if the task was still queued and will now never run.
+     */
+    public boolean remove(Runnable runnable) {
+        mLock.lock();
+        try {
+            return removeTask(mInteractive, runnable) || removeTask(mBackground, runnable);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Hold background tasks in the queue, ie: while the device is on a metered network. Interactive tasks are not
+     * affected, and background tasks already running finish normally.
+     *
+     * @param paused true to hold background tasks, false to let them run again.
+     */
+    public void setBackgroundPaused(boolean paused) {
+        mLock.lock();
+        try {
+            if (mBackgroundPaused != paused) {
+                Log.v(TAG, paused ? "Pausing background requests." : "Resuming background requests.");
+                mBackgroundPaused = paused;
+                if (!paused && !mBackground.isEmpty()) {
+                    while (mWorkerCount < mMaxWorkers && mWorkerCount - mActiveCount < mBackground.size()) {
+                        startWorker();
+                    }
+                    mAvailable.signalAll();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public boolean isBackgroundPaused() {
+        mLock.lock();
+        try {
+            return mBackgroundPaused;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting new work. Queued tasks are discarded; running tasks finish normally.
+     */
+    public void shutdown() {
+        shutdownAndDrain();
+    }
+
+    /**
+     * Stop accepting new work, and hand back the tasks that were still queued instead of discarding them, ie: to run
+     * them elsewhere. Running tasks finish normally.
+     *
+     * @return the runnables of the queued tasks, interactive ones first, in the order they were queued.
+     */
+    public List<Runnable> shutdownAndDrain() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            List<Runnable> drained = new ArrayList<Runnable>(mInteractive.size() + mBackground.size());
+            for (Task task : mInteractive) {
+                drained.add(task.runnable);
+            }
+            for (Task task : mBackground) {
+                drained.add(task.runnable);
+            }
+            mInteractive.clear();
+            mBackground.clear();
+            mAvailable.signalAll();
+            return drained;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            return mInteractive.size() + mBackground.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for a worker at the given priority.
+     */
+    public int getQueueDepth(Priority priority) {
+        mLock.lock();
+        try {
+            return (priority == Priority.INTERACTIVE ? mInteractive : mBackground).size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks currently running.
+     */
+    public int getActiveCount() {
+        mLock.lock();
+        try {
+            return mActiveCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks that have been started since the scheduler was created.
+     */
+    public long getDispatchedCount() {
+        mLock.lock();
+        try {
+            return mDispatchedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the mean time, in milliseconds, tasks spent queued before a worker started them.
+     */
+    public long getAverageWaitMillis() {
+        mLock.lock();
+        try {
+            return mDispatchedCount == 0 ? 0 : mTotalWaitMillis / mDispatchedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the longest time, in milliseconds, any task spent queued before a worker started it.
+     */
+    public long getMaxWaitMillis() {
+        mLock.lock();
+        try {
+            return mMaxWaitMillis;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void startWorker() {
+        mWorkerCount++;
+        Thread thread = new Thread(new Worker(), "NetUtils-Worker-" + (++mThreadSequence));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Pick the next task whose host has capacity, honoring priority and the fairness interval. Must be called with
+     * the lock held.
+     */
+    private Task takeNext() {
+        Task task = null;
+        if (mInteractiveStreak >= FAIRNESS_INTERVAL && !mBackgroundPaused) {
+            task = removeFirstRunnable(mBackground);
+        }
+        if (task == null) {
+            task = removeFirstRunnable(mInteractive);
+        }
+        if (task == null && !mBackgroundPaused) {
+            task = removeFirstRunnable(mBackground);
+        }
+
+        if (task != null) {
+            mInteractiveStreak = task.priority == Priority.INTERACTIVE ? mInteractiveStreak + 1 : 0;
+
+            long wait = System.currentTimeMillis() - task.enqueuedAt;
+            mDispatchedCount++;
+            mTotalWaitMillis += wait;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, wait);
+        }
+        return task;
+    }
+
+    private Task removeFirstRunnable(LinkedList<Task> queue) {
+        Iterator<Task> it = queue.iterator();
+        while (it.hasNext()) {
+            Task task = it.next();
+            Integer active = mActivePerHost.get(task.host);
+            if (active == null || active < mMaxPerHost) {
+                it.remove();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private static boolean removeTask(LinkedList<Task> queue, Runnable runnable) {
+        Iterator<Task> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == runnable) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void adjustHost(String host, int delta) {
+        Integer active = mActivePerHost.get(host);
+        int count = (active != null ? active : 0) + delta;
+        if (count <= 0) {
+            mActivePerHost.remove(host);
+        } else {
+            mActivePerHost.put(host, count);
+        }
+    }
+
+    private static final class Task {
+        final String host;
+        final Priority priority;
+        final Runnable runnable;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Task(String host, Priority priority, Runnable runnable) {
+            this.host = host;
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                Task task;
+                mLock.lock();
+                try {
+                    while ((task = takeNext()) == null) {
+                        if (mShutdown) {
+                            mWorkerCount--;
+                            return;
+                        }
+
+                        mIdleWorkers++;
+                        boolean signalled;
+                        try {
+                            signalled = mAvailable.await(WORKER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            signalled = false;
+                        } finally {
+                            mIdleWorkers--;
+                        }
+
+                        if (!signalled && mInteractive.isEmpty() && (mBackgroundPaused || mBackground.isEmpty())) {
+                            mWorkerCount--;
+                            return;
+                        }
+                    }
+
+                    adjustHost(task.host, 1);
+                    mActiveCount++;
+                } finally {
+                    mLock.unlock();
+                }
+
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Request task threw an exception.", e);
+                } finally {
+                    mLock.lock();
+                    try {
+                        adjustHost(task.host, -1);
+                        mActiveCount--;
+                        // A host slot opened up, so a queued task blocked on it may now be runnable.
+                        mAvailable.signalAll();
+                    } finally {
+                        mLock.unlock();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.esri.android.util;
+
+import android.util.Log;
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Traces the progress of HTTP requests made through {@link NetUtils}. Messages are only formatted once
+ * {@link #isEnabled} has returned true, so a disabled tracer costs a single check per event.
+ *
+ * <p>Request bodies are never read unless {@link #getMaxBodyBytes} is above 0, and then only up to that many bytes
+ * of a repeatable entity.
+ *
+ * @see NetUtils#setRequestTracer
+ */
+public abstract class RequestTracer {
+    /**
+     * A tracer that records nothing.
+     */
+    public static final RequestTracer NONE = new RequestTracer() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        protected void log(String requestId, String message) {
+        }
+    };
+
+    /**
+     * @return true if events should be traced. Called before every event, so it must be cheap.
+     */
+    public abstract boolean isEnabled();
+
+    /**
+     * @return the number of request body bytes to trace, or 0 to leave bodies alone (the default).
+     */
+    public int getMaxBodyBytes() {
+        return 0;
+    }
+
+    /**
+     * Record one formatted event.
+     *
+     * @param requestId the ID of the request, ie: "x3F9a".
+     */
+    protected abstract void log(String requestId, String message);
+
+    void trace(String requestId, String message) {
+        if (isEnabled()) {
+            log(requestId, message);
+        }
+    }
+
+    void trace(String requestId, String format, Object arg) {
+        if (isEnabled()) {
+            log(requestId, String.format(format, arg));
+        }
+    }
+
+    void trace(String requestId, String format, Object arg1, Object arg2) {
+        if (isEnabled()) {
+            log(requestId, String.format(format, arg1, arg2));
+        }
+    }
+
+    // Primitive overloads, so a disabled tracer does not box the arguments of the hot call sites.
+
+    void trace(String requestId, String format, Object arg1, int arg2) {
+        if (isEnabled()) {
+            log(requestId, String.format(format, arg1, arg2));
+        }
+    }
+
+    void trace(String requestId, String format, long arg1, Object arg2) {
+        if (isEnabled()) {
+            log(requestId, String.format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * Trace the start of a request body, if body capture is enabled. Entities that cannot be read twice are
+     * described without being read.
+     */
+    void traceBody(String requestId, HttpEntity entity) {
+        int maxBytes = getMaxBodyBytes();
+        if (entity == null || maxBytes <= 0 || !isEnabled()) {
+            return;
+        }
+
+        if (!entity.isRepeatable()) {
+            log(requestId, "Request body: (streamed, " + entity.getContentLength() + " bytes)");
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[maxBytes];
+            int length = 0;
+            InputStream content = entity.getContent();
+            try {
+                int read;
+                while (length < maxBytes && (read = content.read(buffer, length, maxBytes - length)) != -1) {
+                    length += read;
+                }
+            } finally {
+                content.close();
+            }
+
+            String body = new String(buffer, 0, length, NetUtils.charsetOf(entity));
+            long total = entity.getContentLength();
+            if (total > length || (total < 0 && length == maxBytes)) {
+                body += "... (truncated, " + (total < 0 ? "more than " + length : total) + " bytes)";
+            }
+            log(requestId, "Request body: " + body);
+        } catch (IOException e) {
+            log(requestId, "Request body could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Traces to logcat when {@link Log#isLoggable} allows its tag and level, so tracing is off until enabled with
+     * "adb shell setprop log.tag.&lt;tag&gt; VERBOSE".
+     */
+    public static class LogcatTracer extends RequestTracer {
+        private final String mTag;
+        private final int mLevel;
+        private final int mMaxBodyBytes;
+
+        /**
+         * Trace at {@link Log#VERBOSE} without request bodies.
+         *
+         * @param tag the logcat tag, at most 23 characters.
+         */
+        public LogcatTracer(String tag) {
+            this(tag, Log.VERBOSE, 0);
+        }
+
+        /**
+         * @param tag the logcat tag, at most 23 characters.
+         * @param level the logcat priority, ie: {@link Log#DEBUG}.
+         * @param maxBodyBytes the number of request body bytes to trace, or 0 for none.
+         */
+        public LogcatTracer(String tag, int level, int maxBodyBytes) {
+            if (tag == null) {
+                throw new IllegalArgumentException("Tag cannot be null.");
+            }
+
+            if (maxBodyBytes < 0) {
+                throw new IllegalArgumentException("Max body bytes cannot be negative.");
+            }
+
+            mTag = tag;
+            mLevel = level;
+            mMaxBodyBytes = maxBodyBytes;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return Log.isLoggable(mTag, mLevel);
+        }
+
+        @Override
+        public int getMaxBodyBytes() {
+            return mMaxBodyBytes;
+        }
+
+        @Override
+        protected void log(String requestId, String message) {
+            Log.println(mLevel, mTag, "[" + requestId + "] " + message);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.esri.android.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.util.Random;
+
+/**
+ * Decides whether a failed HTTP request is sent again, and how long to wait first. Setters return the policy so they
+ * can be chained, ie:
+ * <pre>
+ * NetUtils.setRetryPolicy(new RetryPolicy().setMaxAttempts(4).setInitialBackoff(250));
+ * </pre>
+ *
+ * <p>A request is retried when the connection fails or the server responds with 408, 429, 502, 503 or 504. The wait
+ * doubles after each attempt, up to {@link #setMaxBackoff}, and is randomly shortened by up to
+ * {@link #setJitter} of itself so that clients which failed together do not all come back together. A
+ * "Retry-After" header from the server is honoured when it asks for a longer wait.
+ *
+ * <p>Only idempotent methods (GET, HEAD, PUT, DELETE, OPTIONS, TRACE) and requests carrying an "Idempotency-Key"
+ * header are retried, unless {@link #setRetryNonIdempotent} is enabled.
+ *
+ * <p>Do not change a policy after it has been handed to {@link NetUtils} or a {@link RequestOptions}.
+ */
+public class RetryPolicy {
+    private static final Random sRandom = new Random();
+
+    private int mMaxAttempts = 3;
+    private long mInitialBackoff = 500;
+    private long mMaxBackoff = 30000;
+    private double mJitter = 0.5;
+    private long mMaxRetryAfter = 60000;
+    private boolean mRetryNonIdempotent;
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param maxAttempts the total number of times a request is sent, the first attempt included; defaults to 3.
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be at least 1.");
+        }
+        mMaxAttempts = maxAttempts;
+        return this;
+    }
+
+    public long getInitialBackoff() {
+        return mInitialBackoff;
+    }
+
+    /**
+     * @param initialBackoff milliseconds to wait before the first retry; defaults to 500.
+     */
+    public RetryPolicy setInitialBackoff(long initialBackoff) {
+        if (initialBackoff < 0) {
+            throw new IllegalArgumentException("Initial backoff cannot be negative.");
+        }
+        mInitialBackoff = initialBackoff;
+        return this;
+    }
+
+    public long getMaxBackoff() {
+        return mMaxBackoff;
+    }
+
+    /**
+     * @param maxBackoff the longest wait between attempts in milliseconds; defaults to 30000.
+     */
+    public RetryPolicy setMaxBackoff(long maxBackoff) {
+        if (maxBackoff < 0) {
+            throw new IllegalArgumentException("Max backoff cannot be negative.");
+        }
+        mMaxBackoff = maxBackoff;
+        return this;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * @param jitter the fraction, from 0 to 1, by which each wait may be randomly shortened; defaults to 0.5.
+     */
+    public RetryPolicy setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1.");
+        }
+        mJitter = jitter;
+        return this;
+    }
+
+    public long getMaxRetryAfter() {
+        return mMaxRetryAfter;
+    }
+
+    /**
+     * @param maxRetryAfter the longest "Retry-After" in milliseconds that is waited out; a server asking for longer
+     *                      gets its response passed to onError instead. Defaults to 60000.
+     */
+    public RetryPolicy setMaxRetryAfter(long maxRetryAfter) {
+        if (maxRetryAfter < 0) {
+            throw new IllegalArgumentException("Max Retry-After cannot be negative.");
+        }
+        mMaxRetryAfter = maxRetryAfter;
+        return this;
+    }
+
+    public boolean isRetryNonIdempotent() {
+        return mRetryNonIdempotent;
+    }
+
+    /**
+     * @param retryNonIdempotent true to also retry POSTs that have no "Idempotency-Key", accepting that the server
+     *                           may see the same write twice.
+     */
+    public RetryPolicy setRetryNonIdempotent(boolean retryNonIdempotent) {
+        mRetryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    /**
+     * @return true if a response with this status is worth retrying.
+     */
+    public boolean isRetryableStatus(int statusCode) {
+        switch (statusCode) {
+            case HttpStatus.SC_REQUEST_TIMEOUT:
+            case 429:
+            case HttpStatus.SC_BAD_GATEWAY:
+            case HttpStatus.SC_SERVICE_UNAVAILABLE:
+            case HttpStatus.SC_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1.
+     * @return true if the request may be sent again: attempts remain, the method allows it and its body can be re-sent.
+     */
+    boolean canRetry(HttpRequestBase request, int attempt) {
+        if (attempt >= mMaxAttempts) {
+            return false;
+        }
+
+        if (!mRetryNonIdempotent && !isIdempotent(request)) {
+            return false;
+        }
+
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1.
+     * @param response the failed response, or null if the request did not get one.
+     * @return milliseconds to wait before the next attempt, or -1 if the server asked for a longer wait than
+     *         {@link #setMaxRetryAfter} allows.
+     */
+    long getDelay(int attempt, HttpResponse response) {
+        long backoff = mInitialBackoff;
+        for (int i = 1; i < attempt && backoff < mMaxBackoff; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, mMaxBackoff);
+        backoff -= (long) (backoff * mJitter * sRandom.nextDouble());
+
+        long retryAfter = response != null ? parseRetryAfter(response, System.currentTimeMillis()) : -1;
+        if (retryAfter > mMaxRetryAfter) {
+            return -1;
+        }
+        return Math.max(backoff, retryAfter);
+    }
+
+    private static boolean isIdempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method)
+                || "OPTIONS".equals(method) || "TRACE".equals(method)
+                || request.containsHeader(OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER);
+    }
+
+    /**
+     * @return the wait a "Retry-After" header asks for in milliseconds, given as seconds or as an HTTP date, or -1 if
+     *         there is no usable header.
+     */
+    static long parseRetryAfter(HttpResponse response, long now) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, DateUtils.parseDate(value).getTime() - now);
+            } catch (DateParseException e1) {
+                return -1;
+            }
+        }
+    }
+}
@@ -4,13 +4,217 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A pack of helpful getter and setter methods for reading/writing to {@link SharedPreferences}.
+ *
+ * <p>Every getter and setter takes an optional store name, the name of the preferences file to use. Without one,
+ * the default file is used, or the file the {@link #setKeyRouter key router} picks for the key.
+ *
+ * <p>The getters cache the values they read. The cache follows every write made through this class, but not
+ * always writes made through another {@link SharedPreferences.Editor}, ie: {@link SharedPreferences.Editor#clear}.
+ * Call {@link #invalidateCache} after writing the preferences directly.
  */
 final public class SharedPrefsUtils {
+    private static final String TAG = "SharedPrefsUtils";
+
+    private static volatile long sWriteBehindMillis;
+    private static volatile SharedPreferences sDefaultPreferences;
+    private static volatile PreferenceRouter sRouter;
+    private static final ConcurrentHashMap<String, SharedPreferences> sStores =
+            new ConcurrentHashMap<String, SharedPreferences>();
+
     private SharedPrefsUtils() {}
 
+    /**
+     * Let the set*Preference methods return without touching the disk: each value is visible to the getters at once
+     * and written in the background, together with every other value set within the debounce window, by one
+     * commit. Call {@link #flush} when the values must be durable, ie: in onPause.
+     *
+     * @param debounceMillis how long to collect writes before committing them, or 0 to commit every write on the
+     *                       calling thread (the default).
+     */
+    public static void setWriteBehind(long debounceMillis) {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("Debounce cannot be negative.");
+        }
+        sWriteBehindMillis = debounceMillis;
+    }
+
+    /**
+     * Spread the keys of calls made without a store name over several preferences files, so each commit only
+     * rewrites the file the key lives in. Set it once, before the first read.
+     *
+     * @param router picks the file for each key, ie: a {@link PreferenceRouter.HashRouter}, or null to keep every
+     *               key in the default file (the default).
+     * @see #migrateDefaultPreferences
+     */
+    public static void setKeyRouter(PreferenceRouter router) {
+        sRouter = router;
+    }
+
+    /**
+     * Use the given preferences for a store name instead of the XML file the framework keeps under that name, ie: a
+     * {@link MappedPreferences} for values written many times a second. Register stores before their first use.
+     *
+     * @param storeName the name passed to the getters and setters, or picked by the {@link #setKeyRouter router}.
+     * @param preferences the preferences to read and write for that name.
+     */
+    public static void registerStore(String storeName, SharedPreferences preferences) {
+        if (TextUtils.isEmpty(storeName)) {
+            throw new IllegalArgumentException("Store name cannot be empty.");
+        }
+        if (preferences == null) {
+            throw new IllegalArgumentException("Preferences cannot be null.");
+        }
+        sStores.put(storeName, preferences);
+    }
+
+    /**
+     * Start writing every staged value, in every preferences file, now, on a background thread.
+     *
+     * @param context a {@link Context} object.
+     * @param listener notified on the main thread once everything staged so far is on disk, or null.
+     */
+    public static void flush(Context context, CompletionListener listener) {
+        List<PreferenceWriter> writers = PreferenceWriter.getAll();
+        if (writers.isEmpty()) {
+            if (listener != null) {
+                PreferenceWriter.notifyListeners(Collections.singletonList(listener), true);
+            }
+            return;
+        }
+
+        CompletionListener joined = listener != null ? new JoinedListener(listener, writers.size()) : null;
+        for (PreferenceWriter writer : writers) {
+            writer.flushAsync(joined);
+        }
+    }
+
+    /**
+     * Drop every cached value, so the getters read the preferences again. Only needed after the preferences were
+     * written without this class.
+     */
+    public static void invalidateCache() {
+        PreferenceCache.invalidateAll();
+    }
+
+    /**
+     * Load the default preferences file, every file the {@link #setKeyRouter key router} can pick and every
+     * {@link #registerStore registered} store on a background thread, so the first read on the main thread does not
+     * wait for them to be parsed. Call it early, ie: from Application.onCreate, after setting the router.
+     *
+     * @param context a {@link Context} object.
+     * @param listener notified on the main thread once the preferences are loaded, or null.
+     */
+    public static void preload(Context context, CompletionListener listener) {
+        preload(context, null, listener);
+    }
+
+    /**
+     * Load the given preferences files, as well as those {@link #preload(Context, CompletionListener)} loads, on a
+     * background thread.
+     *
+     * @param context a {@link Context} object.
+     * @param storeNames the names of further preferences files, or null.
+     * @param listener notified on the main thread once the preferences are loaded, or null.
+     */
+    public static void preload(Context context, Collection<String> storeNames, final CompletionListener listener) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final Set<String> names = new LinkedHashSet<String>();
+        names.add(null);
+        PreferenceRouter router = sRouter;
+        if (router != null) {
+            names.addAll(router.getStoreNames());
+        }
+        names.addAll(sStores.keySet());
+        if (storeNames != null) {
+            names.addAll(storeNames);
+        }
+
+        PreferenceWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                for (String name : names) {
+                    SharedPreferences preferences = name != null ? getStore(appContext, name)
+                            : getPreferences(appContext);
+                    if (preferences == null) {
+                        success = false;
+                        continue;
+                    }
+                    // Any read waits for the file to be loaded.
+                    preferences.contains("");
+                    PreferenceCache.get(preferences);
+                }
+
+                if (listener != null) {
+                    PreferenceWriter.notifyListeners(Collections.singletonList(listener), success);
+                }
+            }
+        });
+    }
+
+    /**
+     * Move the values in the default preferences file to the files the {@link #setKeyRouter key router} picks for
+     * them, on a background thread. A value already set in its new file is kept, and the old one dropped. Keys the
+     * router leaves in the default file, and string sets, are not moved.
+     *
+     * <p>Until the listener is called, the getters may return defaults for keys that have not been moved yet, so
+     * run it at startup, ie: right after {@link #setKeyRouter}. Running it again is harmless.
+     *
+     * @param context a {@link Context} object.
+     * @param listener notified on the main thread once the values are moved, or null.
+     */
+    public static void migrateDefaultPreferences(Context context, final CompletionListener listener) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        PreferenceWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = migrate(appContext);
+                if (listener != null) {
+                    PreferenceWriter.notifyListeners(Collections.singletonList(listener), success);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a {@link Batch} of changes that are written together by one commit per preferences file.
+     *
+     * @param context a {@link Context} object.
+     */
+    public static Batch edit(Context context) {
+        return edit(context, null);
+    }
+
+    /**
+     * Start a {@link Batch} of changes to one preferences file, written together by one commit.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     */
+    public static Batch edit(Context context, String storeName) {
+        return new Batch(context, storeName);
+    }
+
     /**
      * Helper method to retrieve a String value from {@link SharedPreferences}.
      *
@@ -19,10 +223,22 @@ final public class SharedPrefsUtils {
      * @return The value from shared preferences, or null if the value could not be read.
      */
     public static String getStringPreference(Context context, String key) {
+        return getStringPreference(context, null, key);
+    }
+
+    /**
+     * Helper method to retrieve a String value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read.
+     */
+    public static String getStringPreference(Context context, String storeName, String key) {
         String value = null;
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            value = preferences.getString(key, null);
+            value = (String) read(preferences, key, String.class);
         }
         return value;
     }
@@ -33,14 +249,30 @@ final public class SharedPrefsUtils {
      * @param context a {@link Context} object.
      * @param key
      * @param value
-     * @return true if the new value was successfully written to persistent storage.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
      */
     public static boolean setStringPreference(Context context, String key, String value) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        if (preferences != null && !TextUtils.isEmpty(key)) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putString(key, value);
-            return editor.commit();
+        return setStringPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a String value to a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setStringPreference(Context context, String storeName, String key, String value) {
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            return write(preferences, key, value != null ? value : PreferenceWriter.REMOVED);
         }
         return false;
     }
@@ -54,10 +286,26 @@ final public class SharedPrefsUtils {
      * @return The value from shared preferences, or the provided default.
      */
     public static float getFloatPreference(Context context, String key, float defaultValue) {
+        return getFloatPreference(context, null, key, defaultValue);
+    }
+
+    /**
+     * Helper method to retrieve a float value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param defaultValue A default to return if the value could not be read.
+     * @return The value from shared preferences, or the provided default.
+     */
+    public static float getFloatPreference(Context context, String storeName, String key, float defaultValue) {
         float value = defaultValue;
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            value = preferences.getFloat(key, defaultValue);
+            Object stored = read(preferences, key, Float.class);
+            if (stored != null) {
+                value = (Float) stored;
+            }
         }
         return value;
     }
@@ -68,14 +316,27 @@ final public class SharedPrefsUtils {
      * @param context a {@link Context} object.
      * @param key
      * @param value
-     * @return true if the new value was successfully written to persistent storage.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
      */
     public static boolean setFloatPreference(Context context, String key, float value) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return setFloatPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a float value to a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setFloatPreference(Context context, String storeName, String key, float value) {
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putFloat(key, value);
-            return editor.commit();
+            return write(preferences, key, value);
         }
         return false;
     }
@@ -89,10 +350,26 @@ final public class SharedPrefsUtils {
      * @return The value from shared preferences, or the provided default.
      */
     public static long getLongPreference(Context context, String key, long defaultValue) {
+        return getLongPreference(context, null, key, defaultValue);
+    }
+
+    /**
+     * Helper method to retrieve a long value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param defaultValue A default to return if the value could not be read.
+     * @return The value from shared preferences, or the provided default.
+     */
+    public static long getLongPreference(Context context, String storeName, String key, long defaultValue) {
         long value = defaultValue;
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            value = preferences.getLong(key, defaultValue);
+            Object stored = read(preferences, key, Long.class);
+            if (stored != null) {
+                value = (Long) stored;
+            }
         }
         return value;
     }
@@ -103,14 +380,27 @@ final public class SharedPrefsUtils {
      * @param context a {@link Context} object.
      * @param key
      * @param value
-     * @return true if the new value was successfully written to persistent storage.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
      */
     public static boolean setLongPreference(Context context, String key, long value) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return setLongPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a long value to a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setLongPreference(Context context, String storeName, String key, long value) {
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putLong(key, value);
-            return editor.commit();
+            return write(preferences, key, value);
         }
         return false;
     }
@@ -124,10 +414,26 @@ final public class SharedPrefsUtils {
      * @return The value from shared preferences, or the provided default.
      */
     public static int getIntegerPreference(Context context, String key, int defaultValue) {
+        return getIntegerPreference(context, null, key, defaultValue);
+    }
+
+    /**
+     * Helper method to retrieve an integer value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param defaultValue A default to return if the value could not be read.
+     * @return The value from shared preferences, or the provided default.
+     */
+    public static int getIntegerPreference(Context context, String storeName, String key, int defaultValue) {
         int value = defaultValue;
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            value = preferences.getInt(key, defaultValue);
+            Object stored = read(preferences, key, Integer.class);
+            if (stored != null) {
+                value = (Integer) stored;
+            }
         }
         return value;
     }
@@ -138,14 +444,27 @@ final public class SharedPrefsUtils {
      * @param context a {@link Context} object.
      * @param key
      * @param value
-     * @return true if the new value was successfully written to persistent storage.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
      */
     public static boolean setIntegerPreference(Context context, String key, int value) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return setIntegerPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write an integer value to a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setIntegerPreference(Context context, String storeName, String key, int value) {
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putInt(key, value);
-            return editor.commit();
+            return write(preferences, key, value);
         }
         return false;
     }
@@ -159,10 +478,26 @@ final public class SharedPrefsUtils {
      * @return The value from shared preferences, or the provided default.
      */
     public static boolean getBooleanPreference(Context context, String key, boolean defaultValue) {
+        return getBooleanPreference(context, null, key, defaultValue);
+    }
+
+    /**
+     * Helper method to retrieve a boolean value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param defaultValue A default to return if the value could not be read.
+     * @return The value from shared preferences, or the provided default.
+     */
+    public static boolean getBooleanPreference(Context context, String storeName, String key, boolean defaultValue) {
         boolean value = defaultValue;
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            value = preferences.getBoolean(key, defaultValue);
+            Object stored = read(preferences, key, Boolean.class);
+            if (stored != null) {
+                value = (Boolean) stored;
+            }
         }
         return value;
     }
@@ -173,15 +508,616 @@ final public class SharedPrefsUtils {
      * @param context a {@link Context} object.
      * @param key
      * @param value
-     * @return true if the new value was successfully written to persistent storage.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
      */
     public static boolean setBooleanPreference(Context context, String key, boolean value) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return setBooleanPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a boolean value to a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setBooleanPreference(Context context, String storeName, String key, boolean value) {
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            return write(preferences, key, value);
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to retrieve a {@link JSONObject} value from {@link SharedPreferences}.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The object is shared by
+     *         every reader until the value changes, so copy it before modifying it.
+     */
+    public static JSONObject getJSONObjectPreference(Context context, String key) {
+        return getJSONObjectPreference(context, null, key);
+    }
+
+    /**
+     * Helper method to retrieve a {@link JSONObject} value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The object is shared by
+     *         every reader until the value changes, so copy it before modifying it.
+     */
+    public static JSONObject getJSONObjectPreference(Context context, String storeName, String key) {
+        JSONObject value = null;
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            value = (JSONObject) readParsed(preferences, key, JSONObject.class);
+        }
+        return value;
+    }
+
+    /**
+     * Helper method to write a {@link JSONObject} value to {@link SharedPreferences}. Nothing is written if the stored
+     * value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setJSONObjectPreference(Context context, String key, JSONObject value) {
+        return setJSONObjectPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a {@link JSONObject} value to a named {@link SharedPreferences} file. Nothing is written
+     * if the stored value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setJSONObjectPreference(Context context, String storeName, String key, JSONObject value) {
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            return writeSerialized(preferences, key, serialize(value));
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to retrieve a {@link JSONArray} value from {@link SharedPreferences}.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The object is shared by
+     *         every reader until the value changes, so copy it before modifying it.
+     */
+    public static JSONArray getJSONArrayPreference(Context context, String key) {
+        return getJSONArrayPreference(context, null, key);
+    }
+
+    /**
+     * Helper method to retrieve a {@link JSONArray} value from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The object is shared by
+     *         every reader until the value changes, so copy it before modifying it.
+     */
+    public static JSONArray getJSONArrayPreference(Context context, String storeName, String key) {
+        JSONArray value = null;
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            value = (JSONArray) readParsed(preferences, key, JSONArray.class);
+        }
+        return value;
+    }
+
+    /**
+     * Helper method to write a {@link JSONArray} value to {@link SharedPreferences}. Nothing is written if the stored
+     * value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setJSONArrayPreference(Context context, String key, JSONArray value) {
+        return setJSONArrayPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a {@link JSONArray} value to a named {@link SharedPreferences} file. Nothing is written
+     * if the stored value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setJSONArrayPreference(Context context, String storeName, String key, JSONArray value) {
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            return writeSerialized(preferences, key, serialize(value));
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to retrieve a set of String values from {@link SharedPreferences}.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The set cannot be
+     *         modified.
+     */
+    public static Set<String> getStringSetPreference(Context context, String key) {
+        return getStringSetPreference(context, null, key);
+    }
+
+    /**
+     * Helper method to retrieve a set of String values from a named {@link SharedPreferences} file.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @return The value from shared preferences, or null if the value could not be read. The set cannot be
+     *         modified.
+     */
+    @SuppressWarnings("unchecked")
+    public static Set<String> getStringSetPreference(Context context, String storeName, String key) {
+        Set<String> value = null;
+        SharedPreferences preferences = getPreferences(context, storeName, key);
+        if (preferences != null) {
+            value = (Set<String>) readParsed(preferences, key, Set.class);
+        }
+        return value;
+    }
+
+    /**
+     * Helper method to write a set of String values, stored as a JSON array, to {@link SharedPreferences}. Nothing
+     * is written if the stored value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setStringSetPreference(Context context, String key, Set<String> value) {
+        return setStringSetPreference(context, null, key, value);
+    }
+
+    /**
+     * Helper method to write a set of String values, stored as a JSON array, to a named {@link SharedPreferences}
+     * file. Nothing is written if the stored value is already the same.
+     *
+     * @param context a {@link Context} object.
+     * @param storeName the name of the preferences file, or null to use the default.
+     * @param key
+     * @param value the value to store, or null to remove it.
+     * @return true if the new value was successfully written to persistent storage, or, in
+     *         {@link #setWriteBehind write-behind} mode, staged to be written.
+     */
+    public static boolean setStringSetPreference(Context context, String storeName, String key, Set<String> value) {
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        SharedPreferences preferences = getPreferences(context, storeName, key);
         if (preferences != null) {
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putBoolean(key, value);
-            return editor.commit();
+            return writeSerialized(preferences, key, serialize(value));
         }
         return false;
     }
+
+    /**
+     * @return the default preferences, resolved once and then reused.
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        SharedPreferences preferences = sDefaultPreferences;
+        if (preferences == null) {
+            preferences = PreferenceManager.getDefaultSharedPreferences(context);
+            sDefaultPreferences = preferences;
+        }
+        return preferences;
+    }
+
+    /**
+     * @return the named preferences, resolved once and then reused.
+     */
+    private static SharedPreferences getStore(Context context, String storeName) {
+        SharedPreferences preferences = sStores.get(storeName);
+        if (preferences == null) {
+            preferences = context.getSharedPreferences(storeName, Context.MODE_PRIVATE);
+            if (preferences != null) {
+                sStores.putIfAbsent(storeName, preferences);
+            }
+        }
+        return preferences;
+    }
+
+    /**
+     * @param storeName the name of the preferences file, or null to let the router pick one for the key.
+     */
+    private static SharedPreferences getPreferences(Context context, String storeName, String key) {
+        if (storeName == null) {
+            PreferenceRouter router = sRouter;
+            if (router != null && key != null) {
+                storeName = router.getStoreName(key);
+            }
+        }
+        return storeName != null ? getStore(context, storeName) : getPreferences(context);
+    }
+
+    /**
+     * Read a value from the pending writes, then the {@link PreferenceCache}, and only then the preferences.
+     *
+     * @param type the type stored under the key; a stored value of another type throws {@link ClassCastException}.
+     * @return the value, or null if the key has none.
+     */
+    private static Object read(SharedPreferences preferences, String key, Class<?> type) {
+        if (key == null) {
+            return null;
+        }
+
+        Object pending = PreferenceWriter.peek(preferences, key);
+        if (pending != null) {
+            return pending == PreferenceWriter.REMOVED ? null : pending;
+        }
+
+        PreferenceCache cache = PreferenceCache.get(preferences);
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return cached == PreferenceCache.ABSENT ? null : cached;
+        }
+
+        long generation = cache.getGeneration();
+        Object value = null;
+        if (preferences.contains(key)) {
+            if (type == String.class) {
+                value = preferences.getString(key, null);
+            } else if (type == Float.class) {
+                value = preferences.getFloat(key, 0);
+            } else if (type == Long.class) {
+                value = preferences.getLong(key, 0);
+            } else if (type == Integer.class) {
+                value = preferences.getInt(key, 0);
+            } else if (type == Boolean.class) {
+                value = preferences.getBoolean(key, false);
+            }
+        }
+        cache.put(key, value != null ? value : PreferenceCache.ABSENT, generation);
+        return value;
+    }
+
+    private static boolean write(SharedPreferences preferences, String key, Object value) {
+        PreferenceWriter writer = PreferenceWriter.get(preferences);
+        Map<String, Object> change = Collections.singletonMap(key, value);
+        long debounce = sWriteBehindMillis;
+        if (debounce > 0) {
+            writer.stage(change, debounce, null);
+            return true;
+        }
+        return writer.commit(change);
+    }
+
+    /**
+     * Read a string value and parse it, reusing the result of an earlier parse of the same string. A set stored
+     * natively, ie: by putStringSet on a {@link MappedPreferences} editor, is returned as it is.
+     *
+     * @param type {@link JSONObject}, {@link JSONArray} or {@link Set}.
+     * @return the parsed value, or null if the key has none, it cannot be parsed or another type is stored.
+     */
+    private static Object readParsed(SharedPreferences preferences, String key, Class<?> type) {
+        Object stored = readSerialized(preferences, key);
+        if (!(stored instanceof String)) {
+            return type.isInstance(stored) ? stored : null;
+        }
+        String source = (String) stored;
+
+        PreferenceCache cache = PreferenceCache.get(preferences);
+        Object value = cache.getParsed(key, source, type);
+        if (value == null) {
+            try {
+                value = parse(source, type);
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to parse preference " + key + ".", e);
+                return null;
+            }
+            cache.putParsed(key, source, value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the stored string, a natively stored set, another stored value, or null if the key has none.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object readSerialized(SharedPreferences preferences, String key) {
+        try {
+            return read(preferences, key, String.class);
+        } catch (ClassCastException e) {
+            // Another type is stored. Cache a set, so later reads find it without asking for a string again.
+            PreferenceCache cache = PreferenceCache.get(preferences);
+            long generation = cache.getGeneration();
+            Object value = preferences.getAll().get(key);
+            if (value instanceof Set) {
+                value = Collections.unmodifiableSet(new HashSet<String>((Set<String>) value));
+                cache.put(key, value, generation);
+            }
+            return value;
+        }
+    }
+
+    private static Object parse(String source, Class<?> type) throws JSONException {
+        if (type == JSONObject.class) {
+            return new JSONObject(source);
+        } else if (type == JSONArray.class) {
+            return new JSONArray(source);
+        }
+
+        JSONArray array = new JSONArray(source);
+        Set<String> values = new HashSet<String>();
+        for (int i = 0; i < array.length(); i++) {
+            values.add(array.getString(i));
+        }
+        return Collections.unmodifiableSet(values);
+    }
+
+    private static String serialize(JSONObject value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static String serialize(JSONArray value) {
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Sort the set, so the same values always produce the same string.
+     */
+    private static String serialize(Set<String> values) {
+        if (values == null) {
+            return null;
+        }
+
+        List<String> sorted = new ArrayList<String>(values);
+        for (String value : sorted) {
+            if (value == null) {
+                throw new IllegalArgumentException("Set cannot contain null.");
+            }
+        }
+        Collections.sort(sorted);
+        return new JSONArray(sorted).toString();
+    }
+
+    /**
+     * Write a serialized value, unless the same string is already stored.
+     *
+     * @param serialized the value, or null to remove the key.
+     */
+    private static boolean writeSerialized(SharedPreferences preferences, String key, String serialized) {
+        // A value of another type never equals the string, so it is replaced.
+        Object current = readSerialized(preferences, key);
+        if (serialized == null ? current == null : serialized.equals(current)) {
+            return true;
+        }
+        return write(preferences, key, serialized != null ? serialized : PreferenceWriter.REMOVED);
+    }
+
+    /**
+     * Copy routed values out of the default file, then remove them from it once every copy is on disk.
+     */
+    private static boolean migrate(Context context) {
+        SharedPreferences defaults = getPreferences(context);
+        PreferenceRouter router = sRouter;
+        if (defaults == null || router == null) {
+            return defaults != null;
+        }
+
+        PreferenceWriter defaultWriter = PreferenceWriter.get(defaults);
+        boolean success = defaultWriter.flush();
+        Map<SharedPreferences, Map<String, Object>> moves = new LinkedHashMap<SharedPreferences, Map<String, Object>>();
+        Map<String, Object> removals = new HashMap<String, Object>();
+        for (Map.Entry<String, ?> entry : defaults.getAll().entrySet()) {
+            String key = entry.getKey();
+            String storeName = router.getStoreName(key);
+            if (storeName == null || !PreferenceWriter.isSupported(entry.getValue())) {
+                continue;
+            }
+            SharedPreferences store = getStore(context, storeName);
+            if (store == null || store == defaults) {
+                continue;
+            }
+
+            if (!store.contains(key) && PreferenceWriter.peek(store, key) == null) {
+                Map<String, Object> changes = moves.get(store);
+                if (changes == null) {
+                    changes = new HashMap<String, Object>();
+                    moves.put(store, changes);
+                }
+                changes.put(key, entry.getValue());
+            }
+            removals.put(key, PreferenceWriter.REMOVED);
+        }
+
+        for (Map.Entry<SharedPreferences, Map<String, Object>> entry : moves.entrySet()) {
+            success &= PreferenceWriter.get(entry.getKey()).commit(entry.getValue());
+        }
+        if (success && !removals.isEmpty()) {
+            success = defaultWriter.commit(removals);
+        }
+        return success;
+    }
+
+    /**
+     * Typed puts and removes staged in memory, then written by a single commit per preferences file: ten values
+     * cost one file write instead of ten. Later changes to the same key replace earlier ones.
+     */
+    public static final class Batch {
+        private final Context mContext;
+        private final String mStoreName;
+        private final Map<SharedPreferences, Map<String, Object>> mChanges =
+                new LinkedHashMap<SharedPreferences, Map<String, Object>>();
+        private boolean mUnavailable;
+
+        private Batch(Context context, String storeName) {
+            mContext = context;
+            mStoreName = storeName;
+        }
+
+        public Batch putString(String key, String value) {
+            return stage(key, value != null ? value : PreferenceWriter.REMOVED);
+        }
+
+        public Batch putFloat(String key, float value) {
+            return stage(key, value);
+        }
+
+        public Batch putLong(String key, long value) {
+            return stage(key, value);
+        }
+
+        public Batch putInt(String key, int value) {
+            return stage(key, value);
+        }
+
+        public Batch putBoolean(String key, boolean value) {
+            return stage(key, value);
+        }
+
+        public Batch putJSONObject(String key, JSONObject value) {
+            String serialized = serialize(value);
+            return stage(key, serialized != null ? serialized : PreferenceWriter.REMOVED);
+        }
+
+        public Batch putJSONArray(String key, JSONArray value) {
+            String serialized = serialize(value);
+            return stage(key, serialized != null ? serialized : PreferenceWriter.REMOVED);
+        }
+
+        public Batch putStringSet(String key, Set<String> values) {
+            String serialized = serialize(values);
+            return stage(key, serialized != null ? serialized : PreferenceWriter.REMOVED);
+        }
+
+        public Batch remove(String key) {
+            return stage(key, PreferenceWriter.REMOVED);
+        }
+
+        /**
+         * Write the batch on the calling thread.
+         *
+         * @return true if the changes were successfully written to persistent storage.
+         */
+        public boolean commit() {
+            boolean success = !mUnavailable;
+            for (Map.Entry<SharedPreferences, Map<String, Object>> entry : mChanges.entrySet()) {
+                success &= PreferenceWriter.get(entry.getKey()).commit(entry.getValue());
+            }
+            return success;
+        }
+
+        /**
+         * Write the batch on a background thread. The new values are visible to the getters immediately.
+         */
+        public void apply() {
+            apply(null);
+        }
+
+        /**
+         * Write the batch on a background thread. The new values are visible to the getters immediately.
+         *
+         * @param listener notified on the main thread once the batch is on disk, or null.
+         */
+        public void apply(CompletionListener listener) {
+            if (mUnavailable || mChanges.isEmpty()) {
+                if (listener != null) {
+                    PreferenceWriter.notifyListeners(Collections.singletonList(listener), !mUnavailable);
+                }
+                listener = null;
+            }
+
+            CompletionListener joined = listener != null ? new JoinedListener(listener, mChanges.size()) : null;
+            for (Map.Entry<SharedPreferences, Map<String, Object>> entry : mChanges.entrySet()) {
+                PreferenceWriter.get(entry.getKey()).stage(entry.getValue(), 0, joined);
+            }
+        }
+
+        private Batch stage(String key, Object value) {
+            if (TextUtils.isEmpty(key)) {
+                throw new IllegalArgumentException("Key cannot be empty.");
+            }
+
+            SharedPreferences preferences = getPreferences(mContext, mStoreName, key);
+            if (preferences == null) {
+                mUnavailable = true;
+                return this;
+            }
+            Map<String, Object> changes = mChanges.get(preferences);
+            if (changes == null) {
+                changes = new LinkedHashMap<String, Object>();
+                mChanges.put(preferences, changes);
+            }
+            changes.put(key, value);
+            return this;
+        }
+    }
+
+    /**
+     * Reports when staged preference writes have reached persistent storage.
+     */
+    public interface CompletionListener {
+        /**
+         * Called on the main thread.
+         *
+         * @param success true if the values were written; false if the write failed.
+         */
+        public void onComplete(boolean success);
+    }
+
+    /**
+     * Reports to one listener once writes to several files have all completed.
+     */
+    private static final class JoinedListener implements CompletionListener {
+        private final CompletionListener mListener;
+        private final AtomicInteger mRemaining;
+        private volatile boolean mSuccess = true;
+
+        JoinedListener(CompletionListener listener, int count) {
+            mListener = listener;
+            mRemaining = new AtomicInteger(count);
+        }
+
+        @Override
+        public void onComplete(boolean success) {
+            if (!success) {
+                mSuccess = false;
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                mListener.onComplete(mSuccess);
+            }
+        }
+    }
 }
@@ -0,0 +1,440 @@
+package com.esri.android.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Message;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers received datagrams into a bounded ring buffer and delivers them in batches, one
+ * {@link UdpBatchListener#onReceiveBatch} call per interval (a frame, by default), instead of one main-thread message
+ * per packet.
+ *
+ * <p>Use it as the listener for {@link NetUtils#listenToUdpSocket}, {@link NetUtils#openUdpConnection} or a
+ * {@link UdpMultiplexer} endpoint; it copies each datagram into a pre-allocated slot, so pooled packets and buffers
+ * can be reused as soon as it returns. When the ring is full the {@link OverflowPolicy} decides what happens.
+ *
+ * <p>Batches are delivered on the main thread unless a delivery executor is set with {@link #setDeliveryExecutor}.
+ */
+public class UdpBatcher implements NetUtils.UdpListener, UdpMultiplexer.ChannelListener {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_BATCH_INTERVAL_MILLIS = 16;
+
+    private static final int MSG_FLUSH = 1;
+    private static final int MSG_ERROR = 2;
+
+    /**
+     * What to do with a datagram that arrives while the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest undelivered datagram to make room; the listener always sees the latest data.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the datagram that just arrived.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Make the receiving thread wait for the listener to catch up. On a {@link UdpMultiplexer} this stalls every
+         * endpoint on the same I/O thread.
+         */
+        BLOCK
+    }
+
+    private final UdpBatchListener mListener;
+    private final OverflowPolicy mOverflowPolicy;
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final SocketAddress[] mSenders;
+    private final Batch mBatch = new Batch();
+    private final Handler mHandler;
+
+    private volatile Executor mDeliveryExecutor;
+    private volatile long mBatchInterval = DEFAULT_BATCH_INTERVAL_MILLIS;
+
+    // Guarded by this. mInFlight slots, just before mHead, are being read by the listener.
+    private int mHead;
+    private int mCount;
+    private int mInFlight;
+    private boolean mFlushScheduled;
+    private boolean mClosed;
+    private long mDroppedSinceBatch;
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mExecutorFlush = new Runnable() {
+        @Override
+        public void run() {
+            Executor executor = mDeliveryExecutor;
+            if (executor != null) {
+                executor.execute(mFlushTask);
+            } else {
+                mHandler.sendEmptyMessage(MSG_FLUSH);
+            }
+        }
+    };
+
+    public UdpBatcher(Context context, UdpBatchListener listener) {
+        this(context, listener, DEFAULT_CAPACITY, NetUtils.DEFAULT_UDP_PACKET_SIZE, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param context
+     * @param listener the {@link UdpBatchListener} to deliver batches to.
+     * @param capacity the number of datagrams the ring buffer holds.
+     * @param packetSize the size of each slot in bytes; longer datagrams are truncated.
+     * @param overflowPolicy what to do when the ring buffer is full.
+     */
+    public UdpBatcher(Context context, UdpBatchListener listener, int capacity, int packetSize,
+                      OverflowPolicy overflowPolicy) {
+        if (context == null) {
+            throw new IllegalArgumentException("Context cannot be null.");
+        }
+
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+
+        if (packetSize < 1) {
+            throw new IllegalArgumentException("Packet size must be at least 1.");
+        }
+
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null.");
+        }
+
+        mListener = listener;
+        mOverflowPolicy = overflowPolicy;
+        mSlots = new byte[capacity][packetSize];
+        mLengths = new int[capacity];
+        mSenders = new SocketAddress[capacity];
+        mHandler = new Handler(context.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                } else {
+                    mListener.onError((Throwable) msg.obj);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @param executor run batches on this executor instead of the main thread, or null for the main thread (the
+     *                 default). Batches never overlap, whichever thread they run on.
+     */
+    public UdpBatcher setDeliveryExecutor(Executor executor) {
+        mDeliveryExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @param batchInterval milliseconds to gather datagrams before delivering them, counted from the first datagram
+     *                      of a batch; defaults to {@link #DEFAULT_BATCH_INTERVAL_MILLIS}, about one frame.
+     */
+    public UdpBatcher setBatchInterval(long batchInterval) {
+        if (batchInterval < 0) {
+            throw new IllegalArgumentException("Batch interval cannot be negative.");
+        }
+        mBatchInterval = batchInterval;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return the number of datagrams accepted into the ring buffer.
+     */
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * @return the number of datagrams discarded because the ring buffer was full, or because the batcher was closed
+     *         while a receiver was blocked on it.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of batches delivered.
+     */
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    /**
+     * Stop delivering batches and release any receiver blocked on a full buffer. Datagrams still buffered are
+     * discarded.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            mCount = 0;
+            notifyAll();
+        }
+        mHandler.removeMessages(MSG_FLUSH);
+    }
+
+    /**
+     * Copy a datagram into the ring buffer. Called on the receiving thread.
+     *
+     * @return false if the datagram was dropped.
+     */
+    public boolean offer(byte[] data, int offset, int length, SocketAddress sender) {
+        int slot;
+        synchronized (this) {
+            slot = reserveSlot();
+            if (slot < 0) {
+                return false;
+            }
+
+            int copied = Math.min(length, mSlots[slot].length);
+            System.arraycopy(data, offset, mSlots[slot], 0, copied);
+            mLengths[slot] = copied;
+            mSenders[slot] = sender;
+            scheduleFlush();
+        }
+        mReceivedCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void onConnect(DatagramSocket socket) {
+        // Nothing to batch.
+    }
+
+    @Override
+    public void onReceive(DatagramPacket packet) {
+        offer(packet.getData(), packet.getOffset(), packet.getLength(), packet.getSocketAddress());
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        Executor executor = mDeliveryExecutor;
+        if (executor != null) {
+            final Throwable e = error;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onError(e);
+                }
+            });
+        } else {
+            mHandler.obtainMessage(MSG_ERROR, error).sendToTarget();
+        }
+    }
+
+    @Override
+    public void onOpen(UdpMultiplexer.Endpoint endpoint) {
+        // Nothing to batch.
+    }
+
+    @Override
+    public void onReceive(UdpMultiplexer.Endpoint endpoint, ByteBuffer data, SocketAddress sender) {
+        int slot;
+        synchronized (this) {
+            slot = reserveSlot();
+            if (slot < 0) {
+                return;
+            }
+
+            int copied = Math.min(data.remaining(), mSlots[slot].length);
+            data.get(mSlots[slot], 0, copied);
+            mLengths[slot] = copied;
+            mSenders[slot] = sender;
+            scheduleFlush();
+        }
+        mReceivedCount.incrementAndGet();
+    }
+
+    @Override
+    public void onError(UdpMultiplexer.Endpoint endpoint, IOException error) {
+        onError(error);
+    }
+
+    @Override
+    public void onClosed(UdpMultiplexer.Endpoint endpoint) {
+        // Nothing to batch.
+    }
+
+    /**
+     * Find the slot for a new datagram, applying the overflow policy when the buffer is full. Must be called with the
+     * lock held.
+     *
+     * @return the slot, or -1 if the datagram is dropped.
+     */
+    private int reserveSlot() {
+        int capacity = mSlots.length;
+        while (!mClosed && mInFlight + mCount == capacity) {
+            if (mOverflowPolicy == OverflowPolicy.DROP_OLDEST && mCount > 0) {
+                mHead = (mHead + 1) % capacity;
+                mCount--;
+                recordDrop();
+            } else if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    recordDrop();
+                    return -1;
+                }
+            } else {
+                // DROP_NEWEST, or DROP_OLDEST with every slot held by the batch being delivered.
+                recordDrop();
+                return -1;
+            }
+        }
+
+        if (mClosed) {
+            recordDrop();
+            return -1;
+        }
+
+        int slot = (mHead + mCount) % capacity;
+        mCount++;
+        return slot;
+    }
+
+    private void recordDrop() {
+        mDroppedSinceBatch++;
+        mDroppedCount.incrementAndGet();
+    }
+
+    /**
+     * Arrange for a flush unless one is already due. Must be called with the lock held.
+     */
+    private void scheduleFlush() {
+        if (mFlushScheduled || mInFlight > 0) {
+            // A batch being delivered schedules the next flush when it finishes.
+            return;
+        }
+
+        mFlushScheduled = true;
+        long interval = mBatchInterval;
+        if (mDeliveryExecutor != null) {
+            NetUtils.getTimer().schedule(mExecutorFlush, interval, TimeUnit.MILLISECONDS);
+        } else {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, interval);
+        }
+    }
+
+    private void flush() {
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mClosed || mCount == 0) {
+                return;
+            }
+
+            mBatch.mStart = mHead;
+            mBatch.mSize = mCount;
+            mBatch.mDropped = mDroppedSinceBatch;
+            mInFlight = mCount;
+            mHead = (mHead + mCount) % mSlots.length;
+            mCount = 0;
+            mDroppedSinceBatch = 0;
+        }
+
+        try {
+            mBatchCount.incrementAndGet();
+            mListener.onReceiveBatch(mBatch);
+        } finally {
+            synchronized (this) {
+                mInFlight = 0;
+                notifyAll();
+                if (mCount > 0 && !mClosed) {
+                    scheduleFlush();
+                }
+            }
+        }
+    }
+
+    /**
+     * The datagrams gathered since the last batch, oldest first. A batch, and the arrays it returns, are only valid
+     * during {@link UdpBatchListener#onReceiveBatch}; copy out anything you need to keep.
+     */
+    public final class Batch {
+        private int mStart;
+        private int mSize;
+        private long mDropped;
+
+        private Batch() {}
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the buffer holding datagram i; only the first {@link #getLength} bytes belong to it.
+         */
+        public byte[] getData(int i) {
+            return mSlots[slot(i)];
+        }
+
+        public int getLength(int i) {
+            return mLengths[slot(i)];
+        }
+
+        public SocketAddress getSender(int i) {
+            return mSenders[slot(i)];
+        }
+
+        /**
+         * @return the number of datagrams dropped since the previous batch.
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        private int slot(int i) {
+            if (i < 0 || i >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + i + " out of batch of " + mSize + ".");
+            }
+            return (mStart + i) % mSlots.length;
+        }
+    }
+
+    /**
+     * Receives batches of datagrams from a {@link UdpBatcher}, on the main thread or the delivery executor.
+     */
+    public interface UdpBatchListener {
+        /**
+         * @param batch the datagrams received since the last batch, at least one.
+         */
+        public void onReceiveBatch(UdpBatcher.Batch batch);
+
+        /**
+         * The socket or channel failed to receive.
+         */
+        public void onError(Throwable error);
+    }
+}
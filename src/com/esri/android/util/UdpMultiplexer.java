@@ -0,0 +1,460 @@
+package com.esri.android.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Services any number of UDP endpoints from a small, fixed set of I/O threads, each running a non-blocking
+ * {@link Selector}, instead of dedicating a blocked thread to every socket.
+ *
+ * <p>Endpoints are spread across the I/O threads round-robin. All work on an endpoint, opening, connecting, reading
+ * and closing, happens on its I/O thread; calls from other threads queue the work and wake the selector, so
+ * {@link Endpoint#close} and {@link #shutdown} take effect promptly even while the thread is waiting for data.
+ *
+ * <p>{@link ChannelListener} callbacks run on the I/O thread and must return quickly; hand anything slow to another
+ * thread.
+ */
+public class UdpMultiplexer {
+    private static final String TAG = "UdpMultiplexer";
+    public static final int DEFAULT_IO_THREADS = 1;
+    public static final int DEFAULT_PACKET_SIZE = 2048;
+
+    // Datagrams read from one channel before the selector moves on, so a flooded channel cannot starve the others.
+    private static final int MAX_READS_PER_SELECT = 64;
+
+    private static final AtomicInteger sThreadSequence = new AtomicInteger();
+
+    private final IoThread[] mThreads;
+    private final AtomicInteger mNextThread = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    public UdpMultiplexer() throws IOException {
+        this(DEFAULT_IO_THREADS, DEFAULT_PACKET_SIZE);
+    }
+
+    /**
+     * @param ioThreads the number of selector threads.
+     * @param packetSize the largest datagram, in bytes, that can be received without truncation.
+     */
+    public UdpMultiplexer(int ioThreads, int packetSize) throws IOException {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("I/O threads must be at least 1.");
+        }
+
+        if (packetSize < 1) {
+            throw new IllegalArgumentException("Packet size must be at least 1.");
+        }
+
+        mThreads = new IoThread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            mThreads[i] = new IoThread(Selector.open(), packetSize);
+        }
+        for (IoThread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Open a UDP channel connected to the supplied host/port. Name resolution and the connect happen on the I/O
+     * thread; {@link ChannelListener#onOpen} or {@link ChannelListener#onError} reports the result.
+     *
+     * @param host A host string, ie: "my.udp-server.com"
+     * @param port The port to connect
+     * @param listener a {@link ChannelListener} for the endpoint's events.
+     * @return the {@link Endpoint}, which can be used to send or close before it has finished opening.
+     */
+    public Endpoint connect(final String host, final int port, ChannelListener listener) {
+        if (host == null) {
+            throw new IllegalArgumentException("Host cannot be null.");
+        }
+
+        if (port < 0) {
+            throw new IllegalArgumentException("Port appears to be invalid.");
+        }
+
+        return open(listener, new ChannelFactory() {
+            @Override
+            public DatagramChannel create() throws IOException {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.connect(new InetSocketAddress(host, port));
+                return channel;
+            }
+        });
+    }
+
+    /**
+     * Open a UDP channel bound to a local port, to receive from any sender.
+     *
+     * @param port the local port, or 0 for any free port.
+     * @param listener a {@link ChannelListener} for the endpoint's events.
+     * @return the {@link Endpoint}.
+     */
+    public Endpoint bind(final int port, ChannelListener listener) {
+        if (port < 0) {
+            throw new IllegalArgumentException("Port appears to be invalid.");
+        }
+
+        return open(listener, new ChannelFactory() {
+            @Override
+            public DatagramChannel create() throws IOException {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.socket().bind(new InetSocketAddress(port));
+                return channel;
+            }
+        });
+    }
+
+    /**
+     * Service a channel you opened yourself, ie: one bound with particular socket options. It is switched to
+     * non-blocking mode.
+     *
+     * @param channel an open {@link DatagramChannel}.
+     * @param listener a {@link ChannelListener} for the endpoint's events.
+     * @return the {@link Endpoint}.
+     */
+    public Endpoint register(final DatagramChannel channel, ChannelListener listener) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Channel cannot be null.");
+        }
+
+        return open(listener, new ChannelFactory() {
+            @Override
+            public DatagramChannel create() {
+                return channel;
+            }
+        });
+    }
+
+    /**
+     * Close every endpoint and stop the I/O threads. Endpoints receive {@link ChannelListener#onClosed}.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (IoThread thread : mThreads) {
+            thread.mSelector.wakeup();
+        }
+    }
+
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * @return the number of endpoints currently registered, across all I/O threads.
+     */
+    public int getEndpointCount() {
+        int count = 0;
+        for (IoThread thread : mThreads) {
+            count += thread.mEndpointCount;
+        }
+        return count;
+    }
+
+    private Endpoint open(ChannelListener listener, ChannelFactory factory) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null.");
+        }
+
+        if (mShutdown) {
+            throw new IllegalStateException("Multiplexer has been shut down.");
+        }
+
+        IoThread thread = mThreads[(mNextThread.getAndIncrement() & Integer.MAX_VALUE) % mThreads.length];
+        Endpoint endpoint = new Endpoint(thread, listener, factory);
+        thread.submit(endpoint.mOpen);
+        return endpoint;
+    }
+
+    private interface ChannelFactory {
+        DatagramChannel create() throws IOException;
+    }
+
+    /**
+     * One UDP channel serviced by the multiplexer.
+     */
+    public static final class Endpoint {
+        private final IoThread mThread;
+        private final ChannelListener mListener;
+        private final ChannelFactory mFactory;
+        private volatile DatagramChannel mChannel;
+        private volatile boolean mClosed;
+        private SelectionKey mKey;
+
+        private final Runnable mOpen = new Runnable() {
+            @Override
+            public void run() {
+                mThread.open(Endpoint.this);
+            }
+        };
+
+        private final Runnable mClose = new Runnable() {
+            @Override
+            public void run() {
+                mThread.close(Endpoint.this);
+            }
+        };
+
+        private Endpoint(IoThread thread, ChannelListener listener, ChannelFactory factory) {
+            mThread = thread;
+            mListener = listener;
+            mFactory = factory;
+        }
+
+        /**
+         * @return the channel, or null if it has not been opened yet.
+         */
+        public DatagramChannel getChannel() {
+            return mChannel;
+        }
+
+        public boolean isOpen() {
+            DatagramChannel channel = mChannel;
+            return !mClosed && channel != null && channel.isOpen();
+        }
+
+        /**
+         * Send a datagram to the connected peer. May be called from any thread.
+         *
+         * @return the number of bytes sent, or 0 if the socket buffer was full and the datagram was dropped.
+         */
+        public int send(ByteBuffer data) throws IOException {
+            DatagramChannel channel = mChannel;
+            if (channel == null || mClosed) {
+                throw new ClosedChannelException();
+            }
+            return channel.write(data);
+        }
+
+        /**
+         * Send a datagram to an address. May be called from any thread.
+         *
+         * @return the number of bytes sent, or 0 if the socket buffer was full and the datagram was dropped.
+         */
+        public int send(ByteBuffer data, SocketAddress target) throws IOException {
+            DatagramChannel channel = mChannel;
+            if (channel == null || mClosed) {
+                throw new ClosedChannelException();
+            }
+            return channel.send(data, target);
+        }
+
+        /**
+         * Stop receiving and close the channel. {@link ChannelListener#onClosed} follows on the I/O thread.
+         */
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mThread.submit(mClose);
+            }
+        }
+    }
+
+    /**
+     * Events for one {@link Endpoint}. Callbacks run on the multiplexer's I/O thread.
+     */
+    public interface ChannelListener {
+        /**
+         * The channel is open, connected if it was opened with {@link #connect}, and registered for reads.
+         */
+        public void onOpen(Endpoint endpoint);
+
+        /**
+         * A datagram arrived.
+         *
+         * @param data the datagram, positioned at its first byte. The buffer is reused as soon as this returns, so
+         *             copy out anything you need to keep.
+         * @param sender the address it came from.
+         */
+        public void onReceive(Endpoint endpoint, ByteBuffer data, SocketAddress sender);
+
+        /**
+         * The channel failed to open or failed to read. A failed open is followed by {@link #onClosed}.
+         *
+         * @param endpoint the endpoint, or null if {@link NetUtils#openUdpChannel} could not create one.
+         */
+        public void onError(Endpoint endpoint, IOException error);
+
+        /**
+         * The channel was closed, by {@link Endpoint#close}, {@link UdpMultiplexer#shutdown} or a failure.
+         */
+        public void onClosed(Endpoint endpoint);
+    }
+
+    private final class IoThread extends Thread {
+        private final Selector mSelector;
+        private final ByteBuffer mBuffer;
+        private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+        private volatile int mEndpointCount;
+
+        IoThread(Selector selector, int packetSize) {
+            super("NetUtils-UDP-" + sThreadSequence.incrementAndGet());
+            setDaemon(true);
+            mSelector = selector;
+            mBuffer = ByteBuffer.allocateDirect(packetSize);
+        }
+
+        void submit(Runnable operation) {
+            mPending.add(operation);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mShutdown) {
+                    Runnable operation;
+                    while ((operation = mPending.poll()) != null) {
+                        runSafely(operation);
+                    }
+
+                    mSelector.select();
+
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            final Endpoint endpoint = (Endpoint) key.attachment();
+                            runSafely(new Runnable() {
+                                @Override
+                                public void run() {
+                                    read(endpoint);
+                                }
+                            });
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Selector failed; closing its endpoints.", e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "I/O thread failed; closing its endpoints.", e);
+            } finally {
+                // A dead thread cannot serve new endpoints; let NetUtils.getUdpMultiplexer build a new multiplexer.
+                shutdown();
+                for (SelectionKey key : new ArrayList<SelectionKey>(mSelector.keys())) {
+                    final Endpoint endpoint = (Endpoint) key.attachment();
+                    runSafely(new Runnable() {
+                        @Override
+                        public void run() {
+                            close(endpoint);
+                        }
+                    });
+                }
+                // Endpoints still waiting to open are reported closed.
+                Runnable operation;
+                while ((operation = mPending.poll()) != null) {
+                    runSafely(operation);
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do.
+                }
+            }
+        }
+
+        void open(Endpoint endpoint) {
+            if (endpoint.mClosed || mShutdown) {
+                endpoint.mClosed = true;
+                endpoint.mListener.onClosed(endpoint);
+                return;
+            }
+
+            DatagramChannel channel = null;
+            try {
+                channel = endpoint.mFactory.create();
+                channel.configureBlocking(false);
+                endpoint.mChannel = channel;
+                endpoint.mKey = channel.register(mSelector, SelectionKey.OP_READ, endpoint);
+                mEndpointCount++;
+            } catch (IOException e) {
+                closeQuietly(channel);
+                endpoint.mClosed = true;
+                endpoint.mListener.onError(endpoint, e);
+                endpoint.mListener.onClosed(endpoint);
+                return;
+            }
+            endpoint.mListener.onOpen(endpoint);
+        }
+
+        void close(Endpoint endpoint) {
+            endpoint.mClosed = true;
+            if (endpoint.mKey == null) {
+                // Not registered yet; the pending open will report the close.
+                return;
+            }
+
+            endpoint.mKey.cancel();
+            endpoint.mKey = null;
+            mEndpointCount--;
+            closeQuietly(endpoint.mChannel);
+            endpoint.mListener.onClosed(endpoint);
+        }
+
+        private void read(Endpoint endpoint) {
+            DatagramChannel channel = endpoint.mChannel;
+            boolean connected = channel.isConnected();
+            SocketAddress peer = connected ? channel.socket().getRemoteSocketAddress() : null;
+
+            for (int i = 0; i < MAX_READS_PER_SELECT && !endpoint.mClosed; i++) {
+                mBuffer.clear();
+                SocketAddress sender;
+                try {
+                    if (connected) {
+                        sender = channel.read(mBuffer) > 0 ? peer : null;
+                    } else {
+                        sender = channel.receive(mBuffer);
+                    }
+                } catch (IOException e) {
+                    // ie: ICMP port unreachable on a connected channel; the channel itself is still usable.
+                    endpoint.mListener.onError(endpoint, e);
+                    if (!channel.isOpen()) {
+                        close(endpoint);
+                    }
+                    return;
+                }
+
+                if (sender == null) {
+                    return;
+                }
+
+                mBuffer.flip();
+                endpoint.mListener.onReceive(endpoint, mBuffer, sender);
+            }
+        }
+
+        /**
+         * Run an operation or listener callback, so one failing listener cannot stop the thread serving every other
+         * endpoint.
+         */
+        private void runSafely(Runnable operation) {
+            try {
+                operation.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "UDP listener failed.", e);
+            }
+        }
+
+        private void closeQuietly(DatagramChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do.
+                }
+            }
+        }
+    }
+}
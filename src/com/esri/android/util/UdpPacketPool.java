@@ -0,0 +1,74 @@
+package com.esri.android.util;
+
+import java.net.DatagramPacket;
+
+/**
+ * A fixed set of {@link DatagramPacket}s, each with its own buffer, that are handed out by slot number and returned
+ * after use. Acquiring and releasing a slot allocates nothing, so a receive loop running on a pool produces no
+ * garbage in its steady state.
+ *
+ * <p>When every packet is in use, {@link #acquire} waits for one to be released. A receiver that outpaces its
+ * listener therefore stops reading and lets the socket's own buffer absorb (or drop) the excess.
+ */
+final class UdpPacketPool {
+    private final DatagramPacket[] mPackets;
+    private final int[] mFree;
+    private int mFreeCount;
+
+    /**
+     * @param packetSize the buffer size of each packet in bytes; larger datagrams are truncated.
+     * @param poolSize the number of packets.
+     */
+    UdpPacketPool(int packetSize, int poolSize) {
+        if (packetSize < 1) {
+            throw new IllegalArgumentException("Packet size must be at least 1.");
+        }
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1.");
+        }
+
+        mPackets = new DatagramPacket[poolSize];
+        mFree = new int[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            mPackets[i] = new DatagramPacket(new byte[packetSize], packetSize);
+            mFree[i] = i;
+        }
+        mFreeCount = poolSize;
+    }
+
+    /**
+     * Take a free packet, waiting for one if they are all in use. Its length is reset to the full buffer.
+     *
+     * @return the slot of the packet, to pass to {@link #get} and {@link #release}.
+     */
+    synchronized int acquire() throws InterruptedException {
+        while (mFreeCount == 0) {
+            wait();
+        }
+
+        int slot = mFree[--mFreeCount];
+        DatagramPacket packet = mPackets[slot];
+        packet.setLength(packet.getData().length);
+        return slot;
+    }
+
+    DatagramPacket get(int slot) {
+        return mPackets[slot];
+    }
+
+    /**
+     * Return a packet to the pool. Its contents must not be used afterwards.
+     */
+    synchronized void release(int slot) {
+        mFree[mFreeCount++] = slot;
+        notify();
+    }
+
+    /**
+     * @return the number of packets not currently in use.
+     */
+    synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+}
@@ -0,0 +1,396 @@
+package com.esri.android.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends datagrams from a dedicated background thread so callers, including the main thread, never block on
+ * {@link DatagramSocket#send}. Messages go onto a lock-free queue that the sender thread drains, subject to an
+ * optional token-bucket rate limit.
+ *
+ * <p>With batching enabled, small messages that are queued together are packed into one datagram, each prefixed
+ * with its length as an unsigned 16-bit big-endian integer. Every datagram is framed this way, even one holding a
+ * single message; the receiver splits them apart with {@link #unbatch}.
+ */
+public class UdpSender {
+    private static final String TAG = "UdpSender";
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+    public static final int MAX_MESSAGE_SIZE = 65507;
+
+    private static final int FRAME_HEADER_SIZE = 2;
+    private static final AtomicInteger sThreadSequence = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<byte[]> mQueue = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final Thread mThread;
+    private final String mHost;
+    private final int mPort;
+    private volatile DatagramSocket mSocket;
+    private volatile boolean mClosed;
+    private volatile boolean mParked;
+
+    private volatile int mMaxQueued = DEFAULT_MAX_QUEUED;
+    private volatile int mMaxBatchSize;
+    private volatile double mRate;
+    private volatile int mBurst = 1;
+    // Set when the limit changes, so the sender thread refills the bucket to the new burst.
+    private volatile boolean mRateLimitChanged;
+
+    // Only touched by the sender thread.
+    private double mTokens;
+    private long mLastRefill;
+
+    private final AtomicLong mSentMessages = new AtomicLong();
+    private final AtomicLong mSentDatagrams = new AtomicLong();
+    private final AtomicLong mSentBytes = new AtomicLong();
+    private final AtomicLong mFailedMessages = new AtomicLong();
+    private final AtomicLong mDroppedMessages = new AtomicLong();
+
+    /**
+     * Send on a socket that is already open and connected, ie: the one passed to
+     * {@link NetUtils.UdpListener#onConnect}.
+     */
+    public UdpSender(DatagramSocket socket) {
+        if (socket == null) {
+            throw new IllegalArgumentException("Socket cannot be null.");
+        }
+
+        if (!socket.isConnected() || socket.isClosed()) {
+            throw new IllegalArgumentException("Socket must be open and connected before attempting to send.");
+        }
+
+        mSocket = socket;
+        mHost = null;
+        mPort = -1;
+        mThread = startThread();
+    }
+
+    /**
+     * Open a socket to the supplied host/port. Name resolution and the connect happen on the sender thread; if they
+     * fail, queued messages are counted as failed and the sender closes.
+     *
+     * @param host A host string, ie: "my.udp-server.com"
+     * @param port The port to connect
+     */
+    public UdpSender(String host, int port) {
+        if (host == null || host.length() == 0) {
+            throw new IllegalArgumentException("Host cannot be empty.");
+        }
+
+        if (port < 0) {
+            throw new IllegalArgumentException("Port appears to be invalid.");
+        }
+
+        mHost = host;
+        mPort = port;
+        mThread = startThread();
+    }
+
+    /**
+     * @param maxQueued the number of messages that may wait to be sent; further messages are dropped. Defaults to
+     *                  {@link #DEFAULT_MAX_QUEUED}.
+     */
+    public UdpSender setMaxQueued(int maxQueued) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("Max queued must be at least 1.");
+        }
+        mMaxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * Pack queued messages into datagrams of up to this many bytes, framing included. A message too large to share a
+     * datagram is sent framed on its own.
+     *
+     * @param maxBatchSize the largest batched datagram in bytes, ie: 1400 to stay under a typical MTU, or 0 to send
+     *                     every message as its own, unframed datagram (the default).
+     */
+    public UdpSender setBatching(int maxBatchSize) {
+        if (maxBatchSize < 0 || maxBatchSize > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Max batch size must be between 0 and " + MAX_MESSAGE_SIZE + ".");
+        }
+        mMaxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Limit how fast datagrams are sent. Messages wait in the queue while the limit is reached.
+     *
+     * @param datagramsPerSecond the sustained rate, or 0 for no limit (the default).
+     * @param burst the number of datagrams that may be sent back to back after a quiet period.
+     */
+    public UdpSender setRateLimit(double datagramsPerSecond, int burst) {
+        if (datagramsPerSecond < 0) {
+            throw new IllegalArgumentException("Rate cannot be negative.");
+        }
+
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1.");
+        }
+        mRate = datagramsPerSecond;
+        mBurst = burst;
+        mRateLimitChanged = true;
+        return this;
+    }
+
+    /**
+     * Queue a message. Returns immediately; the message is sent from the sender thread. The array must not be
+     * modified afterwards.
+     *
+     * @return false if the message was dropped because the queue is full or the sender is closed.
+     */
+    public boolean send(byte[] message) {
+        if (message == null) {
+            throw new IllegalArgumentException("Message cannot be null.");
+        }
+
+        if (message.length > MAX_MESSAGE_SIZE - FRAME_HEADER_SIZE) {
+            throw new IllegalArgumentException("Message cannot be larger than "
+                    + (MAX_MESSAGE_SIZE - FRAME_HEADER_SIZE) + " bytes.");
+        }
+
+        if (mClosed) {
+            mDroppedMessages.incrementAndGet();
+            return false;
+        }
+
+        if (mQueued.incrementAndGet() > mMaxQueued) {
+            mQueued.decrementAndGet();
+            mDroppedMessages.incrementAndGet();
+            return false;
+        }
+
+        mQueue.add(message);
+        if (mParked) {
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the sender thread once the messages already queued have been sent, then close the socket.
+     */
+    public void close() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return the number of messages that have been sent.
+     */
+    public long getSentMessageCount() {
+        return mSentMessages.get();
+    }
+
+    /**
+     * @return the number of datagrams sent; fewer than the messages when batching packs several into one.
+     */
+    public long getSentDatagramCount() {
+        return mSentDatagrams.get();
+    }
+
+    /**
+     * @return the number of bytes sent, framing included.
+     */
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    /**
+     * @return the number of messages whose datagram could not be sent.
+     */
+    public long getFailedMessageCount() {
+        return mFailedMessages.get();
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full or the sender was closed.
+     */
+    public long getDroppedMessageCount() {
+        return mDroppedMessages.get();
+    }
+
+    /**
+     * @return the number of messages waiting to be sent.
+     */
+    public int getQueuedCount() {
+        return mQueued.get();
+    }
+
+    /**
+     * Split a datagram built by a batching sender back into its messages.
+     *
+     * @return a read-only view of each message, sharing the datagram's array.
+     * @throws IOException if the datagram is not correctly framed.
+     */
+    public static List<ByteBuffer> unbatch(byte[] data, int offset, int length) throws IOException {
+        List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            if (end - position < FRAME_HEADER_SIZE) {
+                throw new IOException("Truncated frame header at byte " + (position - offset) + ".");
+            }
+
+            int size = ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+            position += FRAME_HEADER_SIZE;
+            if (end - position < size) {
+                throw new IOException("Frame of " + size + " bytes overruns the datagram.");
+            }
+
+            messages.add(ByteBuffer.wrap(data, position, size).slice().asReadOnlyBuffer());
+            position += size;
+        }
+        return messages;
+    }
+
+    private Thread startThread() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "NetUtils-UdpSender-" + sThreadSequence.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void runSender() {
+        if (mSocket == null) {
+            try {
+                DatagramSocket socket = new DatagramSocket();
+                socket.connect(new InetSocketAddress(mHost, mPort));
+                mSocket = socket;
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to open UDP socket to " + mHost + ":" + mPort + ".", e);
+                mClosed = true;
+                failRemaining();
+                return;
+            }
+        }
+
+        byte[] batch = new byte[MAX_MESSAGE_SIZE];
+        DatagramPacket packet = new DatagramPacket(batch, 0);
+        mLastRefill = System.nanoTime();
+        mTokens = mBurst;
+
+        try {
+            while (true) {
+                byte[] message = mQueue.peek();
+                if (message == null) {
+                    if (mClosed) {
+                        return;
+                    }
+                    park();
+                    continue;
+                }
+
+                if (!acquireToken()) {
+                    continue;
+                }
+
+                int maxBatchSize = mMaxBatchSize;
+                int count;
+                if (maxBatchSize == 0) {
+                    mQueue.poll();
+                    packet.setData(message, 0, message.length);
+                    count = 1;
+                } else {
+                    // Pack as many queued messages as fit; an oversized message still goes out alone.
+                    int length = 0;
+                    count = 0;
+                    while (message != null && (count == 0
+                            || length + FRAME_HEADER_SIZE + message.length <= maxBatchSize)) {
+                        mQueue.poll();
+                        batch[length] = (byte) (message.length >>> 8);
+                        batch[length + 1] = (byte) message.length;
+                        System.arraycopy(message, 0, batch, length + FRAME_HEADER_SIZE, message.length);
+                        length += FRAME_HEADER_SIZE + message.length;
+                        count++;
+                        message = mQueue.peek();
+                    }
+                    packet.setData(batch, 0, length);
+                }
+                mQueued.addAndGet(-count);
+
+                try {
+                    mSocket.send(packet);
+                    mSentMessages.addAndGet(count);
+                    mSentDatagrams.incrementAndGet();
+                    mSentBytes.addAndGet(packet.getLength());
+                } catch (IOException e) {
+                    mFailedMessages.addAndGet(count);
+                    if (mSocket.isClosed()) {
+                        Log.w(TAG, "UDP socket closed; stopping sender.", e);
+                        mClosed = true;
+                        failRemaining();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Wait for the rate limiter to allow another datagram.
+     *
+     * @return true if a token was taken, false if the wait was cut short and the caller should check again.
+     */
+    private boolean acquireToken() {
+        double rate = mRate;
+        if (rate <= 0) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        if (mRateLimitChanged) {
+            // The thread starts before setRateLimit can be called, so the first burst is only known here.
+            mRateLimitChanged = false;
+            mTokens = mBurst;
+        }
+        mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        mLastRefill = now;
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return true;
+        }
+
+        LockSupport.parkNanos(this, (long) ((1 - mTokens) / rate * TimeUnit.SECONDS.toNanos(1)));
+        return false;
+    }
+
+    private void park() {
+        mParked = true;
+        // Re-check after publishing mParked so a message queued in between is not missed.
+        if (mQueue.isEmpty() && !mClosed) {
+            LockSupport.park(this);
+        }
+        mParked = false;
+    }
+
+    private void failRemaining() {
+        while (mQueue.poll() != null) {
+            mQueued.decrementAndGet();
+            mFailedMessages.incrementAndGet();
+        }
+    }
+}
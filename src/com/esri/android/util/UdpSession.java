@@ -0,0 +1,213 @@
+package com.esri.android.util;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A UDP receiver started by {@link NetUtils#listenToUdpSocket} or {@link NetUtils#openUdpChannel}, with its lifecycle
+ * and traffic counters. Sessions are listed by {@link NetUtils#getUdpSessions} while they run and drop out of the
+ * list as soon as they finish.
+ *
+ * <p>As a {@link Future}, cancelling a session closes it and {@link #get} waits for it to finish.
+ */
+public final class UdpSession implements Future<Void> {
+    private static final AtomicLong sNextId = new AtomicLong(1);
+
+    /**
+     * The lifecycle of a session.
+     */
+    public enum State {
+        /**
+         * Created, but the receiver has not started yet.
+         */
+        STARTING,
+
+        /**
+         * Receiving datagrams.
+         */
+        ACTIVE,
+
+        /**
+         * Closed by {@link #close}, {@link NetUtils#haltAllUdpReceiverThreads} or because its socket was closed.
+         */
+        CLOSED,
+
+        /**
+         * Stopped by an unexpected error.
+         */
+        FAILED
+    }
+
+    private final long mId;
+    private final String mRemoteAddress;
+    private final long mStartTime = System.currentTimeMillis();
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.STARTING);
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private final ConcurrentMap<Long, UdpSession> mRegistry;
+    private final AtomicLong mPacketCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private volatile long mLastReceiveTime;
+    private volatile boolean mCloseRequested;
+    private volatile Runnable mCloser;
+
+    /**
+     * @param registry the registry of running sessions; the session adds itself now and removes itself when it
+     *                 finishes.
+     * @param remoteAddress a description of the peer, for display.
+     */
+    UdpSession(ConcurrentMap<Long, UdpSession> registry, String remoteAddress) {
+        mId = sNextId.getAndIncrement();
+        mRemoteAddress = remoteAddress;
+        mRegistry = registry;
+        registry.put(mId, this);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * @return the peer the session talks to, ie: "my.udp-server.com:5000", or null if it is not connected.
+     */
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    public State getState() {
+        return mState.get();
+    }
+
+    /**
+     * @return when the session was created, in {@link System#currentTimeMillis} milliseconds.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return when the last datagram arrived, or 0 if none has.
+     */
+    public long getLastReceiveTime() {
+        return mLastReceiveTime;
+    }
+
+    public long getPacketCount() {
+        return mPacketCount.get();
+    }
+
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    /**
+     * @return the number of receive errors reported to the listener.
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * Stop receiving and close the socket or channel.
+     */
+    public void close() {
+        mCloseRequested = true;
+        Runnable closer = mCloser;
+        if (closer != null) {
+            closer.run();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCloseRequested && mState.get() == State.CLOSED;
+    }
+
+    @Override
+    public boolean isDone() {
+        State state = mState.get();
+        return state == State.CLOSED || state == State.FAILED;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mFinished.await();
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mFinished.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "UdpSession#" + mId + " (" + mState.get() + ", " + mRemoteAddress + ", " + mPacketCount.get()
+                + " packets)";
+    }
+
+    /**
+     * @param closer stops the receiver; run immediately if {@link #close} was already called.
+     */
+    void setCloser(Runnable closer) {
+        mCloser = closer;
+        if (mCloseRequested) {
+            closer.run();
+        }
+    }
+
+    /**
+     * @return false if the session was closed before it could start.
+     */
+    boolean markActive() {
+        return mState.compareAndSet(State.STARTING, State.ACTIVE);
+    }
+
+    void recordPacket(int length) {
+        mPacketCount.incrementAndGet();
+        mByteCount.addAndGet(length);
+        mLastReceiveTime = System.currentTimeMillis();
+    }
+
+    void recordError() {
+        mErrorCount.incrementAndGet();
+    }
+
+    /**
+     * Mark the session finished and remove it from the registry.
+     *
+     * @param failed true if it stopped because of an unexpected error rather than being closed.
+     */
+    void finish(boolean failed) {
+        while (true) {
+            State current = mState.get();
+            if (current == State.CLOSED || current == State.FAILED) {
+                return;
+            }
+            State terminal = failed && !mCloseRequested ? State.FAILED : State.CLOSED;
+            if (mState.compareAndSet(current, terminal)) {
+                break;
+            }
+        }
+        mRegistry.remove(mId, this);
+        mFinished.countDown();
+    }
+}
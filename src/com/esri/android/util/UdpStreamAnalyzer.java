@@ -0,0 +1,295 @@
+package com.esri.android.util;
+
+import android.os.SystemClock;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Measures the quality of a sequenced UDP stream as it is received: loss, reordering, duplicates and interarrival
+ * jitter, the last computed as in RFC 3550 section 6.4.1. Optionally drops duplicates before they reach the
+ * listener.
+ *
+ * <p>Wrap your listener and pass the analyzer to {@link NetUtils#listenToUdpSocket} or
+ * {@link NetUtils#openUdpConnection}; datagrams are measured on the receiving thread, as they arrive, even when the
+ * wrapped listener is called on the main thread. The statistics may be read from any thread.
+ *
+ * <p>Sequence numbers must increase by one per datagram sent. If the sender's counter wraps, the
+ * {@link SequenceExtractor} must unwrap it into a 64-bit value.
+ */
+public class UdpStreamAnalyzer implements NetUtils.UdpListener {
+    private static final int WINDOW_BITS = 1024;
+    public static final int DEFAULT_LOSS_WINDOW = 1000;
+
+    private final SequenceExtractor mExtractor;
+    private final NetUtils.UdpListener mDelegate;
+    private volatile boolean mSuppressDuplicates;
+    private final int mLossWindow;
+
+    // Guarded by this.
+    private final long[] mSeen = new long[WINDOW_BITS / 64];
+    private boolean mStarted;
+    private long mFirstSequence;
+    private long mHighestSequence;
+    private long mReceived;
+    private long mUnique;
+    private long mDuplicates;
+    private long mReordered;
+    private long mLate;
+    private long mWindowExpectedBase;
+    private long mWindowUniqueBase;
+    private double mRecentLossRate;
+    private boolean mHasTransit;
+    private double mLastTransit;
+    private double mJitter;
+
+    /**
+     * @param extractor reads the sequence number, and optionally the send timestamp, from each datagram.
+     * @param delegate the {@link NetUtils.UdpListener} to pass datagrams on to.
+     */
+    public UdpStreamAnalyzer(SequenceExtractor extractor, NetUtils.UdpListener delegate) {
+        this(extractor, delegate, DEFAULT_LOSS_WINDOW);
+    }
+
+    /**
+     * @param extractor reads the sequence number, and optionally the send timestamp, from each datagram.
+     * @param delegate the {@link NetUtils.UdpListener} to pass datagrams on to.
+     * @param lossWindow the number of expected datagrams over which {@link #getRecentLossRate} is measured.
+     */
+    public UdpStreamAnalyzer(SequenceExtractor extractor, NetUtils.UdpListener delegate, int lossWindow) {
+        if (extractor == null) {
+            throw new IllegalArgumentException("Extractor cannot be null.");
+        }
+
+        if (delegate == null) {
+            throw new IllegalArgumentException("Delegate cannot be null.");
+        }
+
+        if (lossWindow < 1) {
+            throw new IllegalArgumentException("Loss window must be at least 1.");
+        }
+
+        mExtractor = extractor;
+        mDelegate = delegate;
+        mLossWindow = lossWindow;
+    }
+
+    /**
+     * @param suppress true to drop datagrams whose sequence number was already received, among the last 1024.
+     */
+    public UdpStreamAnalyzer setSuppressDuplicates(boolean suppress) {
+        mSuppressDuplicates = suppress;
+        return this;
+    }
+
+    NetUtils.UdpListener getDelegate() {
+        return mDelegate;
+    }
+
+    @Override
+    public void onConnect(DatagramSocket socket) {
+        mDelegate.onConnect(socket);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        mDelegate.onError(error);
+    }
+
+    @Override
+    public void onReceive(DatagramPacket packet) {
+        if (record(packet.getData(), packet.getOffset(), packet.getLength())) {
+            mDelegate.onReceive(packet);
+        }
+    }
+
+    /**
+     * Measure a datagram that has just arrived.
+     *
+     * @return false if the datagram is a duplicate and duplicates are being suppressed.
+     */
+    public boolean record(byte[] data, int offset, int length) {
+        double arrival = SystemClock.elapsedRealtime();
+        long sequence = mExtractor.getSequence(data, offset, length);
+        if (sequence < 0) {
+            return true;
+        }
+        long timestamp = mExtractor.getTimestamp(data, offset, length);
+
+        synchronized (this) {
+            mReceived++;
+            if (!mStarted) {
+                mStarted = true;
+                mFirstSequence = sequence;
+                mHighestSequence = sequence;
+                mWindowExpectedBase = 0;
+                mWindowUniqueBase = 0;
+                markSeen(sequence);
+                mUnique++;
+            } else if (sequence > mHighestSequence) {
+                advanceWindow(sequence);
+                mHighestSequence = sequence;
+                markSeen(sequence);
+                mUnique++;
+            } else if (mHighestSequence - sequence >= WINDOW_BITS || sequence < mFirstSequence) {
+                // Too old to tell whether it is a duplicate; count it as late rather than risk dropping it.
+                mLate++;
+                mReordered++;
+                return true;
+            } else if (isSeen(sequence)) {
+                mDuplicates++;
+                return !mSuppressDuplicates;
+            } else {
+                markSeen(sequence);
+                mUnique++;
+                mReordered++;
+            }
+
+            updateRecentLoss();
+
+            if (timestamp >= 0) {
+                // RFC 3550: D(i,j) = (Rj - Ri) - (Sj - Si); J += (|D(i,j)| - J) / 16.
+                double transit = arrival - timestamp;
+                if (mHasTransit) {
+                    mJitter += (Math.abs(transit - mLastTransit) - mJitter) / 16;
+                }
+                mLastTransit = transit;
+                mHasTransit = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget everything measured so far, ie: when the sender restarts its sequence.
+     */
+    public synchronized void reset() {
+        mStarted = false;
+        mReceived = mUnique = mDuplicates = mReordered = mLate = 0;
+        mRecentLossRate = 0;
+        mHasTransit = false;
+        mJitter = 0;
+        for (int i = 0; i < mSeen.length; i++) {
+            mSeen[i] = 0;
+        }
+    }
+
+    /**
+     * @return the number of datagrams received, duplicates included.
+     */
+    public synchronized long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * @return the number of datagrams the sender has sent so far, judging by the highest sequence number seen.
+     */
+    public synchronized long getExpectedCount() {
+        return mStarted ? mHighestSequence - mFirstSequence + 1 : 0;
+    }
+
+    /**
+     * @return the number of expected datagrams that have not arrived.
+     */
+    public synchronized long getLostCount() {
+        return Math.max(0, getExpectedCount() - mUnique);
+    }
+
+    /**
+     * @return the fraction of expected datagrams lost since the stream started.
+     */
+    public synchronized double getLossRate() {
+        long expected = getExpectedCount();
+        return expected == 0 ? 0 : (double) getLostCount() / expected;
+    }
+
+    /**
+     * @return the fraction lost over the most recently completed loss window.
+     */
+    public synchronized double getRecentLossRate() {
+        return mRecentLossRate;
+    }
+
+    /**
+     * @return the number of datagrams that arrived after one with a higher sequence number.
+     */
+    public synchronized long getReorderedCount() {
+        return mReordered;
+    }
+
+    /**
+     * @return the number of datagrams whose sequence number had already been received.
+     */
+    public synchronized long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    /**
+     * @return the interarrival jitter in milliseconds, or 0 if the extractor provides no timestamps.
+     */
+    public synchronized double getJitter() {
+        return mJitter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("received=%d expected=%d lost=%d (%.2f%%) reordered=%d duplicates=%d jitter=%.2fms",
+                mReceived, getExpectedCount(), getLostCount(), getLossRate() * 100, mReordered, mDuplicates, mJitter);
+    }
+
+    private void updateRecentLoss() {
+        long expected = getExpectedCount();
+        long windowExpected = expected - mWindowExpectedBase;
+        if (windowExpected >= mLossWindow) {
+            long windowUnique = mUnique - mWindowUniqueBase;
+            mRecentLossRate = Math.max(0, (double) (windowExpected - windowUnique) / windowExpected);
+            mWindowExpectedBase = expected;
+            mWindowUniqueBase = mUnique;
+        }
+    }
+
+    /**
+     * Clear the bits of the sequence numbers between the old highest and the new one, which the window now covers.
+     */
+    private void advanceWindow(long sequence) {
+        long gap = sequence - mHighestSequence;
+        if (gap >= WINDOW_BITS) {
+            for (int i = 0; i < mSeen.length; i++) {
+                mSeen[i] = 0;
+            }
+            return;
+        }
+
+        for (long s = mHighestSequence + 1; s <= sequence; s++) {
+            int bit = (int) (s & (WINDOW_BITS - 1));
+            mSeen[bit >>> 6] &= ~(1L << (bit & 63));
+        }
+    }
+
+    private void markSeen(long sequence) {
+        int bit = (int) (sequence & (WINDOW_BITS - 1));
+        mSeen[bit >>> 6] |= 1L << (bit & 63);
+    }
+
+    private boolean isSeen(long sequence) {
+        int bit = (int) (sequence & (WINDOW_BITS - 1));
+        return (mSeen[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Reads sequencing information from a datagram. Called on the receiving thread for every datagram, so it should
+     * only read the fields it needs.
+     */
+    public interface SequenceExtractor {
+        /**
+         * @return the datagram's sequence number, or -1 if it has none and should not be measured.
+         */
+        public long getSequence(byte[] data, int offset, int length);
+
+        /**
+         * @return when the datagram was sent, in milliseconds on the sender's clock, or -1 if it carries no timestamp.
+         *         Only differences between timestamps matter, so the clocks need not be synchronized.
+         */
+        public long getTimestamp(byte[] data, int offset, int length);
+    }
+}
@@ -0,0 +1,119 @@
+package com.esri.android.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpProtocolParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+
+public class HttpCallTest {
+    private ServerSocket mServer;
+    private final List<String> mBodies = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        serve(mServer.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed by stopServer.
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void retriedPostIsSentAgainWithTheSameBody() throws Exception {
+        HttpPost request = new HttpPost("http://127.0.0.1:" + mServer.getLocalPort() + "/upload");
+        request.setHeader(OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER, "key-1");
+        request.setEntity(new MultipartEntity().addField("name", "value"));
+        NetUtils.ProgressListener progress = new NetUtils.ProgressListener() {
+            @Override
+            public void onProgress(long bytesWritten, long totalBytes) {
+            }
+        };
+        HttpCall<Object> call = new HttpCall<Object>("abc12", request, null, null, new RequestOptions(),
+                new RetryPolicy(), new RequestHandle(), null,
+                new RequestMetrics("abc12", "POST", request.getURI().toString(), "127.0.0.1"), progress);
+
+        // The first attempt is sent the way executeRequest sends it, wrapped to report progress.
+        request.setEntity(ProgressEntity.wrap(request.getEntity(), progress));
+        DefaultHttpClient client = new DefaultHttpClient();
+        HttpProtocolParams.setUseExpectContinue(client.getParams(), false);
+        execute(client, request);
+
+        HttpRequestBase copy = call.prepareRetry();
+        assertNotNull(copy);
+        assertNotSame(request, copy);
+        assertEquals("key-1", copy.getFirstHeader(OfflineRequestQueue.IDEMPOTENCY_KEY_HEADER).getValue());
+        execute(client, copy);
+
+        assertEquals(2, mBodies.size());
+        assertEquals(mBodies.get(0), mBodies.get(1));
+    }
+
+    private static void execute(DefaultHttpClient client, HttpRequestBase request) throws IOException {
+        HttpResponse response = client.execute(request);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+    }
+
+    /**
+     * Read one request, record its body and answer 200.
+     */
+    @SuppressWarnings("deprecation")
+    private void serve(Socket socket) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int length = 0;
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            mBodies.add(new String(body, "UTF-8"));
+
+            OutputStream out = socket.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+}
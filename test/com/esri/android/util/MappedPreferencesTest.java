@@ -0,0 +1,251 @@
+package com.esri.android.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedPreferencesTest {
+    // The record type MappedPreferences writes for a string set.
+    private static final int TYPE_STRING_SET = 6;
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("prefs", "");
+        mDir.delete();
+        mDir.mkdir();
+        mFile = new File(mDir, "test.log");
+    }
+
+    @After
+    public void deleteDir() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void valuesAreReplayedOnReopen() throws IOException {
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        assertTrue(preferences.edit().putString("string", "value").putInt("int", 1).putLong("long", 2L)
+                .putFloat("float", 3f).putBoolean("boolean", true).commit());
+        assertTrue(preferences.edit().putInt("int", 4).remove("long").commit());
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("value", preferences.getString("string", null));
+        assertEquals(4, preferences.getInt("int", 0));
+        assertFalse(preferences.contains("long"));
+        assertEquals(3f, preferences.getFloat("float", 0), 0);
+        assertTrue(preferences.getBoolean("boolean", false));
+        preferences.close();
+    }
+
+    @Test
+    public void tornRecordIsDroppedAndOverwritten() throws IOException {
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        preferences.edit().putString("a", "first").commit();
+        preferences.edit().putString("b", "second").commit();
+        preferences.close();
+
+        // Damage the last byte of the last record, as a crash in the middle of writing it would.
+        long end = findEnd();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(end - 1);
+        file.write('x');
+        file.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("first", preferences.getString("a", null));
+        assertFalse(preferences.contains("b"));
+        preferences.edit().putString("c", "third").commit();
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("first", preferences.getString("a", null));
+        assertFalse(preferences.contains("b"));
+        assertEquals("third", preferences.getString("c", null));
+        preferences.close();
+    }
+
+    @Test
+    public void unknownRecordTypeIsDroppedLikeDamage() throws IOException {
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        preferences.edit().putString("a", "first").commit();
+        preferences.close();
+
+        append(record(99, "b", null));
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("first", preferences.getString("a", null));
+        assertFalse(preferences.contains("b"));
+        preferences.edit().putString("c", "third").commit();
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("first", preferences.getString("a", null));
+        assertEquals("third", preferences.getString("c", null));
+        preferences.close();
+    }
+
+    @Test
+    public void zeroHeaderOpensAsNewLog() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(4096);
+        file.close();
+
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        assertTrue(preferences.getAll().isEmpty());
+        preferences.edit().putString("a", "first").commit();
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("first", preferences.getString("a", null));
+        preferences.close();
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.write("<?xml version".getBytes("UTF-8"));
+        file.close();
+
+        try {
+            new MappedPreferences(mFile);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(13, mFile.length());
+    }
+
+    @Test
+    public void overwrittenValuesAreCompacted() throws Exception {
+        char[] padding = new char[200];
+        Arrays.fill(padding, 'p');
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        preferences.edit().putString("kept", "value").commit();
+        for (int i = 0; i < 2000; i++) {
+            preferences.edit().putString("counter", new String(padding) + i).commit();
+        }
+
+        // Around 400KB was appended; compaction leaves little more than the two live records.
+        File compactFile = new File(mFile.getPath() + ".compact");
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((mFile.length() > 128 * 1024 || compactFile.exists()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("log was not compacted: " + mFile.length(), mFile.length() <= 128 * 1024);
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertEquals("value", preferences.getString("kept", null));
+        assertEquals(new String(padding) + 1999, preferences.getString("counter", null));
+        preferences.close();
+    }
+
+    @Test
+    public void clearDropsEarlierValues() throws IOException {
+        MappedPreferences preferences = new MappedPreferences(mFile);
+        preferences.edit().putString("a", "first").putInt("b", 2).commit();
+        preferences.close();
+
+        // Editor.putStringSet only exists from API 11, so write the set's record directly.
+        append(record(TYPE_STRING_SET, "set", new String[] {"x", "y"}));
+        preferences = new MappedPreferences(mFile);
+        assertEquals(new HashSet<String>(Arrays.asList("x", "y")), preferences.getStringSet("set", null));
+        assertTrue(preferences.edit().clear().putString("c", "third").commit());
+        assertFalse(preferences.contains("a"));
+        assertFalse(preferences.contains("set"));
+        assertEquals("third", preferences.getString("c", null));
+        preferences.close();
+
+        preferences = new MappedPreferences(mFile);
+        assertFalse(preferences.contains("a"));
+        assertFalse(preferences.contains("b"));
+        assertNull(preferences.getStringSet("set", null));
+        assertEquals("third", preferences.getString("c", null));
+        preferences.close();
+    }
+
+    /**
+     * @return the offset just past the last record; every test record ends in a non-zero byte.
+     */
+    private long findEnd() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] == 0) {
+                end--;
+            }
+            return end;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        long end = findEnd();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(end);
+            file.write(record);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @param values the elements of a string set, or null for a record without a value.
+     * @return a record with a valid checksum: payload length, checksum, then the type, key and value.
+     */
+    private static byte[] record(int type, String key, String[] values) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(type);
+        writeString(out, key);
+        if (values != null) {
+            out.writeInt(values.length);
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(record);
+        header.writeInt(payload.size());
+        header.writeInt((int) crc.getValue());
+        header.write(payload.toByteArray());
+        header.flush();
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
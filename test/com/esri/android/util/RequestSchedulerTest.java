@@ -0,0 +1,127 @@
+package com.esri.android.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestSchedulerTest {
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @After
+    public void release() {
+        mRelease.countDown();
+    }
+
+    @Test
+    public void drainReturnsQueuedTasksAndRejectsNewOnes() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.execute("host", RequestScheduler.Priority.INTERACTIVE, block(started));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Runnable background = new Task("background");
+        Runnable interactive = new Task("interactive");
+        scheduler.execute("host", RequestScheduler.Priority.BACKGROUND, background);
+        scheduler.execute("host", RequestScheduler.Priority.INTERACTIVE, interactive);
+
+        List<Runnable> drained = scheduler.shutdownAndDrain();
+        assertEquals(2, drained.size());
+        assertTrue(drained.get(0) == interactive);
+        assertTrue(drained.get(1) == background);
+        assertEquals(0, scheduler.getQueueDepth());
+
+        try {
+            scheduler.execute("host", RequestScheduler.Priority.INTERACTIVE, new Task("late"));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void replacingTheSchedulerRequeuesQueuedTasks() throws Exception {
+        RequestScheduler previous = NetUtils.getRequestScheduler();
+        RequestScheduler first = new RequestScheduler(1, 1);
+        RequestScheduler second = new RequestScheduler();
+        try {
+            NetUtils.setRequestScheduler(first);
+            CountDownLatch started = new CountDownLatch(1);
+            first.execute("host", RequestScheduler.Priority.INTERACTIVE, block(started));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            final List<String> requeued = Collections.synchronizedList(new ArrayList<String>());
+            first.execute("host", RequestScheduler.Priority.INTERACTIVE, new RequeueableTask(requeued));
+            final CountDownLatch ran = new CountDownLatch(1);
+            first.execute("host", RequestScheduler.Priority.INTERACTIVE, new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+
+            NetUtils.setRequestScheduler(second);
+            assertEquals(Collections.singletonList("requeued"), requeued);
+            // A plain runnable is moved as it is and runs on the new scheduler.
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            NetUtils.setRequestScheduler(previous);
+        }
+    }
+
+    private Runnable block(final CountDownLatch started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static final class Task implements Runnable {
+        private final String mName;
+
+        Task(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    private static final class RequeueableTask implements Runnable, RequestScheduler.Requeueable {
+        private final List<String> mRequeued;
+
+        RequeueableTask(List<String> requeued) {
+            mRequeued = requeued;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public void requeue() {
+            mRequeued.add("requeued");
+        }
+    }
+}